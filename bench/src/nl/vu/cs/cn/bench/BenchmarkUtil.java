@@ -0,0 +1,56 @@
+package nl.vu.cs.cn.bench;
+
+import java.io.IOException;
+
+import nl.vu.cs.cn.ConsoleLogAppender;
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.InMemoryNetwork;
+import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.tcp.TransmissionControlBlock;
+
+/**
+ * Shared set up of the benchmarks. Everything runs on an InMemoryNetwork, so the
+ * results do not depend on the native layer or the machine's network.
+ */
+public abstract class BenchmarkUtil {
+
+    public static final int LOCAL = 1;
+    public static final int FOREIGN = 2;
+
+    public static final short LOCAL_PORT = 4000;
+    public static final short FOREIGN_PORT = 80;
+
+    static {
+        // the default appender needs android.util.Log, which is not there on a plain JVM
+        Log.setAppender(new ConsoleLogAppender());
+        Log.setDefaultLevel(Log.ERROR);
+    }
+
+    /**
+     * Create a connection that is not set up, with the addresses and ports filled in,
+     * on its own network.
+     * @return the transmission control block
+     * @throws IOException
+     */
+    public static TransmissionControlBlock createTcb() throws IOException {
+        IP ip = new InMemoryNetwork().createStack(LOCAL);
+        TransmissionControlBlock tcb = new TransmissionControlBlock(ip, false);
+        tcb.setLocalSocketInfo(ip.getLocalAddress(), LOCAL_PORT);
+        tcb.setForeignSocketInfo(IP.IpAddress.getAddress("192.168.0." + FOREIGN), FOREIGN_PORT);
+        return tcb;
+    }
+
+    /**
+     * @param length
+     * @return length bytes of random looking data, the same on every run
+     */
+    public static byte[] data(int length) {
+        byte[] data = new byte[length];
+        int x = 12345;
+        for (int i = 0; i < length; i++) {
+            x = x * 1103515245 + 12345;
+            data[i] = (byte) (x >>> 16);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,104 @@
+package nl.vu.cs.cn.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.tcp.ChecksumUtil;
+
+/**
+ * Compares ChecksumUtil against a straightforward byte at a time implementation
+ * of the same checksum, and against the incremental update of a single field.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    @Param({"20", "1460", "8152"})
+    public int length;
+
+    private byte[] segment;
+    private int sourceAddr;
+    private int destinationAddr;
+    private short checksum;
+    private int ack;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        segment = new byte[length];
+        random.nextBytes(segment);
+        segment[16] = 0;
+        segment[17] = 0;
+
+        sourceAddr = IP.IpAddress.getAddress("192.168.0.1").getAddress();
+        destinationAddr = IP.IpAddress.getAddress("192.168.0.2").getAddress();
+        checksum = ChecksumUtil.calculateChecksum(segment, 0, length, sourceAddr, destinationAddr);
+    }
+
+    @Benchmark
+    public short checksum() {
+        return ChecksumUtil.calculateChecksum(segment, 0, length, sourceAddr, destinationAddr);
+    }
+
+    @Benchmark
+    public short checksumByteAtATime() {
+        return referenceChecksum(segment, 0, length, sourceAddr, destinationAddr);
+    }
+
+    @Benchmark
+    public short incrementalAckUpdate() {
+        int newAck = ack + 1460;
+        short updated = ChecksumUtil.updateChecksum(checksum, ack, newAck);
+        ack = newAck;
+        return updated;
+    }
+
+    /**
+     * RFC 1071 checksum, adding one byte per iteration and folding the carry every word.
+     */
+    static short referenceChecksum(byte[] buf, int offset, int len, int sourceAddr, int destinationAddr) {
+        int sum = 0;
+        sum = addWord(sum, ((sourceAddr & 0xff) << 8) | ((sourceAddr >>> 8) & 0xff));
+        sum = addWord(sum, (((sourceAddr >>> 16) & 0xff) << 8) | ((sourceAddr >>> 24) & 0xff));
+        sum = addWord(sum, ((destinationAddr & 0xff) << 8) | ((destinationAddr >>> 8) & 0xff));
+        sum = addWord(sum, (((destinationAddr >>> 16) & 0xff) << 8) | ((destinationAddr >>> 24) & 0xff));
+        sum = addWord(sum, IP.TCP_PROTOCOL);
+        sum = addWord(sum, len);
+
+        int word = 0;
+        for (int i = 0; i < len; i++) {
+            if ((i & 1) == 0) {
+                word = (buf[offset + i] & 0xff) << 8;
+            } else {
+                sum = addWord(sum, word | (buf[offset + i] & 0xff));
+                word = 0;
+            }
+        }
+        if ((len & 1) != 0) {
+            sum = addWord(sum, word);
+        }
+        return (short) ~sum;
+    }
+
+    private static int addWord(int sum, int word) {
+        sum += word;
+        return (sum & 0xffff) + (sum >>> 16);
+    }
+}
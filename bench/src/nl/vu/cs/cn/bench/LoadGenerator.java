@@ -0,0 +1,342 @@
+package nl.vu.cs.cn.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import nl.vu.cs.cn.ConsoleLogAppender;
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.ImpairedTransport;
+import nl.vu.cs.cn.InMemoryNetwork;
+import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.TCP;
+import nl.vu.cs.cn.tcp.ConnectionMetrics;
+import nl.vu.cs.cn.tcp.LatencyHistogram;
+import nl.vu.cs.cn.tcp.congestion.CongestionControl;
+import nl.vu.cs.cn.tcp.congestion.Cubic;
+import nl.vu.cs.cn.tcp.congestion.Reno;
+
+/**
+ * Drives messages through a number of connections between two stacks on an
+ * InMemoryNetwork, and reports goodput, write-to-read latency, the retransmit rate
+ * and the CPU time per byte. Runs on a plain JVM, without Android or the native
+ * library:
+ *
+ *     java nl.vu.cs.cn.bench.LoadGenerator --connections=8 --size=1024 --rate=2000 --loss=0.01 --delay=5
+ *
+ * Options, all --name=value:
+ *   connections    client/server socket pairs (4)
+ *   size           bytes per message, at least 8 (1024)
+ *   rate           messages per second per connection, 0 to write as fast as possible (0)
+ *   duration       seconds measured (10)
+ *   warmup         seconds before measuring starts (2)
+ *   loss           probability that a packet is lost, in both directions (0)
+ *   delay          one-way delay in ms (0)
+ *   jitter         largest extra random delay in ms (0)
+ *   reorder        probability that a packet is held back (0)
+ *   reorder-delay  how long a held back packet waits, in ms (2)
+ *   buffer         send and receive buffer size in bytes (the default)
+ *   cc             reno or cubic (reno)
+ *   seed           seed of the impairments (1)
+ *
+ * Each message starts with the time it was meant to be written. With a rate, that is
+ * its place in the schedule rather than the time write() was called, so messages
+ * held up by an earlier slow one count the wait too.
+ */
+public class LoadGenerator {
+
+    private static final int PORT = 80;
+    private static final int HEADER_SIZE = 8;       // System.nanoTime() the message was due
+
+    private final Map<String, String> options;
+
+    private final int connections;
+    private final int size;
+    private final double rate;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong bytesRead = new AtomicLong();      // during the measurement
+    private final AtomicLong messagesWritten = new AtomicLong();
+    private final AtomicLong messagesRead = new AtomicLong();
+
+    private volatile long measureStart;
+    private volatile long measureEnd;
+    private volatile boolean stopping;
+
+    public LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        connections = getInt("connections", 4);
+        size = Math.max(HEADER_SIZE, getInt("size", 1024));
+        rate = getDouble("rate", 0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals == -1) {
+                System.err.println("Options are given as --name=value, not " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+
+        Log.setAppender(new ConsoleLogAppender());
+        // impairments make the stack warn about every late or duplicate segment
+        Log.setDefaultLevel(Log.ERROR);
+
+        new LoadGenerator(options).run();
+        // the connections are left open, closing them would wait for TIME_WAIT
+        System.exit(0);
+    }
+
+    public void run() throws IOException, InterruptedException {
+        long seed = getInt("seed", 1);
+        InMemoryNetwork network = new InMemoryNetwork();
+        ImpairedTransport serverTransport = impair(network, seed);
+        ImpairedTransport clientTransport = impair(network, seed + 1);
+        TCP serverStack = new TCP(new IP(BenchmarkUtil.FOREIGN, serverTransport));
+        TCP clientStack = new TCP(new IP(BenchmarkUtil.LOCAL, clientTransport));
+
+        final TCP.Socket listening = serverStack.socket(PORT);
+        final TCP.Socket[] servers = new TCP.Socket[connections];
+        TCP.Socket[] clients = new TCP.Socket[connections];
+
+        int buffer = getInt("buffer", 0);
+        if (buffer > 0) {
+            listening.setReceiveBufferSize(buffer);
+            listening.setSendBufferSize(buffer);
+        }
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < servers.length; i++) {
+                    servers[i] = listening.accept();
+                }
+            }
+        }, "LoadGenerator acceptor");
+        acceptor.start();
+
+        IP.IpAddress serverAddress = IP.IpAddress.getAddress("192.168.0." + BenchmarkUtil.FOREIGN);
+        for (int i = 0; i < connections; i++) {
+            clients[i] = clientStack.socket();
+            if (buffer > 0) {
+                clients[i].setReceiveBufferSize(buffer);
+                clients[i].setSendBufferSize(buffer);
+            }
+            clients[i].setCongestionControl(createCongestionControl(get("cc", "reno")));
+            clients[i].setWriteMode(TCP.WriteMode.QUEUED);
+            if (!clients[i].connect(serverAddress, PORT)) {
+                throw new IOException("Connection " + i + " could not be set up");
+            }
+        }
+        acceptor.join();
+
+        System.out.println("connections " + connections + ", " + size + " byte messages, "
+                + ((rate > 0) ? rate + " per second" : "unpaced") + " per connection, cc " + get("cc", "reno")
+                + ", loss " + get("loss", "0") + ", delay " + get("delay", "0") + " ms, jitter " + get("jitter", "0")
+                + " ms, reorder " + get("reorder", "0"));
+
+        long start = System.nanoTime();
+        measureStart = start + (long) (getDouble("warmup", 2) * 1e9);
+        measureEnd = measureStart + (long) (getDouble("duration", 10) * 1e9);
+
+        Thread[] writers = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            writers[i] = startWriter(clients[i], start, i);
+            startReader(servers[i], i);
+        }
+
+        sleepUntil(measureStart);
+        ConnectionMetrics.Snapshot before = clientStack.getMetrics();
+        long cpuBefore = getProcessCpuTime();
+
+        sleepUntil(measureEnd);
+        ConnectionMetrics.Snapshot after = clientStack.getMetrics();
+        long cpuAfter = getProcessCpuTime();
+        stopping = true;
+
+        // let the readers take the messages that are still on their way
+        long drainDeadline = System.nanoTime() + 10 * 1000L * 1000 * 1000;
+        for (Thread writer : writers) {
+            writer.join(Math.max(1, (drainDeadline - System.nanoTime()) / (1000 * 1000)));
+        }
+        while (messagesRead.get() < messagesWritten.get() && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+
+        report(before, after, cpuBefore, cpuAfter, clientTransport, serverTransport);
+    }
+
+    private ImpairedTransport impair(InMemoryNetwork network, long seed) {
+        ImpairedTransport transport = new ImpairedTransport(network.createTransport(), seed);
+        transport.setLoss(getDouble("loss", 0));
+        transport.setDelay(getDouble("delay", 0), getDouble("jitter", 0));
+        transport.setReorder(getDouble("reorder", 0), getDouble("reorder-delay", 2));
+        return transport;
+    }
+
+    private static CongestionControl createCongestionControl(String name) {
+        if (name.equals("cubic")) {
+            return new Cubic();
+        } else if (name.equals("reno")) {
+            return new Reno();
+        }
+        throw new IllegalArgumentException("Unknown congestion control " + name);
+    }
+
+    private Thread startWriter(final TCP.Socket socket, final long start, int index) {
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                byte[] message = BenchmarkUtil.data(size);
+                long interval = (rate > 0) ? (long) (1e9 / rate) : 0;
+                long due = start;
+
+                while (!stopping && System.nanoTime() < measureEnd) {
+                    if (interval > 0) {
+                        due += interval;
+                        sleepUntil(due);
+                    } else {
+                        due = System.nanoTime();
+                    }
+
+                    putLong(message, 0, due);
+                    if (socket.write(message, 0, message.length) != message.length) {
+                        Log.w("LoadGenerator", "Write failed, stopping writer");
+                        return;
+                    }
+                    messagesWritten.incrementAndGet();
+                }
+            }
+        }, "LoadGenerator writer " + index);
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+
+    private Thread startReader(final TCP.Socket socket, int index) {
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                byte[] buf = new byte[64 * 1024];
+                byte[] header = new byte[HEADER_SIZE];
+                int inMessage = 0;      // bytes of the current message read so far
+
+                while (true) {
+                    int read = socket.read(buf, 0, buf.length);
+                    if (read <= 0) {
+                        return;
+                    }
+
+                    long now = System.nanoTime();
+                    if (now >= measureStart && now < measureEnd) {
+                        bytesRead.addAndGet(read);
+                    }
+
+                    int position = 0;
+                    while (position < read) {
+                        int take = Math.min(read - position, size - inMessage);
+                        if (inMessage < HEADER_SIZE) {
+                            int headerBytes = Math.min(take, HEADER_SIZE - inMessage);
+                            System.arraycopy(buf, position, header, inMessage, headerBytes);
+                        }
+                        inMessage += take;
+                        position += take;
+
+                        if (inMessage == size) {
+                            long due = getLong(header, 0);
+                            if (due >= measureStart && due < measureEnd) {
+                                latency.record(now - due);
+                            }
+                            messagesRead.incrementAndGet();
+                            inMessage = 0;
+                        }
+                    }
+                }
+            }
+        }, "LoadGenerator reader " + index);
+        reader.setDaemon(true);
+        reader.start();
+        return reader;
+    }
+
+    private void report(ConnectionMetrics.Snapshot before, ConnectionMetrics.Snapshot after,
+            long cpuBefore, long cpuAfter, ImpairedTransport client, ImpairedTransport server) {
+        double seconds = (measureEnd - measureStart) / 1e9;
+        long bytes = bytesRead.get();
+        long segments = after.getSegmentsSent() - before.getSegmentsSent();
+        long retransmits = after.getRetransmits() - before.getRetransmits();
+        LatencyHistogram.Snapshot latencies = latency.snapshot();
+
+        System.out.println(String.format("goodput     %.1f Mbit/s (%d bytes in %.1f s)", bytes * 8 / seconds / 1e6, bytes, seconds));
+        System.out.println(String.format("latency     p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms (%d messages)",
+                latencies.getValueAtPercentile(50) / 1e6, latencies.getValueAtPercentile(99) / 1e6,
+                latencies.getValueAtPercentile(99.9) / 1e6, latencies.getMax() / 1e6, latencies.getCount()));
+        System.out.println(String.format("retransmits %.3f%% of %d segments (%d timeouts, %d fast)",
+                (segments == 0) ? 0.0 : 100.0 * retransmits / segments, segments,
+                after.getRetransmissionTimeouts() - before.getRetransmissionTimeouts(),
+                after.getFastRetransmits() - before.getFastRetransmits()));
+        if (cpuBefore >= 0 && cpuAfter >= 0 && bytes > 0) {
+            System.out.println(String.format("cpu         %.2f ns per byte (%.2f cores)",
+                    (double) (cpuAfter - cpuBefore) / bytes, (cpuAfter - cpuBefore) / 1e9 / seconds));
+        } else {
+            System.out.println("cpu         unavailable");
+        }
+        System.out.println("impairments client " + client.getDropped() + " dropped " + client.getReordered() + " reordered of "
+                + client.getSent() + ", server " + server.getDropped() + " dropped " + server.getReordered() + " reordered of "
+                + server.getSent());
+        if (messagesRead.get() < messagesWritten.get()) {
+            System.out.println("warning: " + (messagesWritten.get() - messagesRead.get()) + " messages were not read in time");
+        }
+    }
+
+    /**
+     * @return the CPU time used by the whole process in nanoseconds, or -1 if the JVM does not tell
+     */
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static void sleepUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static void putLong(byte[] buf, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            buf[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long getLong(byte[] buf, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buf[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private String get(String name, String defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    private int getInt(String name, int defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+
+    private double getDouble(String name, double defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : Double.parseDouble(value);
+    }
+}
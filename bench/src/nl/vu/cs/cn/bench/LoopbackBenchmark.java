@@ -0,0 +1,106 @@
+package nl.vu.cs.cn.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.InMemoryNetwork;
+import nl.vu.cs.cn.TCP;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sends data over a connection between two stacks on an InMemoryNetwork, through the
+ * whole stack: the send path, the segment handler with its ACK processing, and the
+ * receive path. A thread reads on the other side all the time. Each operation writes
+ * transferSize bytes and returns when they are acknowledged.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    private static final int PORT = 80;
+
+    @Param({"1048576"})
+    public int transferSize;
+
+    @Param({"65536", "4194304"})
+    public int bufferSize;
+
+    private TCP.Socket listening;
+    private TCP.Socket server;
+    private TCP.Socket client;
+    private Thread reader;
+    private byte[] data;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        data = BenchmarkUtil.data(transferSize);
+
+        InMemoryNetwork network = new InMemoryNetwork();
+        TCP serverStack = new TCP(network.createStack(BenchmarkUtil.FOREIGN));
+        TCP clientStack = new TCP(network.createStack(BenchmarkUtil.LOCAL));
+
+        listening = serverStack.socket(PORT);
+        listening.setReceiveBufferSize(bufferSize);
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                server = listening.accept();
+            }
+        });
+        acceptor.start();
+
+        client = clientStack.socket();
+        client.setSendBufferSize(bufferSize);
+        client.setReceiveBufferSize(bufferSize);
+        if (!client.connect(IP.IpAddress.getAddress("192.168.0." + BenchmarkUtil.FOREIGN), PORT)) {
+            throw new IOException("Could not connect");
+        }
+        acceptor.join();
+        // otherwise the ACK of the last segment of every transfer waits for the delayed ACK timer
+        server.setAckDelay(0);
+
+        reader = new Thread(new Runnable() {
+            public void run() {
+                byte[] buf = new byte[64 * 1024];
+                while (server.read(buf, 0, buf.length) > 0) {
+                    // discard
+                }
+                // the client closed: close this side too, the client's close() waits for our FIN
+                server.close();
+            }
+        }, "LoopbackBenchmark reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        client.setWriteMode(TCP.WriteMode.ACKNOWLEDGED);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        client.close();
+        reader.join(10 * 1000);
+        listening.close();
+    }
+
+    @Benchmark
+    public int transfer() {
+        return client.write(data, 0, data.length);
+    }
+}
@@ -0,0 +1,63 @@
+package nl.vu.cs.cn.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.tcp.TransmissionControlBlock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Moving received data through the processing queue of a connection: the segment
+ * handler adds it, read() takes it out. The reads are smaller than the writes, like
+ * an application reading with a small buffer, so the queue wraps around.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessingQueueBenchmark {
+
+    @Param({"536", "8152"})
+    public int segmentLength;
+
+    @Param({"4096"})
+    public int readLength;
+
+    private TransmissionControlBlock tcb;
+    private byte[] segmentData;
+    private byte[] readBuf;
+
+    @Setup
+    public void setup() throws IOException {
+        tcb = BenchmarkUtil.createTcb();
+        segmentData = BenchmarkUtil.data(segmentLength);
+        readBuf = new byte[readLength];
+    }
+
+    /**
+     * Add one segment of data, and read it back.
+     * @return the number of bytes read
+     */
+    @Benchmark
+    public int queueAndRead() {
+        int queued = tcb.queueDataForProcessing(segmentData, 0, segmentData.length);
+        int read = 0;
+        while (read < queued) {
+            read += tcb.getDataToProcess(readBuf, 0, Math.min(readBuf.length, queued - read));
+        }
+        return read;
+    }
+}
@@ -0,0 +1,80 @@
+package nl.vu.cs.cn.bench;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.IPUtil;
+import nl.vu.cs.cn.tcp.RetransmissionQueue;
+import nl.vu.cs.cn.tcp.TransmissionControlBlock;
+import nl.vu.cs.cn.tcp.segment.RetransmissionSegment;
+import nl.vu.cs.cn.tcp.segment.Segment;
+import nl.vu.cs.cn.tcp.segment.SegmentSender;
+import nl.vu.cs.cn.tcp.segment.SegmentUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adding sent segments to the retransmission queue and removing them again when
+ * they are acknowledged, with one ACK for every ackEvery segments as with delayed
+ * ACKs. The queue is filled with a window of segments first, as it is on a
+ * connection that keeps its window full.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetransmissionQueueBenchmark {
+
+    private static final int SEGMENTS = 64;
+
+    @Param({"1", "2"})
+    public int ackEvery;
+
+    private final RetransmissionQueue queue = new RetransmissionQueue();
+    private final RetransmissionSegment[] segments = new RetransmissionSegment[SEGMENTS];
+    private final long[] acks = new long[SEGMENTS];
+    private final ArrayList<RetransmissionSegment> acked = new ArrayList<RetransmissionSegment>(SEGMENTS);
+
+    @Setup
+    public void setup() throws IOException {
+        TransmissionControlBlock tcb = BenchmarkUtil.createTcb();
+        byte[] data = BenchmarkUtil.data(SegmentSender.MAX_DATA_SIZE);
+
+        long seq = 1000;
+        for (int i = 0; i < SEGMENTS; i++) {
+            Segment segment = SegmentUtil.getPacket(tcb, seq, 0);
+            segment.setData(data);
+            segments[i] = new RetransmissionSegment(segment, IPUtil.getPacket(segment));
+            seq = (seq + data.length) % Integer.MAX_VALUE;
+            acks[i] = seq;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEGMENTS)
+    public int addAndAck() {
+        int removed = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            queue.add(segments[i]);
+        }
+        for (int i = ackEvery - 1; i < SEGMENTS; i += ackEvery) {
+            removed += queue.removeAcked(acks[i], acked);
+        }
+        acked.clear();
+        return removed;
+    }
+}
@@ -0,0 +1,82 @@
+package nl.vu.cs.cn.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.tcp.ChecksumUtil;
+import nl.vu.cs.cn.tcp.TransmissionControlBlock;
+import nl.vu.cs.cn.tcp.segment.Segment;
+import nl.vu.cs.cn.tcp.segment.SegmentUtil;
+import nl.vu.cs.cn.tcp.segment.SegmentView;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding a segment into a packet buffer, decoding a received one, and the
+ * checksum both of them compute, for an empty ACK, a segment of the default IPv4
+ * MSS and a full segment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentBenchmark {
+
+    @Param({"0", "536", "8152"})
+    public int dataLength;
+
+    private Segment segment;
+    private byte[] buf;
+    private int length;
+    private int source;
+    private int destination;
+
+    private final SegmentView view = new SegmentView();
+
+    @Setup
+    public void setup() throws IOException {
+        TransmissionControlBlock tcb = BenchmarkUtil.createTcb();
+        segment = SegmentUtil.getPacket(tcb, 1000, 2000);
+        segment.setData(BenchmarkUtil.data(dataLength));
+
+        source = tcb.getLocalAddr().getAddress();
+        destination = tcb.getForeignAddr().getAddress();
+        buf = new byte[TransmissionControlBlock.MAX_SEGMENT_SIZE];
+        length = segment.encode(buf, 0);
+    }
+
+    @Benchmark
+    public int encode() {
+        return segment.encode(buf, 0);
+    }
+
+    @Benchmark
+    public boolean decode() {
+        // what the receive path does for every packet: wrap it and check it
+        view.wrap(buf, 0, length, source, destination);
+        return view.hasValidChecksum() && view.getSeq() == 1000;
+    }
+
+    @Benchmark
+    public Segment decodeCopy() {
+        // segments that are kept, e.g. in the listen queue, are copied out of the packet
+        return new Segment(view.wrap(buf, 0, length, source, destination));
+    }
+
+    @Benchmark
+    public short checksum() {
+        return ChecksumUtil.calculateChecksum(buf, 0, length, source, destination);
+    }
+}
@@ -0,0 +1,73 @@
+package nl.vu.cs.cn.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.tcp.segment.SegmentUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The wraparound-safe sequence number checks, which run several times for every
+ * segment. The windows are a mix of plain and wrapped ones, so the branch in
+ * inWindow() cannot be predicted from the previous call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentUtilBenchmark {
+
+    private static final int WINDOWS = 1024;
+
+    private final long[] left = new long[WINDOWS];
+    private final long[] seq = new long[WINDOWS];
+    private final long[] right = new long[WINDOWS];
+
+    @Setup
+    public void setup() {
+        byte[] random = BenchmarkUtil.data(WINDOWS);
+        for (int i = 0; i < WINDOWS; i++) {
+            // windows of 64 KB, a quarter of them across the wrap point
+            long start = ((random[i] & 3) == 0) ? Integer.MAX_VALUE - 1000 : 1000L * i;
+            left[i] = start;
+            right[i] = (start + 65536) % Integer.MAX_VALUE;
+            seq[i] = (start + (random[i] & 0xff) * 300) % Integer.MAX_VALUE;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOWS)
+    public int inWindow() {
+        int in = 0;
+        for (int i = 0; i < WINDOWS; i++) {
+            if (SegmentUtil.inWindow(left[i], seq[i], right[i])) {
+                in++;
+            }
+        }
+        return in;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOWS)
+    public int isAcked() {
+        int acked = 0;
+        for (int i = 0; i < WINDOWS; i++) {
+            if (SegmentUtil.isAcked(left[i], seq[i], 1460)) {
+                acked++;
+            }
+        }
+        return acked;
+    }
+}
@@ -0,0 +1,28 @@
+package nl.vu.cs.cn;
+
+/**
+ * Writes log messages to the Android log, prefixed with the time they were logged.
+ */
+public class AndroidLogAppender implements Log.Appender {
+
+    public void append(int level, String tag, long timeMillis, String msg, Throwable tr) {
+        String line = timeMillis + " | " + msg;
+        switch (level) {
+            case Log.VERBOSE:
+                if (tr == null) android.util.Log.v(tag, line); else android.util.Log.v(tag, line, tr);
+                break;
+            case Log.DEBUG:
+                if (tr == null) android.util.Log.d(tag, line); else android.util.Log.d(tag, line, tr);
+                break;
+            case Log.INFO:
+                if (tr == null) android.util.Log.i(tag, line); else android.util.Log.i(tag, line, tr);
+                break;
+            case Log.WARN:
+                if (tr == null) android.util.Log.w(tag, line); else android.util.Log.w(tag, line, tr);
+                break;
+            default:
+                if (tr == null) android.util.Log.e(tag, line); else android.util.Log.e(tag, line, tr);
+                break;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package nl.vu.cs.cn;
+
+/**
+ * Hands log messages to another appender on a background thread, so logging does
+ * not block the thread that handles segments on the slower Android or console output.
+ *
+ * Messages wait in a ring of preallocated entries. When the ring is full new messages
+ * are dropped and counted, rather than making the caller wait.
+ */
+public class AsyncLogAppender implements Log.Appender {
+
+    private static class Entry {
+        int level;
+        String tag;
+        long timeMillis;
+        String msg;
+        Throwable tr;
+    }
+
+    private final Log.Appender target;
+    private final Entry[] ring;
+    private int head;           // index of the oldest message
+    private int count;
+    private long dropped;
+    private boolean closed;
+    private final Thread writer;
+
+    /**
+     * @param target the appender that does the actual writing
+     * @param capacity the number of messages that can wait
+     */
+    public AsyncLogAppender(Log.Appender target, int capacity) {
+        this.target = target;
+        ring = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Entry();
+        }
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "AsyncLogAppender");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void append(int level, String tag, long timeMillis, String msg, Throwable tr) {
+        synchronized (this) {
+            if (closed || count == ring.length) {
+                dropped++;
+                return;
+            }
+            Entry entry = ring[(head + count) % ring.length];
+            entry.level = level;
+            entry.tag = tag;
+            entry.timeMillis = timeMillis;
+            entry.msg = msg;
+            entry.tr = tr;
+            count++;
+            if (count == 1) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void write() {
+        while (true) {
+            int level;
+            String tag, msg;
+            long timeMillis;
+            Throwable tr;
+
+            synchronized (this) {
+                while (count == 0) {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // check again
+                    }
+                }
+
+                Entry entry = ring[head];
+                level = entry.level;
+                tag = entry.tag;
+                timeMillis = entry.timeMillis;
+                msg = entry.msg;
+                tr = entry.tr;
+                entry.tag = null;
+                entry.msg = null;
+                entry.tr = null;
+                head = (head + 1) % ring.length;
+                count--;
+                if (count == 0) {
+                    // wake up flush()
+                    notifyAll();
+                }
+            }
+
+            target.append(level, tag, timeMillis, msg, tr);
+        }
+    }
+
+    /**
+     * Wait until the waiting messages have been handed to the target appender.
+     * @param timeoutMillis
+     * @return true if all messages were written
+     */
+    public synchronized boolean flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (count > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting messages. The writer thread ends once the waiting messages are written.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of messages dropped because the ring was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
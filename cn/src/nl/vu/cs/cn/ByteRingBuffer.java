@@ -0,0 +1,140 @@
+package nl.vu.cs.cn.tcp;
+
+/**
+ * Fixed size circular byte buffer used for the send and receive queues of a
+ * connection. Data is copied in and out in bulk (at most two array copies per
+ * call, one on each side of the wrap point), and the number of readable bytes
+ * is known without walking the buffer.
+ *
+ * This class is not thread-safe, callers should synchronize access.
+ */
+public class ByteRingBuffer {
+
+    private final byte[] buffer;
+
+    private int head;       // index of the first readable byte
+    private int size;       // number of readable bytes
+
+    /**
+     * Create a new ring buffer that can hold capacity bytes.
+     * @param capacity
+     */
+    public ByteRingBuffer(int capacity) {
+        if(capacity <= 0){
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        buffer = new byte[capacity];
+    }
+
+    /**
+     * @return the maximum number of bytes this buffer can hold
+     */
+    public int capacity(){
+        return buffer.length;
+    }
+
+    /**
+     * @return the number of bytes that can be read
+     */
+    public int available(){
+        return size;
+    }
+
+    /**
+     * @return the number of bytes that can be written before the buffer is full
+     */
+    public int free(){
+        return buffer.length - size;
+    }
+
+    public boolean isEmpty(){
+        return size == 0;
+    }
+
+    /**
+     * Copy at most len bytes from src into the buffer.
+     * @param src
+     * @param offset
+     * @param len
+     * @return the number of bytes written, which is less than len if the buffer is full
+     */
+    public int write(byte[] src, int offset, int len){
+        len = Math.min(len, free());
+        if(len <= 0){
+            return 0;
+        }
+
+        int tail = (head + size) % buffer.length;
+        int firstPart = Math.min(len, buffer.length - tail);
+        System.arraycopy(src, offset, buffer, tail, firstPart);
+        if(firstPart < len){
+            // wrap around to the start of the buffer
+            System.arraycopy(src, offset + firstPart, buffer, 0, len - firstPart);
+        }
+
+        size += len;
+        return len;
+    }
+
+    /**
+     * Copy at most maxlen bytes from the buffer into dst, and remove them from the buffer.
+     * @param dst
+     * @param offset
+     * @param maxlen
+     * @return the number of bytes read
+     */
+    public int read(byte[] dst, int offset, int maxlen){
+        int len = peek(dst, offset, maxlen);
+        skip(len);
+        return len;
+    }
+
+    /**
+     * Copy at most maxlen bytes from the buffer into dst, without removing them.
+     * @param dst
+     * @param offset
+     * @param maxlen
+     * @return the number of bytes copied
+     */
+    public int peek(byte[] dst, int offset, int maxlen){
+        int len = Math.min(maxlen, size);
+        if(len <= 0){
+            return 0;
+        }
+
+        int firstPart = Math.min(len, buffer.length - head);
+        System.arraycopy(buffer, head, dst, offset, firstPart);
+        if(firstPart < len){
+            System.arraycopy(buffer, 0, dst, offset + firstPart, len - firstPart);
+        }
+        return len;
+    }
+
+    /**
+     * Remove at most len bytes from the buffer without copying them.
+     * @param len
+     * @return the number of bytes removed
+     */
+    public int skip(int len){
+        len = Math.min(len, size);
+        if(len <= 0){
+            return 0;
+        }
+
+        head = (head + len) % buffer.length;
+        size -= len;
+        if(size == 0){
+            // keep subsequent copies contiguous as long as possible
+            head = 0;
+        }
+        return len;
+    }
+
+    /**
+     * Remove all data from the buffer.
+     */
+    public void clear(){
+        head = 0;
+        size = 0;
+    }
+}
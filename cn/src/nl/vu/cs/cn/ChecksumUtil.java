@@ -0,0 +1,126 @@
+package nl.vu.cs.cn.tcp;
+
+import java.nio.ByteBuffer;
+
+import nl.vu.cs.cn.IP;
+
+/**
+ * The Internet checksum (RFC 1071) of TCP segments, including the pseudo header
+ * with the source and destination address, protocol and TCP length.
+ *
+ * The one's complement sum is independent of the order in which words are added,
+ * and carries can be folded back in at the end. So the segment is summed as 32 bit
+ * words, two per 8 bytes, into a 64 bit accumulator, and the carries are only folded
+ * into 16 bits once at the end.
+ *
+ * A checksum can also be updated when a single field changes (RFC 1624), so
+ * a segment does not have to be summed again to change e.g. its ACK number.
+ */
+public abstract class ChecksumUtil {
+
+    /**
+     * Calculate the checksum of a segment. The checksum field of the segment should be
+     * zero. Over a segment with a correct checksum in place the result is zero.
+     *
+     * @param buf
+     * @param offset start of the TCP header
+     * @param len length of the segment, header included
+     * @param sourceAddr in "host" order
+     * @param destinationAddr in "host" order
+     * @return the checksum
+     */
+    public static short calculateChecksum(byte[] buf, int offset, int len, int sourceAddr, int destinationAddr){
+        long sum = pseudoHeaderSum(sourceAddr, destinationAddr, len);
+
+        int i = offset;
+        int end = offset + len;
+        for(; i + 8 <= end; i += 8){
+            sum += (((buf[i] & 0xff) << 24) | ((buf[i + 1] & 0xff) << 16)
+                    | ((buf[i + 2] & 0xff) << 8) | (buf[i + 3] & 0xff)) & 0xffffffffL;
+            sum += (((buf[i + 4] & 0xff) << 24) | ((buf[i + 5] & 0xff) << 16)
+                    | ((buf[i + 6] & 0xff) << 8) | (buf[i + 7] & 0xff)) & 0xffffffffL;
+        }
+        for(; i + 2 <= end; i += 2){
+            sum += ((buf[i] & 0xff) << 8) | (buf[i + 1] & 0xff);
+        }
+        if(i < end){
+            // an odd byte is padded with a zero byte
+            sum += (buf[i] & 0xff) << 8;
+        }
+
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * Calculate the checksum of the first len bytes of a buffer holding a segment.
+     * @param bb
+     * @param sourceAddr
+     * @param destinationAddr
+     * @param len
+     * @return the checksum
+     */
+    public static short calculateChecksum(ByteBuffer bb, IP.IpAddress sourceAddr, IP.IpAddress destinationAddr, int len){
+        if(bb.hasArray()){
+            return calculateChecksum(bb.array(), bb.arrayOffset(), len, sourceAddr.getAddress(), destinationAddr.getAddress());
+        }
+
+        byte[] buf = new byte[len];
+        for(int i = 0; i < len; i++){
+            buf[i] = bb.get(i);
+        }
+        return calculateChecksum(buf, 0, len, sourceAddr.getAddress(), destinationAddr.getAddress());
+    }
+
+    /**
+     * Update a checksum after a 16 bit field changed from oldValue to newValue,
+     * following RFC 1624: HC' = ~(~HC + ~m + m').
+     *
+     * @param checksum the checksum before the change
+     * @param oldValue
+     * @param newValue
+     * @return the checksum after the change
+     */
+    public static short updateChecksum(short checksum, short oldValue, short newValue){
+        long sum = (~checksum & 0xffff) + (~oldValue & 0xffff) + (newValue & 0xffff);
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * Update a checksum after a 32 bit field (e.g. a sequence number) changed from
+     * oldValue to newValue.
+     *
+     * @param checksum the checksum before the change
+     * @param oldValue
+     * @param newValue
+     * @return the checksum after the change
+     */
+    public static short updateChecksum(short checksum, int oldValue, int newValue){
+        long sum = (~checksum & 0xffff)
+                + (~(oldValue >>> 16) & 0xffff) + (~oldValue & 0xffff)
+                + ((newValue >>> 16) & 0xffff) + (newValue & 0xffff);
+        return (short) ~fold(sum);
+    }
+
+    /**
+     * Sum of the pseudo header. Addresses in "host" order are little-endian, so the
+     * first octet of the address is in the lowest byte.
+     */
+    private static long pseudoHeaderSum(int sourceAddr, int destinationAddr, int len){
+        return addressSum(sourceAddr) + addressSum(destinationAddr) + IP.TCP_PROTOCOL + len;
+    }
+
+    private static long addressSum(int addr){
+        return (((addr & 0xff) << 8) | ((addr >>> 8) & 0xff))
+                + ((((addr >>> 16) & 0xff) << 8) | ((addr >>> 24) & 0xff));
+    }
+
+    /**
+     * Fold the carries of a one's complement sum into 16 bits.
+     */
+    private static int fold(long sum){
+        while((sum >>> 16) != 0){
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+}
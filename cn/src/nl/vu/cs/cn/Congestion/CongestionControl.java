@@ -0,0 +1,64 @@
+package nl.vu.cs.cn.tcp.congestion;
+
+/**
+ * A congestion control algorithm, which keeps the congestion window (cwnd) and the
+ * slow start threshold (ssthresh) of a connection. The sender keeps at most
+ * min(cwnd, SND.WND) bytes in flight.
+ *
+ * The methods are called by the connection while it holds the lock on its
+ * transmission control block, so implementations need no locking of their own.
+ * An instance belongs to a single connection. All sizes are in bytes.
+ */
+public interface CongestionControl {
+
+    /**
+     * Reset the algorithm to the state of a new connection.
+     * @param mss the maximum number of data bytes in a segment
+     */
+    public void init(int mss);
+
+    /**
+     * New data was acknowledged outside of fast recovery.
+     * @param acked the number of newly acknowledged bytes
+     * @param srttNanos the smoothed round trip time, or 0 if it was not measured yet
+     */
+    public void onAck(int acked, long srttNanos);
+
+    /**
+     * Fast retransmit after duplicate ACKs, fast recovery starts.
+     * @param flightSize the number of bytes in flight when the loss was detected
+     */
+    public void onEnterRecovery(int flightSize);
+
+    /**
+     * Another duplicate ACK arrived during fast recovery: a segment left the network.
+     */
+    public void onDuplicateAck();
+
+    /**
+     * An ACK during fast recovery that does not cover all data outstanding when recovery started.
+     * @param acked the number of newly acknowledged bytes
+     */
+    public void onPartialAck(int acked);
+
+    /**
+     * Fast recovery ended, all data outstanding when it started was acknowledged.
+     * @param flightSize the number of bytes still in flight
+     */
+    public void onExitRecovery(int flightSize);
+
+    /**
+     * The retransmission timer of the oldest outstanding segment expired.
+     * @param flightSize the number of bytes in flight
+     */
+    public void onRetransmissionTimeout(int flightSize);
+
+    public int getCongestionWindow();
+
+    public int getSlowStartThreshold();
+
+    /**
+     * @return the name of the algorithm, for logging
+     */
+    public String getName();
+}
@@ -0,0 +1,101 @@
+package nl.vu.cs.cn.tcp.congestion;
+
+/**
+ * CUBIC congestion control (RFC 8312). In congestion avoidance the window follows a
+ * cubic function of the time since the last loss, centered on the window at which
+ * that loss happened (W_max). Growth does not depend on the RTT, so long-haul
+ * connections get back to their old window as fast as LAN connections do. On short
+ * RTTs the window grows at least as fast as Reno would (the TCP-friendly region).
+ *
+ * Slow start and fast recovery are the same as in Reno.
+ */
+public class Cubic extends Reno {
+
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+    private static final double ALPHA = 3 * (1 - BETA) / (1 + BETA);   // Reno equivalent growth per RTT
+
+    // windows are kept in segments here, like in the RFC
+    private double wMax;            // window before the last reduction
+    private double wLastMax;        // W_max before that, for fast convergence
+    private double wEst;            // window Reno would have now
+    private double k;               // seconds until the window is back at W_max
+    private long epochStart;        // nanoTime() when congestion avoidance started, 0 if not started
+    private double pending;         // fractions of a byte the window has grown by, not yet added
+
+    @Override
+    public void init(int mss){
+        super.init(mss);
+        wMax = 0;
+        wLastMax = 0;
+        epochStart = 0;
+        pending = 0;
+    }
+
+    @Override
+    protected void congestionAvoidance(int acked, long srttNanos){
+        double segments = (double) cwnd / mss;
+        long now = nanoTime();
+
+        if(epochStart == 0){
+            epochStart = now;
+            if(segments < wMax){
+                k = Math.cbrt((wMax - segments) / C);
+            } else {
+                // no loss yet, or the window passed W_max in slow start
+                k = 0;
+                wMax = segments;
+            }
+            wEst = segments;
+        }
+
+        // aim for the window one RTT from now
+        double t = (now - epochStart + srttNanos) / 1e9;
+        double target = C * Math.pow(t - k, 3) + wMax;
+        target = Math.min(target, 1.5 * segments);
+
+        wEst += ALPHA * acked / cwnd;
+        if(wEst > target){
+            target = wEst;
+        }
+
+        if(target > segments){
+            pending += (target - segments) / segments * acked;
+            if(pending >= 1){
+                int increase = (int) pending;
+                pending -= increase;
+                cwnd = grow(cwnd, increase);
+            }
+        }
+    }
+
+    @Override
+    protected int reduce(int flightSize){
+        double segments = (double) cwnd / mss;
+        if(segments < wLastMax){
+            // the window shrank since the previous loss: give the bandwidth to competing flows sooner
+            wLastMax = segments;
+            wMax = segments * (1 + BETA) / 2;
+        } else {
+            wLastMax = segments;
+            wMax = segments;
+        }
+        epochStart = 0;
+        pending = 0;
+
+        return Math.max((int) (cwnd * BETA), 2 * mss);
+    }
+
+    /**
+     * @return the current time in nanoseconds. Tests override this to drive the window
+     * with a clock of their own, which should not return 0
+     */
+    protected long nanoTime(){
+        return System.nanoTime();
+    }
+
+    @Override
+    public String getName(){
+        return "cubic";
+    }
+}
@@ -0,0 +1,111 @@
+package nl.vu.cs.cn.tcp.congestion;
+
+/**
+ * Slow start, congestion avoidance and fast recovery as described in RFC 5681,
+ * with the NewReno changes of RFC 6582 for partial ACKs.
+ *
+ * Subclasses can change how the window grows in congestion avoidance and how far
+ * it is reduced on a loss, and keep the rest.
+ */
+public class Reno implements CongestionControl {
+
+    protected int mss;
+    protected int cwnd;
+    protected int ssthresh;
+
+    private int ackedSinceIncrease;     // bytes acknowledged in congestion avoidance since cwnd last grew
+
+    public Reno(){
+        init(1460);
+    }
+
+    public void init(int mss){
+        this.mss = mss;
+        // initial window of RFC 6928
+        cwnd = Math.min(10 * mss, Math.max(2 * mss, 14600));
+        ssthresh = Integer.MAX_VALUE;
+        ackedSinceIncrease = 0;
+    }
+
+    public void onAck(int acked, long srttNanos){
+        if(cwnd < ssthresh){
+            // slow start, at most one segment per ACK (RFC 5681 section 3.1)
+            cwnd = grow(cwnd, Math.min(acked, mss));
+        } else {
+            congestionAvoidance(acked, srttNanos);
+        }
+    }
+
+    /**
+     * Grow the window in congestion avoidance: by one segment per window of acknowledged data.
+     * @param acked
+     * @param srttNanos
+     */
+    protected void congestionAvoidance(int acked, long srttNanos){
+        ackedSinceIncrease += acked;
+        if(ackedSinceIncrease >= cwnd){
+            ackedSinceIncrease -= cwnd;
+            cwnd = grow(cwnd, mss);
+        }
+    }
+
+    /**
+     * Called on every loss, to set ssthresh.
+     * @param flightSize
+     * @return the new slow start threshold
+     */
+    protected int reduce(int flightSize){
+        return Math.max(flightSize / 2, 2 * mss);
+    }
+
+    public void onEnterRecovery(int flightSize){
+        ssthresh = reduce(flightSize);
+        // the three duplicate ACKs each stand for a segment that left the network
+        cwnd = grow(ssthresh, 3 * mss);
+        ackedSinceIncrease = 0;
+    }
+
+    public void onDuplicateAck(){
+        cwnd = grow(cwnd, mss);
+    }
+
+    public void onPartialAck(int acked){
+        // deflate by the acknowledged data, and add back the segment that is resent
+        cwnd = Math.max(mss, grow(cwnd - acked, mss));
+    }
+
+    public void onExitRecovery(int flightSize){
+        cwnd = Math.min(ssthresh, grow(Math.max(flightSize, mss), mss));
+    }
+
+    public void onRetransmissionTimeout(int flightSize){
+        ssthresh = reduce(flightSize);
+        cwnd = mss;
+        ackedSinceIncrease = 0;
+    }
+
+    public int getCongestionWindow(){
+        return cwnd;
+    }
+
+    public int getSlowStartThreshold(){
+        return ssthresh;
+    }
+
+    public String getName(){
+        return "reno";
+    }
+
+    /**
+     * @return window + increase, without overflowing
+     */
+    protected static int grow(int window, int increase){
+        long grown = (long) window + increase;
+        return (int) Math.min(grown, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public String toString(){
+        return getName() + " cwnd " + cwnd + " ssthresh " + ssthresh;
+    }
+}
@@ -0,0 +1,352 @@
+package nl.vu.cs.cn.tcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of a connection. Each connection has its own, and
+ * adds everything it counts to the metrics of its TCP stack as well, so the stack
+ * metrics cover all connections, including closed ones.
+ *
+ * Counting allocates nothing and takes no locks, so it is always on. Read the metrics
+ * with snapshot(), or with TransmissionControlBlock.getMetricsSnapshot() to include
+ * the current windows of a connection.
+ */
+public class ConnectionMetrics {
+
+    /**
+     * A counter that adds to the same counter of the parent metrics.
+     */
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+        private final Counter parent;
+
+        Counter(Counter parent) {
+            this.parent = parent;
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+            if (parent != null) {
+                parent.add(delta);
+            }
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    private static final int STATES = TransmissionControlBlock.State.values().length;
+
+    private final ConnectionMetrics parent;
+
+    public final Counter segmentsSent;
+    public final Counter bytesSent;             // data bytes, including retransmissions
+    public final Counter segmentsReceived;      // segments with a valid checksum
+    public final Counter bytesReceived;
+    public final Counter checksumFailures;      // segments dropped because of their checksum
+    public final Counter[] retransmits;         // by earlier retransmissions of the segment: 0 counts first retransmissions, the last one counts the rest too
+    public final Counter retransmittedBytes;
+    public final Counter retransmissionTimeouts;
+    public final Counter fastRetransmits;
+    public final Counter skippedRetransmissions;    // left out because the segment was SACKed
+    public final Counter acksSent;              // segments without data sent to acknowledge data
+    public final Counter acksSaved;             // received segments that did not need an ACK of their own
+    public final Counter[] stateTransitions;    // by the state that was entered
+    private final Counter[] inState;            // connections in each state, except CLOSED
+
+    /** round trip time of segments that were not retransmitted */
+    public final LatencyHistogram rtt;
+    /** time spent waiting in waitForAck() */
+    public final LatencyHistogram ackWait;
+    /** time spent waiting in waitForDataToProcess() */
+    public final LatencyHistogram readWait;
+
+    /**
+     * Metrics of a stack, or of a connection that is not part of a stack.
+     */
+    public ConnectionMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param parent the metrics of the stack of the connection, or null
+     */
+    public ConnectionMetrics(ConnectionMetrics parent) {
+        this.parent = parent;
+
+        segmentsSent = new Counter(parent == null ? null : parent.segmentsSent);
+        bytesSent = new Counter(parent == null ? null : parent.bytesSent);
+        segmentsReceived = new Counter(parent == null ? null : parent.segmentsReceived);
+        bytesReceived = new Counter(parent == null ? null : parent.bytesReceived);
+        checksumFailures = new Counter(parent == null ? null : parent.checksumFailures);
+        retransmittedBytes = new Counter(parent == null ? null : parent.retransmittedBytes);
+        retransmissionTimeouts = new Counter(parent == null ? null : parent.retransmissionTimeouts);
+        fastRetransmits = new Counter(parent == null ? null : parent.fastRetransmits);
+        skippedRetransmissions = new Counter(parent == null ? null : parent.skippedRetransmissions);
+        acksSent = new Counter(parent == null ? null : parent.acksSent);
+        acksSaved = new Counter(parent == null ? null : parent.acksSaved);
+
+        retransmits = new Counter[TransmissionControlBlock.MAX_RETRANSMITS];
+        for (int i = 0; i < retransmits.length; i++) {
+            retransmits[i] = new Counter(parent == null ? null : parent.retransmits[i]);
+        }
+        stateTransitions = new Counter[STATES];
+        inState = new Counter[STATES];
+        for (int i = 0; i < STATES; i++) {
+            stateTransitions[i] = new Counter(parent == null ? null : parent.stateTransitions[i]);
+            inState[i] = new Counter(parent == null ? null : parent.inState[i]);
+        }
+
+        rtt = new LatencyHistogram(parent == null ? null : parent.rtt);
+        ackWait = new LatencyHistogram(parent == null ? null : parent.ackWait);
+        readWait = new LatencyHistogram(parent == null ? null : parent.readWait);
+    }
+
+    /**
+     * @return the metrics of the stack, or null
+     */
+    public ConnectionMetrics getParent() {
+        return parent;
+    }
+
+    /**
+     * Count a resent segment.
+     * @param retry the number of times the segment was resent before, 0 for its first retransmission
+     * @param bytes the data bytes in the segment
+     */
+    public void onRetransmit(int retry, int bytes) {
+        retransmits[Math.max(0, Math.min(retry, retransmits.length - 1))].increment();
+        retransmittedBytes.add(bytes);
+    }
+
+    /**
+     * Count a state transition.
+     * @param from the state the connection was in
+     * @param to the state it enters
+     */
+    public void onStateChange(TransmissionControlBlock.State from, TransmissionControlBlock.State to) {
+        stateTransitions[to.ordinal()].increment();
+        if (from != to) {
+            if (from != TransmissionControlBlock.State.CLOSED) {
+                inState[from.ordinal()].add(-1);
+            }
+            if (to != TransmissionControlBlock.State.CLOSED) {
+                inState[to.ordinal()].increment();
+            }
+        }
+    }
+
+    /**
+     * @return the counters and histograms, without the windows of a connection
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * The metrics at one moment. Window sizes are only known for a single connection,
+     * they are -1 in the metrics of a stack.
+     */
+    public static class Snapshot {
+
+        private final long segmentsSent;
+        private final long bytesSent;
+        private final long segmentsReceived;
+        private final long bytesReceived;
+        private final long checksumFailures;
+        private final long[] retransmits;
+        private final long retransmittedBytes;
+        private final long retransmissionTimeouts;
+        private final long fastRetransmits;
+        private final long skippedRetransmissions;
+        private final long acksSent;
+        private final long acksSaved;
+        private final long[] stateTransitions;
+        private final long[] inState;
+
+        private final LatencyHistogram.Snapshot rtt;
+        private final LatencyHistogram.Snapshot ackWait;
+        private final LatencyHistogram.Snapshot readWait;
+
+        // filled in by the TCB
+        int sendWindow = -1;
+        int receiveWindow = -1;
+        int congestionWindow = -1;
+        int slowStartThreshold = -1;
+        int bytesInFlight = -1;
+        long retransmissionTimeout = -1;
+
+        private Snapshot(ConnectionMetrics metrics) {
+            segmentsSent = metrics.segmentsSent.get();
+            bytesSent = metrics.bytesSent.get();
+            segmentsReceived = metrics.segmentsReceived.get();
+            bytesReceived = metrics.bytesReceived.get();
+            checksumFailures = metrics.checksumFailures.get();
+            retransmittedBytes = metrics.retransmittedBytes.get();
+            retransmissionTimeouts = metrics.retransmissionTimeouts.get();
+            fastRetransmits = metrics.fastRetransmits.get();
+            skippedRetransmissions = metrics.skippedRetransmissions.get();
+            acksSent = metrics.acksSent.get();
+            acksSaved = metrics.acksSaved.get();
+
+            retransmits = new long[metrics.retransmits.length];
+            for (int i = 0; i < retransmits.length; i++) {
+                retransmits[i] = metrics.retransmits[i].get();
+            }
+            stateTransitions = new long[STATES];
+            inState = new long[STATES];
+            for (int i = 0; i < STATES; i++) {
+                stateTransitions[i] = metrics.stateTransitions[i].get();
+                inState[i] = metrics.inState[i].get();
+            }
+
+            rtt = metrics.rtt.snapshot();
+            ackWait = metrics.ackWait.snapshot();
+            readWait = metrics.readWait.snapshot();
+        }
+
+        public long getSegmentsSent() {
+            return segmentsSent;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getSegmentsReceived() {
+            return segmentsReceived;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public long getChecksumFailures() {
+            return checksumFailures;
+        }
+
+        /**
+         * @return the number of segments resent in total
+         */
+        public long getRetransmits() {
+            long sum = 0;
+            for (long count : retransmits) {
+                sum += count;
+            }
+            return sum;
+        }
+
+        /**
+         * @param retry 0 for first retransmissions, 1 for second ones, and so on
+         * @return the number of times a segment was resent for the (retry + 1)'th time
+         */
+        public long getRetransmits(int retry) {
+            return (retry < 0 || retry >= retransmits.length) ? 0 : retransmits[retry];
+        }
+
+        public long getRetransmittedBytes() {
+            return retransmittedBytes;
+        }
+
+        public long getRetransmissionTimeouts() {
+            return retransmissionTimeouts;
+        }
+
+        public long getFastRetransmits() {
+            return fastRetransmits;
+        }
+
+        public long getSkippedRetransmissions() {
+            return skippedRetransmissions;
+        }
+
+        public long getAcksSent() {
+            return acksSent;
+        }
+
+        public long getAcksSaved() {
+            return acksSaved;
+        }
+
+        /**
+         * @param state
+         * @return the number of times the state was entered
+         */
+        public long getStateTransitions(TransmissionControlBlock.State state) {
+            return stateTransitions[state.ordinal()];
+        }
+
+        /**
+         * @param state
+         * @return the number of connections in the state, 0 for CLOSED
+         */
+        public long getConnections(TransmissionControlBlock.State state) {
+            return inState[state.ordinal()];
+        }
+
+        public LatencyHistogram.Snapshot getRtt() {
+            return rtt;
+        }
+
+        public LatencyHistogram.Snapshot getAckWait() {
+            return ackWait;
+        }
+
+        public LatencyHistogram.Snapshot getReadWait() {
+            return readWait;
+        }
+
+        public int getSendWindow() {
+            return sendWindow;
+        }
+
+        public int getReceiveWindow() {
+            return receiveWindow;
+        }
+
+        public int getCongestionWindow() {
+            return congestionWindow;
+        }
+
+        public int getSlowStartThreshold() {
+            return slowStartThreshold;
+        }
+
+        public int getBytesInFlight() {
+            return bytesInFlight;
+        }
+
+        /**
+         * @return the retransmission timeout in milliseconds
+         */
+        public long getRetransmissionTimeout() {
+            return retransmissionTimeout;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("sent ").append(segmentsSent).append(" segments ").append(bytesSent).append(" bytes | ");
+            sb.append("received ").append(segmentsReceived).append(" segments ").append(bytesReceived).append(" bytes | ");
+            sb.append("checksum failures ").append(checksumFailures).append(" | ");
+            sb.append("retransmits ").append(getRetransmits()).append(" (").append(retransmittedBytes).append(" bytes, ");
+            sb.append(retransmissionTimeouts).append(" timeouts, ").append(fastRetransmits).append(" fast, ");
+            sb.append(skippedRetransmissions).append(" skipped) | ");
+            sb.append("acks sent ").append(acksSent).append(" saved ").append(acksSaved).append(" | ");
+            if (sendWindow != -1) {
+                sb.append("snd.wnd ").append(sendWindow).append(" rcv.wnd ").append(receiveWindow);
+                sb.append(" cwnd ").append(congestionWindow).append(" ssthresh ").append(slowStartThreshold);
+                sb.append(" in flight ").append(bytesInFlight).append(" rto ").append(retransmissionTimeout).append(" ms | ");
+            }
+            sb.append("rtt ").append(rtt).append(" | ");
+            sb.append("ack wait ").append(ackWait).append(" | ");
+            sb.append("read wait ").append(readWait);
+            return sb.toString();
+        }
+    }
+}
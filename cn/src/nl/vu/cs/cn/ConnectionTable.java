@@ -0,0 +1,316 @@
+package nl.vu.cs.cn.tcp;
+
+import java.util.HashMap;
+
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.tcp.segment.OnSegmentArriveListener;
+import nl.vu.cs.cn.tcp.segment.Segment;
+import nl.vu.cs.cn.tcp.segment.SegmentReceiver;
+
+/**
+ * The connection table of a TCP stack. It owns the single receive loop of the IP
+ * stack, and hands every arriving segment to the connection it belongs to.
+ *
+ * Connections are identified by (local address, local port, foreign address, foreign port).
+ * Since there is one table per IP stack, the local address is always the address of
+ * that stack, and the remaining three fields are packed into a single long key.
+ * Segments that do not belong to a connection go to the listener of the destination
+ * port, if there is one, which registers the new connection in this table. Listeners
+ * are keyed by their local port alone.
+ */
+public class ConnectionTable implements OnSegmentArriveListener {
+
+    private static final String TAG = "ConnectionTable";
+
+    private static final int FIRST_EPHEMERAL_PORT = 3110;
+    private static final int LAST_EPHEMERAL_PORT = Short.MAX_VALUE;
+
+    private final IP ip;
+
+    private final ConnectionMap connections = new ConnectionMap();
+    private final ConnectionMap listeners = new ConnectionMap();
+    private final HashMap<Short, Integer> connectionsPerPort = new HashMap<Short, Integer>();    // local ports of the connections
+
+    private SegmentReceiver segmentReceiver;
+    private int nextEphemeralPort = FIRST_EPHEMERAL_PORT;
+
+    private static class Entry {
+        private final TransmissionControlBlock tcb;
+        private final OnSegmentArriveListener listener;
+
+        private Entry(TransmissionControlBlock tcb, OnSegmentArriveListener listener) {
+            this.tcb = tcb;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Map from connection or listener key to entry, which is looked up for every arriving segment.
+     * Connections come and go rarely compared to segments, so the map is copy-on-write:
+     * a lookup probes an immutable open addressing table without locking or boxing the
+     * key, and every change copies the arrays of the table, changes the copy and
+     * publishes it. Changes must be synchronized by the caller.
+     */
+    static class ConnectionMap {
+
+        static final int INITIAL_CAPACITY = 16;
+
+        private static final class Table {
+            private final long[] keys;
+            private final Entry[] entries;     // null for free slots
+            private final int size;
+
+            private Table(long[] keys, Entry[] entries, int size) {
+                this.keys = keys;
+                this.entries = entries;
+                this.size = size;
+            }
+        }
+
+        private volatile Table table = new Table(new long[INITIAL_CAPACITY], new Entry[INITIAL_CAPACITY], 0);
+
+        private Entry get(long key) {
+            Table t = table;
+            int slot = indexOf(t, key);
+            return (slot >= 0) ? t.entries[slot] : null;
+        }
+
+        /**
+         * @return the entry that was replaced, or null
+         */
+        private Entry put(long key, Entry entry) {
+            Table t = table;
+            int slot = indexOf(t, key);
+            if (slot >= 0) {
+                Entry previous = t.entries[slot];
+                Entry[] entries = t.entries.clone();
+                entries[slot] = entry;
+                table = new Table(t.keys, entries, t.size);
+                return previous;
+            }
+
+            // keep the table at most half full
+            long[] keys;
+            Entry[] entries;
+            if ((t.size + 1) * 2 > t.keys.length) {
+                keys = new long[t.keys.length * 2];
+                entries = new Entry[t.keys.length * 2];
+                for (int i = 0; i < t.keys.length; i++) {
+                    if (t.entries[i] != null) {
+                        insert(keys, entries, t.keys[i], t.entries[i]);
+                    }
+                }
+            } else {
+                keys = t.keys.clone();
+                entries = t.entries.clone();
+            }
+            insert(keys, entries, key, entry);
+            table = new Table(keys, entries, t.size + 1);
+            return null;
+        }
+
+        /**
+         * @return the entry that was removed, or null
+         */
+        private Entry remove(long key) {
+            Table t = table;
+            int slot = indexOf(t, key);
+            if (slot < 0) {
+                return null;
+            }
+
+            long[] keys = t.keys.clone();
+            Entry[] entries = t.entries.clone();
+            int mask = keys.length - 1;
+
+            // move later entries of the probe sequence into the hole, so lookups do not stop at it
+            int hole = slot;
+            for (int i = (slot + 1) & mask; entries[i] != null; i = (i + 1) & mask) {
+                int home = hash(keys[i]) & mask;
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    keys[hole] = keys[i];
+                    entries[hole] = entries[i];
+                    hole = i;
+                }
+            }
+            keys[hole] = 0;
+            entries[hole] = null;
+
+            table = new Table(keys, entries, t.size - 1);
+            return t.entries[slot];
+        }
+
+        private static int indexOf(Table t, long key) {
+            int mask = t.keys.length - 1;
+            for (int i = hash(key) & mask; t.entries[i] != null; i = (i + 1) & mask) {
+                if (t.keys[i] == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static void insert(long[] keys, Entry[] entries, long key, Entry entry) {
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (entries[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            entries[i] = entry;
+        }
+
+        private int size() {
+            return table.size;
+        }
+
+        private boolean isEmpty() {
+            return table.size == 0;
+        }
+
+        static int hash(long key) {
+            int h = (int) (key ^ (key >>> 32));
+            return h ^ (h >>> 16);
+        }
+    }
+
+    public ConnectionTable(IP ip) {
+        this.ip = ip;
+    }
+
+    /**
+     * Register a connection that knows its foreign socket (i.e. an active open).
+     * @param tcb
+     * @param listener handles the segments of this connection
+     */
+    public synchronized void register(TransmissionControlBlock tcb, OnSegmentArriveListener listener) {
+        if (connections.put(getKey(tcb), new Entry(tcb, listener)) == null) {
+            addPortUser(tcb.getLocalport(), 1);
+        }
+        tcb.setConnectionTable(this);
+        startReceiving();
+    }
+
+    /**
+     * Register a connection that waits for connections on its local port (i.e. a passive open).
+     * @param tcb
+     * @param listener handles the segments of this connection
+     * @return false if another connection is already listening on the port
+     */
+    public synchronized boolean listen(TransmissionControlBlock tcb, OnSegmentArriveListener listener) {
+        long key = getKey(tcb.getLocalport());
+        Entry entry = listeners.get(key);
+        if (entry != null && entry.tcb != tcb) {
+            return false;
+        }
+
+        listeners.put(key, new Entry(tcb, listener));
+        tcb.setConnectionTable(this);
+        startReceiving();
+        return true;
+    }
+
+    /**
+     * Remove a connection from the table. Once the table is empty, the receive loop stops.
+     * @param tcb
+     */
+    public synchronized void unregister(TransmissionControlBlock tcb) {
+        Entry listening = listeners.get(getKey(tcb.getLocalport()));
+        if (listening != null && listening.tcb == tcb) {
+            listeners.remove(getKey(tcb.getLocalport()));
+        }
+
+        if (tcb.hasForeignSocketInfo()) {
+            Entry entry = connections.get(getKey(tcb));
+            if (entry != null && entry.tcb == tcb) {
+                connections.remove(getKey(tcb));
+                addPortUser(tcb.getLocalport(), -1);
+            }
+        }
+
+        if (connections.isEmpty() && listeners.isEmpty() && segmentReceiver != null) {
+            segmentReceiver.stop();
+            segmentReceiver = null;
+        }
+    }
+
+    /**
+     * @return a local port that is not used by any connection in this table
+     */
+    public synchronized short allocatePort() {
+        int range = LAST_EPHEMERAL_PORT - FIRST_EPHEMERAL_PORT + 1;
+        for (int i = 0; i < range; i++) {
+            short port = (short) nextEphemeralPort;
+            nextEphemeralPort = (nextEphemeralPort == LAST_EPHEMERAL_PORT) ? FIRST_EPHEMERAL_PORT : nextEphemeralPort + 1;
+
+            if (!isPortInUse(port)) {
+                return port;
+            }
+        }
+        throw new IllegalStateException("No free local ports");
+    }
+
+    private boolean isPortInUse(short port) {
+        return listeners.get(getKey(port)) != null || connectionsPerPort.containsKey(port);
+    }
+
+    private void addPortUser(short port, int count) {
+        Integer users = connectionsPerPort.get(port);
+        int total = ((users == null) ? 0 : users) + count;
+        if (total > 0) {
+            connectionsPerPort.put(port, total);
+        } else {
+            connectionsPerPort.remove(port);
+        }
+    }
+
+    /**
+     * @return the number of connections in the table, including listening connections
+     */
+    public int size() {
+        return connections.size() + listeners.size();
+    }
+
+    @Override
+    public void onSegmentArrive(Segment segment) {
+        Entry entry = connections.get(getKey(segment.getDestinationPort(),
+                segment.getSourceAddress(), segment.getSourcePort()));
+
+        if (entry == null) {
+            entry = listeners.get(getKey(segment.getDestinationPort()));
+            if (entry == null) {
+                // this would be answered with a RESET, which is not supported
+                if (Log.V && Log.isLoggable(TAG, Log.VERBOSE)) {
+                    Log.v(TAG, "No connection for segment to port " + segment.getDestinationPort() + ". Dropping segment");
+                }
+                return;
+            }
+        }
+
+        entry.listener.onSegmentArrive(segment);
+    }
+
+    private void startReceiving() {
+        if (segmentReceiver == null) {
+            Log.d(TAG, "Starting SegmentReceiver: {}", Thread.currentThread().getId());
+            segmentReceiver = new SegmentReceiver(this, ip);
+            segmentReceiver.run();
+        }
+    }
+
+    private static long getKey(TransmissionControlBlock tcb) {
+        return getKey(tcb.getLocalport(), tcb.getForeignAddr().getAddress(), tcb.getForeignPort());
+    }
+
+    static long getKey(short localPort, int foreignAddr, short foreignPort) {
+        return ((long) foreignAddr << 32) | ((foreignPort & 0xffffL) << 16) | (localPort & 0xffffL);
+    }
+
+    /**
+     * @return the key of the listener on localPort
+     */
+    private static long getKey(short localPort) {
+        return localPort & 0xffffL;
+    }
+}
@@ -0,0 +1,32 @@
+package nl.vu.cs.cn;
+
+import java.io.PrintStream;
+
+/**
+ * Writes log messages to a stream, System.err by default. For running the stack
+ * outside of Android, where android.util.Log is not available.
+ */
+public class ConsoleLogAppender implements Log.Appender {
+
+    private static final char[] LEVELS = { '?', '?', 'V', 'D', 'I', 'W', 'E' };
+
+    private final PrintStream out;
+
+    public ConsoleLogAppender() {
+        this(System.err);
+    }
+
+    public ConsoleLogAppender(PrintStream out) {
+        this.out = out;
+    }
+
+    public void append(int level, String tag, long timeMillis, String msg, Throwable tr) {
+        char letter = (level >= 0 && level < LEVELS.length) ? LEVELS[level] : 'E';
+        synchronized (out) {
+            out.println(letter + " " + tag + " " + timeMillis + " | " + msg);
+            if (tr != null) {
+                tr.printStackTrace(out);
+            }
+        }
+    }
+}
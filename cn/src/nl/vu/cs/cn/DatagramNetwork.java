@@ -0,0 +1,257 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Carries the packets of IP stacks over UDP on the loopback interface using NIO,
+ * as an alternative to the native layer.
+ *
+ * As with the native layer, every virtual address 192.168.0.x gets its own UDP port
+ * on 127.0.0.1, here basePort + x. Every datagram holds one packet: a header with the
+ * protocol and id, followed by the packet data. The source address is derived
+ * from the port the datagram was sent from.
+ *
+ * All stacks created by one network share a single selector thread. When it wakes
+ * up, it drains every ready channel completely before selecting again, and hands
+ * the packets to the inbound queue of their stack. Sends go straight to the channel
+ * from the calling thread, through a direct buffer per stack.
+ */
+public class DatagramNetwork {
+
+    public static final int DEFAULT_BASE_PORT = 10000;
+
+    private static final String TAG = "DatagramNetwork";
+
+    private static final int HEADER_SIZE = 8;       // protocol and id, both 32 bits
+    private static final int MAX_DATAGRAM_SIZE = HEADER_SIZE + PacketPool.BUFFER_SIZE;
+
+    private final int basePort;
+    private final InetAddress loopback;
+    private final InetSocketAddress[] socketAddresses = new InetSocketAddress[256];
+
+    private Selector selector;
+    private Thread selectorThread;
+    private final ConcurrentLinkedQueue<Endpoint> pendingRegistrations = new ConcurrentLinkedQueue<Endpoint>();
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+
+    public DatagramNetwork() throws IOException {
+        this(DEFAULT_BASE_PORT);
+    }
+
+    /**
+     * @param basePort virtual address 192.168.0.x uses UDP port basePort + x
+     * @throws IOException if the loopback address cannot be resolved
+     */
+    public DatagramNetwork(int basePort) throws IOException {
+        this.basePort = basePort;
+        loopback = InetAddress.getByName("127.0.0.1");
+    }
+
+    /**
+     * @return a transport for a new IP stack on this network
+     */
+    public IpTransport createTransport() {
+        return new Endpoint();
+    }
+
+    /**
+     * Create an IP stack on this network.
+     * @param address a virtual address 1-254
+     * @return the stack
+     * @throws IOException if the UDP port of the address cannot be bound
+     */
+    public IP createStack(int address) throws IOException {
+        return new IP(address, createTransport());
+    }
+
+    /**
+     * Stop the selector thread. Transports that are still open stop receiving.
+     */
+    public synchronized void close() {
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error while closing selector", e);
+            }
+            selector = null;
+            selectorThread = null;
+        }
+    }
+
+    private static int getLastOctet(int address) {
+        // "host" order is little-endian, so the last octet is the highest byte
+        return (address >>> 24) & 0xff;
+    }
+
+    private static int getVirtualAddress(int lastOctet) {
+        return 192 | (168 << 8) | (lastOctet << 24);
+    }
+
+    private synchronized InetSocketAddress getSocketAddress(int address) {
+        int lastOctet = getLastOctet(address);
+        if (socketAddresses[lastOctet] == null) {
+            socketAddresses[lastOctet] = new InetSocketAddress(loopback, basePort + lastOctet);
+        }
+        return socketAddresses[lastOctet];
+    }
+
+    private synchronized void register(Endpoint endpoint) throws IOException {
+        if (selector == null) {
+            selector = Selector.open();
+            final Selector s = selector;
+            selectorThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runSelector(s);
+                }
+            }, TAG);
+            selectorThread.setDaemon(true);
+            selectorThread.start();
+        }
+
+        // channels can only be registered while the selector is not selecting
+        pendingRegistrations.offer(endpoint);
+        selector.wakeup();
+    }
+
+    private void runSelector(Selector selector) {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+
+                Endpoint endpoint;
+                while ((endpoint = pendingRegistrations.poll()) != null) {
+                    if (endpoint.channel.isOpen()) {
+                        endpoint.channel.register(selector, SelectionKey.OP_READ, endpoint);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        drain((Endpoint) key.attachment());
+                    }
+                }
+            } catch (IOException e) {
+                if (selector.isOpen()) {
+                    Log.w(TAG, "Error in selector loop", e);
+                }
+            } catch (RuntimeException e) {
+                // e.g. ClosedSelectorException when the network is closed
+                if (selector.isOpen()) {
+                    Log.e(TAG, "Error in selector loop", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receive all datagrams that are waiting on the channel of an endpoint.
+     */
+    private void drain(Endpoint endpoint) {
+        while (true) {
+            receiveBuffer.clear();
+            InetSocketAddress from;
+            try {
+                from = (InetSocketAddress) endpoint.channel.receive(receiveBuffer);
+            } catch (IOException e) {
+                Log.w(TAG, "Error while receiving datagram", e);
+                return;
+            }
+            if (from == null) {
+                return;
+            }
+
+            // ignore datagrams that do not come from a virtual address
+            int lastOctet = from.getPort() - basePort;
+            receiveBuffer.flip();
+            if (receiveBuffer.remaining() < HEADER_SIZE || lastOctet < 1 || lastOctet > 254) {
+                continue;
+            }
+
+            IP.Packet packet = PacketPool.getInstance().acquire();
+            packet.protocol = receiveBuffer.getInt();
+            packet.id = receiveBuffer.getInt();
+            packet.length = receiveBuffer.remaining();
+            packet.source = getVirtualAddress(lastOctet);
+            packet.destination = endpoint.address;
+            receiveBuffer.get(packet.data, 0, packet.length);
+
+            endpoint.inbound.offer(packet);
+        }
+    }
+
+    private class Endpoint implements IpTransport {
+
+        private final PacketQueue inbound = new PacketQueue();
+        private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        private DatagramChannel channel;
+        private int address;
+
+        @Override
+        public void init(IP.IpAddress localAddress) throws IOException {
+            address = localAddress.getAddress();
+
+            channel = DatagramChannel.open();
+            try {
+                channel.socket().bind(getSocketAddress(address));
+                channel.configureBlocking(false);
+                register(this);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int send(IP.Packet packet) throws IOException {
+            if (packet.length > PacketPool.BUFFER_SIZE) {
+                throw new IOException("Packet too large: " + packet.length + " bytes");
+            }
+
+            InetSocketAddress target = getSocketAddress(packet.destination);
+            synchronized (sendBuffer) {
+                sendBuffer.clear();
+                sendBuffer.putInt(packet.protocol);
+                sendBuffer.putInt(packet.id);
+                sendBuffer.put(packet.data, 0, packet.length);
+                sendBuffer.flip();
+
+                // a full socket buffer drops the datagram, like a lossy network would
+                channel.send(sendBuffer, target);
+            }
+            return packet.length;
+        }
+
+        @Override
+        public void receive(IP.Packet packet, int timeout) throws IOException, InterruptedException {
+            inbound.receive(packet, timeout);
+        }
+
+        @Override
+        public PacketQueue getInboundQueue() {
+            return inbound;
+        }
+
+        @Override
+        public void close() {
+            inbound.close();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error while closing channel", e);
+            }
+        }
+    }
+}
@@ -1,4 +1,4 @@
-package cn.src.nl.vu.cs.cn;
+package nl.vu.cs.cn;
 
 import java.io.IOException;
 
@@ -20,6 +20,10 @@ import java.io.IOException;
  * <br/>
  * Finally, note that this IP layer does NOT handle any fragmentation, so packets
  * must be smaller than 8100 bytes to be safely transmitted without truncation.
+ * <br/>
+ * Instead of the native layer, packets can also be carried by an IpTransport,
+ * e.g. an InMemoryNetwork. The native library is then never loaded. Use send()
+ * and receive() to work with either.
  *
  * @author nick &lt;palmer@cs.vu.nl&gt;
  */
@@ -41,6 +45,18 @@ public class IP {
     private int sending_socket;
     /** The native receiving socket. */
     private int receiving_socket;
+    /** The transport carrying the packets, or null if the native layer is used. */
+    private final IpTransport transport;
+
+    /** Packets received by the native layer, filled by a receive thread on first use. */
+    private PacketQueue nativeInbound;
+    /** Where sent and received packets are written to, or null. */
+    private volatile PacketCapture capture;
+    /** Timeout of a single native receive call in seconds, bounds how long closing takes. */
+    private static final int NATIVE_RECEIVE_TIMEOUT = 1;
+
+    /** Whether the native library has been loaded. */
+    private static boolean nativeLoaded;
 
     public static class IpAddress {
     	/**
@@ -123,9 +139,14 @@ public class IP {
     	}
     }
 
-    // Load the native library.
-    static {
-        System.loadLibrary("cnpracticum");
+    /**
+     * Load the native library, the first time a native IP stack is created.
+     */
+    private static synchronized void loadNativeLibrary() {
+        if (!nativeLoaded) {
+            System.loadLibrary("cnpracticum");
+            nativeLoaded = true;
+        }
     }
 
     /**
@@ -136,12 +157,32 @@ public class IP {
      * @throws IOException if initialization fails.
      */
     public IP(int address) throws IOException {
+        this(address, null);
+    }
+
+    /**
+     * Construct a virtual IP interface with the given address number, whose
+     * packets are carried by transport.
+     *
+     * @param address a virtual address 1-254.
+     * @param transport the transport to use, or null to use the native layer.
+     * @throws IOException if initialization fails.
+     */
+    public IP(int address, IpTransport transport) throws IOException {
         if (address < 1 || address > 254) {
             throw new IllegalArgumentException("Invalid address. 1-254 only.");
         }
 
+        this.address = address;
         ipAddress = IpAddress.getAddress("192.168.0." + address);
-        ip_init(address);
+        this.transport = transport;
+
+        if (transport == null) {
+            loadNativeLibrary();
+            ip_init(address);
+        } else {
+            transport.init(ipAddress);
+        }
     }
 
     /**
@@ -203,6 +244,117 @@ public class IP {
         }
     }
 
+    /**
+     * Sends the requested packet using the transport of this stack.
+     *
+     * @param p the packet to send
+     * @return the number of bytes of the data actually sent.
+     * @throws IOException if sending fails
+     */
+    public int send(Packet p) throws IOException {
+        PacketCapture capturing = capture;
+        if (capturing != null) {
+            capturing.capture(p, ipAddress.getAddress());
+        }
+        return (transport == null) ? ip_send(p) : transport.send(p);
+    }
+
+    /**
+     * Receives a packet using the transport of this stack, see ip_receive_timeout.
+     *
+     * @param p the received packet
+     * @param timeout the timeout in seconds, or zero to wait without a timeout
+     * @throws IOException if receiving fails
+     * @throws InterruptedException if a timeout occurred
+     */
+    public void receive(Packet p, int timeout) throws IOException, InterruptedException {
+        if (transport == null) {
+            ip_receive_timeout(p, timeout);
+            PacketCapture capturing = capture;
+            if (capturing != null) {
+                capturing.capture(p, p.source);
+            }
+        } else {
+            transport.receive(p, timeout);
+        }
+    }
+
+    /**
+     * Returns the queue that received packets are added to, so they can be
+     * handled as they arrive instead of by a thread blocked in receive().
+     * The native layer can only be read by blocking, so for a native stack
+     * this starts a thread that moves packets from the native layer to the queue.
+     *
+     * @return the inbound queue of this stack
+     */
+    public synchronized PacketQueue getInboundQueue() {
+        if (transport != null) {
+            return transport.getInboundQueue();
+        }
+
+        if (nativeInbound == null) {
+            final PacketQueue queue = new PacketQueue();
+            Thread pump = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receiveNative(queue);
+                }
+            }, "IP receiver " + ipAddress);
+            pump.setDaemon(true);
+            queue.setCapture(capture);
+            pump.start();
+            nativeInbound = queue;
+        }
+        return nativeInbound;
+    }
+
+    private void receiveNative(PacketQueue queue) {
+        while (!queue.isClosed()) {
+            Packet packet = PacketPool.getInstance().acquire();
+            try {
+                ip_receive_timeout(packet, NATIVE_RECEIVE_TIMEOUT);
+            } catch (InterruptedException e) {
+                // timeout, check if the queue was closed
+                PacketPool.getInstance().release(packet);
+                continue;
+            } catch (IOException e) {
+                Log.w("IP", "Error while receiving packet", e);
+                PacketPool.getInstance().release(packet);
+                continue;
+            }
+            queue.offer(packet);
+        }
+    }
+
+    /**
+     * Write the packets this stack sends and receives to a capture, or stop
+     * capturing if capture is null. Received packets are captured when they
+     * arrive, before they wait in the inbound queue.
+     *
+     * @param capture
+     */
+    public synchronized void setCapture(PacketCapture capture) {
+        this.capture = capture;
+        if (transport != null) {
+            transport.getInboundQueue().setCapture(capture);
+        } else if (nativeInbound != null) {
+            nativeInbound.setCapture(capture);
+        }
+    }
+
+    /**
+     * Releases the transport of this stack. The native layer has no way
+     * to be shut down, so for a native stack this only stops moving packets
+     * to the inbound queue, within NATIVE_RECEIVE_TIMEOUT seconds.
+     */
+    public synchronized void close() {
+        if (transport != null) {
+            transport.close();
+        } else if (nativeInbound != null) {
+            nativeInbound.close();
+        }
+    }
+
     /**
      * Initializes the underlying native IP layer.
      * @param address the last octet of the virtual IP Address 1-254.
@@ -1,5 +1,4 @@
 
-
 /**
  * Created by haritha on 9/5/17.
  */
@@ -11,21 +10,32 @@ import nl.vu.cs.cn.tcp.segment.Segment;
 public abstract class IPUtil {
 
     /**
-     * Create a new IP packet that wraps the TCP segment and
-     * sets the destination address.
+     * Encode the TCP segment into a packet from the packet pool, and
+     * set the destination address. Release the packet to the pool once
+     * it is not needed anymore.
      *
      * @param segment
      * @return
      */
     public static IP.Packet getPacket(Segment segment){
-        byte[] data = segment.encode();
-        IP.Packet packet = new IP.Packet(
-                segment.getDestinationAddr().getAddress(),
-                IP.TCP_PROTOCOL,
-                0,
-                data,
-                data.length);
+        return getPacket(segment, PacketPool.getInstance().acquire());
+    }
+
+    /**
+     * Encode the TCP segment into the given packet and set the destination
+     * address. Segment data that already sits right behind the header in the
+     * packet buffer is not copied.
+     *
+     * @param segment
+     * @param packet a packet with a buffer of at least PacketPool.BUFFER_SIZE bytes
+     * @return the packet
+     */
+    public static IP.Packet getPacket(Segment segment, IP.Packet packet){
+        packet.destination = segment.getDestinationAddr().getAddress();
+        packet.protocol = IP.TCP_PROTOCOL;
+        packet.id = 0;
+        packet.length = segment.encode(packet.data, 0);
 
         return packet;
     }
-}
\ No newline at end of file
+}
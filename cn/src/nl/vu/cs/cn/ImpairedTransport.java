@@ -0,0 +1,203 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a transport and makes its outgoing packets suffer like on a real network:
+ * packets are lost, delayed with jitter, and reordered. Wrap the transports of an
+ * InMemoryNetwork with it to test or measure the stack under bad conditions.
+ *
+ * The random choices come from a seeded generator, so a run with one connection is
+ * repeatable. Delayed packets are copied and sent by a background thread when they
+ * are due.
+ */
+public class ImpairedTransport implements IpTransport {
+
+    private static final String TAG = "ImpairedTransport";
+
+    private final IpTransport transport;
+    private final Random random;
+
+    private volatile double loss;           // probability that a packet is dropped
+    private volatile double reorder;        // probability that a packet is held back, so later packets pass it
+    private volatile long delayNanos;
+    private volatile long jitterNanos;      // each packet gets an extra delay between 0 and this
+    private volatile long reorderNanos;     // extra delay of a packet that is held back
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong reordered = new AtomicLong();
+
+    private final DelayQueue<Pending> pending = new DelayQueue<Pending>();
+    private Thread sender;
+
+    private static class Pending implements Delayed {
+        final IP.Packet packet;
+        final long due;             // System.nanoTime() when the packet is sent
+
+        Pending(IP.Packet packet, long due) {
+            this.packet = packet;
+            this.due = due;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            long difference = due - ((Pending) other).due;
+            return (difference < 0) ? -1 : (difference > 0) ? 1 : 0;
+        }
+    }
+
+    /**
+     * @param transport the transport that carries the packets that get through
+     * @param seed seed of the random choices
+     */
+    public ImpairedTransport(IpTransport transport, long seed) {
+        this.transport = transport;
+        random = new Random(seed);
+    }
+
+    /**
+     * @param loss probability between 0 and 1 that a packet is dropped
+     */
+    public void setLoss(double loss) {
+        this.loss = loss;
+    }
+
+    /**
+     * @param delayMillis the delay of every packet
+     * @param jitterMillis the largest extra delay, each packet gets a random part of it
+     */
+    public void setDelay(double delayMillis, double jitterMillis) {
+        delayNanos = (long) (delayMillis * 1000 * 1000);
+        jitterNanos = (long) (jitterMillis * 1000 * 1000);
+    }
+
+    /**
+     * @param reorder probability between 0 and 1 that a packet is held back
+     * @param extraDelayMillis how long it is held back, packets sent in that time arrive before it
+     */
+    public void setReorder(double reorder, double extraDelayMillis) {
+        this.reorder = reorder;
+        reorderNanos = (long) (extraDelayMillis * 1000 * 1000);
+    }
+
+    @Override
+    public void init(IP.IpAddress localAddress) throws IOException {
+        transport.init(localAddress);
+
+        sender = new Thread(new Runnable() {
+            public void run() {
+                sendPending();
+            }
+        }, "ImpairedTransport " + localAddress);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @Override
+    public int send(IP.Packet packet) throws IOException {
+        sent.incrementAndGet();
+
+        double lossDraw, reorderDraw, jitterDraw;
+        synchronized (random) {
+            lossDraw = random.nextDouble();
+            reorderDraw = random.nextDouble();
+            jitterDraw = random.nextDouble();
+        }
+
+        if (lossDraw < loss) {
+            dropped.incrementAndGet();
+            return packet.length;
+        }
+
+        long delay = delayNanos + (long) (jitterDraw * jitterNanos);
+        if (reorderDraw < reorder) {
+            reordered.incrementAndGet();
+            delay += reorderNanos;
+        }
+        if (delay <= 0) {
+            return transport.send(packet);
+        }
+
+        // the caller reuses the packet, so keep a copy until it is due
+        IP.Packet copy = PacketPool.getInstance().acquire();
+        if (copy.data.length < packet.length) {
+            copy.data = new byte[packet.length];
+        }
+        System.arraycopy(packet.data, 0, copy.data, 0, packet.length);
+        copy.source = packet.source;
+        copy.destination = packet.destination;
+        copy.protocol = packet.protocol;
+        copy.id = packet.id;
+        copy.length = packet.length;
+
+        pending.put(new Pending(copy, System.nanoTime() + delay));
+        return packet.length;
+    }
+
+    private void sendPending() {
+        while (!transport.getInboundQueue().isClosed()) {
+            Pending due;
+            try {
+                due = pending.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (due == null) {
+                continue;
+            }
+
+            try {
+                transport.send(due.packet);
+            } catch (IOException e) {
+                Log.w(TAG, "Error while sending delayed packet", e);
+            } finally {
+                PacketPool.getInstance().release(due.packet);
+            }
+        }
+    }
+
+    @Override
+    public void receive(IP.Packet packet, int timeout) throws IOException, InterruptedException {
+        transport.receive(packet, timeout);
+    }
+
+    @Override
+    public PacketQueue getInboundQueue() {
+        return transport.getInboundQueue();
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    /**
+     * @return the number of packets handed to this transport
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return the number of packets dropped on purpose
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of packets held back to be reordered
+     */
+    public long getReordered() {
+        return reordered.get();
+    }
+}
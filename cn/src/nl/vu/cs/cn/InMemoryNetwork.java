@@ -0,0 +1,130 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A virtual network inside a single process. IP stacks created on the same network
+ * exchange packets through lock-free queues, without the native layer or sockets.
+ *
+ * Every stack has an inbound PacketQueue. Sending copies the packet into a pooled packet
+ * and appends it to the queue of the destination, and receiving copies it out again,
+ * so neither side allocates in steady state. Packets for addresses that are not
+ * on the network are dropped, like the native layer does.
+ *
+ * Each stack should have a single receiving thread.
+ */
+public class InMemoryNetwork {
+
+    private static final String TAG = "InMemoryNetwork";
+
+    // endpoints by the last octet of their 192.168.0.x address
+    private final AtomicReferenceArray<Endpoint> endpoints = new AtomicReferenceArray<Endpoint>(256);
+
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @return a transport for a new IP stack on this network
+     */
+    public IpTransport createTransport() {
+        return new Endpoint();
+    }
+
+    /**
+     * Create an IP stack on this network.
+     * @param address a virtual address 1-254, that is not used on this network yet
+     * @return the stack
+     * @throws IOException if the address is already in use
+     */
+    public IP createStack(int address) throws IOException {
+        return new IP(address, createTransport());
+    }
+
+    /**
+     * @return the number of packets delivered to an inbound queue
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * @return the number of packets dropped because the destination was not on this network
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private static int getIndex(int address) {
+        // "host" order is little-endian, so the last octet is the highest byte
+        return (address >>> 24) & 0xff;
+    }
+
+    private class Endpoint implements IpTransport {
+
+        private final PacketQueue inbound = new PacketQueue();
+        private int address;
+
+        @Override
+        public void init(IP.IpAddress localAddress) throws IOException {
+            address = localAddress.getAddress();
+            if (!endpoints.compareAndSet(getIndex(address), null, this)) {
+                throw new IOException("Address " + localAddress + " is already in use");
+            }
+        }
+
+        @Override
+        public int send(IP.Packet packet) throws IOException {
+            if (inbound.isClosed()) {
+                throw new IOException("Transport is closed");
+            }
+
+            Endpoint destination = endpoints.get(getIndex(packet.destination));
+            if (destination == null || destination.address != packet.destination) {
+                dropped.incrementAndGet();
+                return packet.length;
+            }
+
+            IP.Packet copy = PacketPool.getInstance().acquire();
+            if (copy.data.length < packet.length) {
+                copy.data = new byte[packet.length];
+            }
+            System.arraycopy(packet.data, 0, copy.data, 0, packet.length);
+            copy.source = address;
+            copy.destination = packet.destination;
+            copy.protocol = packet.protocol;
+            copy.id = packet.id;
+            copy.length = packet.length;
+
+            if (destination.inbound.offer(copy)) {
+                delivered.incrementAndGet();
+            } else {
+                dropped.incrementAndGet();
+            }
+            return packet.length;
+        }
+
+        @Override
+        public void receive(IP.Packet packet, int timeout) throws IOException, InterruptedException {
+            inbound.receive(packet, timeout);
+        }
+
+        @Override
+        public PacketQueue getInboundQueue() {
+            return inbound;
+        }
+
+        @Override
+        public void close() {
+            if (inbound.isClosed()) {
+                return;
+            }
+            inbound.close();
+            endpoints.compareAndSet(getIndex(address), this, null);
+            if (Log.V && Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Closed endpoint " + IP.IpAddress.htoa(address));
+            }
+        }
+    }
+}
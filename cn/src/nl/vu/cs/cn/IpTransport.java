@@ -0,0 +1,47 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+
+/**
+ * Carries the packets of an IP stack, as an alternative to the native layer.
+ * The methods follow the semantics of the corresponding native methods of IP.
+ */
+public interface IpTransport {
+
+    /**
+     * Called once by the IP stack that uses this transport.
+     * @param localAddress the virtual address of the stack
+     * @throws IOException if initialization fails
+     */
+    public void init(IP.IpAddress localAddress) throws IOException;
+
+    /**
+     * Send a packet to packet.destination. The packet can be reused by the
+     * caller as soon as this returns.
+     * @param packet
+     * @return the number of bytes of the data actually sent
+     * @throws IOException if sending fails
+     */
+    public int send(IP.Packet packet) throws IOException;
+
+    /**
+     * Receive a packet into the given packet. The data array of the packet is
+     * reused if it is large enough, and replaced otherwise.
+     * @param packet
+     * @param timeout the timeout in seconds, or zero to wait without a timeout
+     * @throws IOException if receiving fails
+     * @throws InterruptedException if a timeout occurred
+     */
+    public void receive(IP.Packet packet, int timeout) throws IOException, InterruptedException;
+
+    /**
+     * @return the queue that received packets are added to, which receive() takes them from
+     */
+    public PacketQueue getInboundQueue();
+
+    /**
+     * Release the resources of this transport. Threads blocked in receive()
+     * return with an InterruptedException.
+     */
+    public void close();
+}
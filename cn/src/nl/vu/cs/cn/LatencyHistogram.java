@@ -0,0 +1,175 @@
+package nl.vu.cs.cn.tcp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets whose width grows with the value, like HdrHistogram:
+ * each power of two is split into SUB_BUCKETS / 2 equal buckets, so a percentile is
+ * off by at most 1 / (SUB_BUCKETS / 2) of its value (about 3%) over the whole range,
+ * from nanoseconds to minutes.
+ *
+ * The buckets are allocated up front, so record() allocates nothing and takes no
+ * locks; it can be called from any thread. A snapshot copies the buckets, and is
+ * not exact while values are being recorded.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    /** largest value that is told apart, larger values are counted as this (about 18 minutes in ns) */
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private final LatencyHistogram parent;
+
+    public LatencyHistogram() {
+        this(null);
+    }
+
+    /**
+     * @param parent a histogram that every value is recorded in as well, or null
+     */
+    public LatencyHistogram(LatencyHistogram parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @param value a duration in nanoseconds, negative values are ignored
+     */
+    public void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        value = Math.min(value, MAX_VALUE);
+
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+
+        long highest;
+        while (value > (highest = max.get()) && !max.compareAndSet(highest, value)) {
+            // another thread raised the maximum, compare again
+        }
+
+        if (parent != null) {
+            parent.record(value);
+        }
+    }
+
+    /**
+     * Values below SUB_BUCKETS have a bucket each. Above that the bucket is found from
+     * the highest bit of the value and the SUB_BUCKET_BITS - 1 bits below it.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS + 1;
+        int sub = (int) (value >>> shift) - HALF_SUB_BUCKETS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the highest value that is counted in the bucket
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long sub = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @return a copy of the current counts
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long copied = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            copied += copy[i];
+        }
+        return new Snapshot(copy, copied, total.get(), max.get());
+    }
+
+    /**
+     * The counts of a histogram at one moment.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean in nanoseconds, or 0 if nothing was recorded
+         */
+        public double getMean() {
+            return (count == 0) ? 0 : (double) total / count;
+        }
+
+        /**
+         * @return the largest value recorded, in nanoseconds
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return a value that at least that percentage of the recorded values is
+         * smaller than or equal to, in nanoseconds, or 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long wanted = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "n " + count
+                    + " mean " + micros(getMean())
+                    + " p50 " + micros(getValueAtPercentile(50))
+                    + " p99 " + micros(getValueAtPercentile(99))
+                    + " p99.9 " + micros(getValueAtPercentile(99.9))
+                    + " max " + micros(max) + " us";
+        }
+
+        private static long micros(double nanos) {
+            return Math.round(nanos / 1000);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package nl.vu.cs.cn.tcp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.tcp.segment.OnSegmentArriveListener;
+import nl.vu.cs.cn.tcp.segment.Segment;
+import nl.vu.cs.cn.tcp.segment.SegmentHandler;
+
+/**
+ * The passive open side of a listening port.
+ *
+ * Every SYN that arrives on the port creates a new connection in the SYN RECEIVED
+ * state, which is registered in the connection table under its own foreign socket.
+ * Connections wait in the SYN queue until the handshake completes, after which they
+ * move to the accept queue, where accept() picks them up.
+ *
+ * Both queues are bounded. A SYN that arrives while either queue is full is dropped
+ * (the client retransmits it), and a connection that completes while the accept
+ * queue is full is closed.
+ */
+public class ListenQueue implements OnSegmentArriveListener {
+
+    public static final int DEFAULT_BACKLOG = 16;           // completed connections waiting for accept()
+    public static final int DEFAULT_SYN_BACKLOG = 64;       // connections in the SYN RECEIVED state
+
+    private String TAG = "ListenQueue";
+
+    private final IP ip;
+    private final TransmissionControlBlock tcb;             // the listening connection
+    private final ConnectionTable connectionTable;
+
+    private final int backlog;
+    private final int synBacklog;
+
+    private final ArrayList<TransmissionControlBlock> synQueue = new ArrayList<TransmissionControlBlock>();
+    private final LinkedList<TransmissionControlBlock> acceptQueue = new LinkedList<TransmissionControlBlock>();
+    private boolean closed;
+
+    private long synQueueDrops;
+    private long acceptQueueDrops;
+
+    /**
+     * @param ip
+     * @param tcb the listening connection, its local socket should be set
+     * @param connectionTable the table in which new connections are registered
+     * @param backlog maximum number of completed connections waiting for accept()
+     * @param synBacklog maximum number of connections in the SYN RECEIVED state
+     */
+    public ListenQueue(IP ip, TransmissionControlBlock tcb, ConnectionTable connectionTable, int backlog, int synBacklog) {
+        if (backlog < 1 || synBacklog < 1) {
+            throw new IllegalArgumentException("Backlog must be at least 1");
+        }
+
+        this.ip = ip;
+        this.tcb = tcb;
+        this.connectionTable = connectionTable;
+        this.backlog = backlog;
+        this.synBacklog = synBacklog;
+
+        TAG += " [" + tcb.getLocalport() + "]";
+    }
+
+    @Override
+    public void onSegmentArrive(Segment segment) {
+        // segments of known connections never get here, so this can only be the start of a new one
+        if (segment.isRst()) {
+            Log.v(TAG, "onSegmentArrive(RST): state is LISTEN, RST is ignored");
+            return;
+        } else if (segment.isAck()) {
+            // this would be answered with a RESET, which is not supported
+            Log.w(TAG, "onSegmentArrive(): unexpected ACK in LISTEN state. Ignoring");
+            return;
+        } else if (!segment.isSyn()) {
+            Log.w(TAG, "onSegmentArrive(): expected SYN in LISTEN state. Ignoring");
+            return;
+        } else if (!segment.hasValidChecksum()) {
+            Log.v(TAG, "Received SYN with invalid checksum. Dropping segment");
+            tcb.getMetrics().checksumFailures.increment();
+            return;
+        }
+
+        TransmissionControlBlock child;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (synQueue.size() >= synBacklog) {
+                synQueueDrops++;
+                Log.w(TAG, "SYN queue full, dropping SYN from {}:{}", segment.getSourceAddr(), segment.getSourcePort());
+                return;
+            }
+            if (acceptQueue.size() >= backlog) {
+                acceptQueueDrops++;
+                Log.w(TAG, "Accept queue full, dropping SYN from {}:{}", segment.getSourceAddr(), segment.getSourcePort());
+                return;
+            }
+
+            child = new TransmissionControlBlock(ip, true, tcb.getMetrics().getParent());
+            child.setLocalSocketInfo(tcb.getLocalAddr(), tcb.getLocalport());
+            child.setForeignSocketInfo(segment.getSourceAddr(), segment.getSourcePort());
+            child.setListenQueue(this);
+            // connections inherit the settings of the listening socket
+            child.setReceiveBufferSize(tcb.getReceiveBufferSize());
+            child.setSendBufferSize(tcb.getSendBufferSize());
+            child.setSackPermitted(tcb.isSackPermitted());
+            child.setWindowScalePermitted(tcb.isWindowScalePermitted());
+            child.enterState(TransmissionControlBlock.State.LISTEN);
+            synQueue.add(child);
+        }
+
+        // handle the SYN outside of the queue lock: the child calls back into this queue
+        // with its own lock held when it changes state
+        SegmentHandler handler = new SegmentHandler(child, child.getSegmentSender());
+        connectionTable.register(child, handler);
+        handler.onSegmentArrive(segment);
+    }
+
+    /**
+     * Called by a connection of this queue when it enters the ESTABLISHED state.
+     * @param child
+     */
+    void onEstablished(TransmissionControlBlock child) {
+        synchronized (this) {
+            if (!synQueue.remove(child)) {
+                return;
+            }
+
+            if (!closed && acceptQueue.size() < backlog) {
+                acceptQueue.add(child);
+                notifyAll();
+                return;
+            }
+            acceptQueueDrops++;
+        }
+
+        Log.w(TAG, "Accept queue full, closing connection with {}:{}", child.getForeignAddr(), child.getForeignPort());
+        child.setListenQueue(null);
+        child.enterState(TransmissionControlBlock.State.CLOSED);
+    }
+
+    /**
+     * Called by a connection of this queue when it is closed before it was accepted.
+     * @param child
+     */
+    synchronized void onClosed(TransmissionControlBlock child) {
+        if (!synQueue.remove(child)) {
+            acceptQueue.remove(child);
+        }
+    }
+
+    /**
+     * Take a completed connection from the accept queue. Blocks until one is available.
+     * @return the connection, or null if the queue was closed while waiting
+     */
+    public synchronized TransmissionControlBlock accept() {
+        while (acceptQueue.isEmpty() && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // ignore, check the queue again
+            }
+        }
+
+        if (closed) {
+            return null;
+        }
+
+        TransmissionControlBlock child = acceptQueue.removeFirst();
+        child.setListenQueue(null);
+        return child;
+    }
+
+    /**
+     * Stop listening. Threads blocked in accept() return null, and connections that
+     * were not accepted yet are closed.
+     */
+    public void close() {
+        ArrayList<TransmissionControlBlock> pending;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+
+            pending = new ArrayList<TransmissionControlBlock>(synQueue);
+            pending.addAll(acceptQueue);
+            synQueue.clear();
+            acceptQueue.clear();
+        }
+
+        // a connection in the accept queue may have received data already, but since
+        // sending RESETs is not supported it can only be dropped
+        for (TransmissionControlBlock child : pending) {
+            child.setListenQueue(null);
+            child.enterState(TransmissionControlBlock.State.CLOSED);
+        }
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getSynBacklog() {
+        return synBacklog;
+    }
+
+    /**
+     * @return the number of connections in the SYN RECEIVED state
+     */
+    public synchronized int getSynQueueSize() {
+        return synQueue.size();
+    }
+
+    /**
+     * @return the number of completed connections waiting for accept()
+     */
+    public synchronized int getAcceptQueueSize() {
+        return acceptQueue.size();
+    }
+
+    /**
+     * @return the number of SYNs dropped because the SYN queue was full
+     */
+    public synchronized long getSynQueueDrops() {
+        return synQueueDrops;
+    }
+
+    /**
+     * @return the number of connections dropped because the accept queue was full
+     */
+    public synchronized long getAcceptQueueDrops() {
+        return acceptQueueDrops;
+    }
+}
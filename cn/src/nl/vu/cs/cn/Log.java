@@ -1,65 +1,259 @@
 package nl.vu.cs.cn;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Leveled logging for the stack.
+ *
+ * Messages can be given as a format with {} placeholders and up to three arguments
+ * (or more as an array), which are only turned into a string when the level is enabled:
+ *
+ *     Log.v(TAG, "Sending: {}", segment);
+ *
+ * so a disabled call costs a level check and no allocations, as long as the arguments
+ * are objects that exist anyway. Build a message by hand only after isLoggable().
+ *
+ * Levels are set per tag, a tag without a level of its own uses the level of its base
+ * tag (the part before " [", so "SegmentSender [client]" uses "SegmentSender") and
+ * otherwise the default level. Levels below COMPILED_LEVEL are removed at compile time:
+ * the methods for them return right away, and call sites can test V and D to drop
+ * whole blocks.
+ *
+ * Messages go to the appender, which writes to the Android log by default. Wrap it
+ * in an AsyncLogAppender to take the writing off the calling thread.
+ */
 public class Log {
-    private static final boolean IS_ENABLED = true;
 
+    // the same values as the android.util.Log priorities
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int OFF = Integer.MAX_VALUE;
 
-    public static int v(final String tag, final String msg) {
-        return (isLoggingEnabled() ? android.util.Log.v(tag, System.currentTimeMillis() + " | " + msg) : 0);
+    /** lowest level that is compiled in, raise it for release builds */
+    public static final int COMPILED_LEVEL = VERBOSE;
+
+    public static final boolean V = COMPILED_LEVEL <= VERBOSE;
+    public static final boolean D = COMPILED_LEVEL <= DEBUG;
+
+    /**
+     * Writes log messages somewhere.
+     */
+    public interface Appender {
+        /**
+         * @param level
+         * @param tag
+         * @param timeMillis System.currentTimeMillis() when the message was logged
+         * @param msg
+         * @param tr an exception to log with the message, or null
+         */
+        public void append(int level, String tag, long timeMillis, String msg, Throwable tr);
+    }
+
+    private static volatile int defaultLevel = INFO;
+    private static final Map<String, Integer> tagLevels = new ConcurrentHashMap<String, Integer>();
+    private static final Map<String, Integer> resolvedLevels = new ConcurrentHashMap<String, Integer>();    // cache of getLevel()
+    private static volatile int lowestLevel = defaultLevel;     // lowest level of any tag, checked first
+
+    private static volatile Appender appender = new AndroidLogAppender();
+
+    /**
+     * @param level the level of tags that have no level of their own
+     */
+    public static synchronized void setDefaultLevel(int level) {
+        defaultLevel = level;
+        levelsChanged();
+    }
+
+    public static int getDefaultLevel() {
+        return defaultLevel;
+    }
+
+    /**
+     * Set the level of a tag, and of all tags that have it as their base tag.
+     * @param tag
+     * @param level the level, or -1 to use the default level again
+     */
+    public static synchronized void setLevel(String tag, int level) {
+        if (level < 0) {
+            tagLevels.remove(tag);
+        } else {
+            tagLevels.put(tag, level);
+        }
+        levelsChanged();
+    }
+
+    private static void levelsChanged() {
+        resolvedLevels.clear();
+        int lowest = defaultLevel;
+        for (int level : tagLevels.values()) {
+            lowest = Math.min(lowest, level);
+        }
+        lowestLevel = lowest;
+    }
+
+    /**
+     * @param tag
+     * @return the level that applies to the tag
+     */
+    public static int getLevel(String tag) {
+        Integer level = resolvedLevels.get(tag);
+        if (level == null) {
+            level = tagLevels.get(tag);
+            if (level == null) {
+                int bracket = tag.indexOf(" [");
+                level = (bracket == -1) ? null : tagLevels.get(tag.substring(0, bracket));
+            }
+            if (level == null) {
+                level = defaultLevel;
+            }
+            resolvedLevels.put(tag, level);
+        }
+        return level;
+    }
+
+    /**
+     * @param tag
+     * @param level
+     * @return true if messages of the level are logged for the tag
+     */
+    public static boolean isLoggable(String tag, int level) {
+        return level >= COMPILED_LEVEL && level >= lowestLevel && level >= getLevel(tag);
+    }
+
+    /**
+     * Replace the appender, for example by a ConsoleLogAppender when not running on Android.
+     * @param appender
+     */
+    public static void setAppender(Appender appender) {
+        Appender previous = Log.appender;
+        Log.appender = appender;
+        if (previous instanceof AsyncLogAppender && previous != appender) {
+            ((AsyncLogAppender) previous).close();
+        }
+    }
+
+    public static Appender getAppender() {
+        return appender;
     }
 
 
+    public static int v(final String tag, final String msg) {
+        return (V && isLoggable(tag, VERBOSE)) ? log(VERBOSE, tag, msg, null) : 0;
+    }
+
     public static int v(final String tag, final String msg, final Throwable tr) {
-        return (isLoggingEnabled() ? android.util.Log.v(tag, System.currentTimeMillis() + " | " + msg, tr) : 0);
+        return (V && isLoggable(tag, VERBOSE)) ? log(VERBOSE, tag, msg, tr) : 0;
     }
 
+    public static int v(final String tag, final String format, final Object arg) {
+        return (V && isLoggable(tag, VERBOSE)) ? log(VERBOSE, tag, format(format, arg, null, null, null), null) : 0;
+    }
 
-    public static int d(final String tag, final String msg) {
-        return (isLoggingEnabled() ? android.util.Log.d(tag, System.currentTimeMillis() + " | " + msg) : 0);
+    public static int v(final String tag, final String format, final Object arg1, final Object arg2) {
+        return (V && isLoggable(tag, VERBOSE)) ? log(VERBOSE, tag, format(format, arg1, arg2, null, null), null) : 0;
+    }
+
+    public static int v(final String tag, final String format, final Object arg1, final Object arg2, final Object arg3) {
+        return (V && isLoggable(tag, VERBOSE)) ? log(VERBOSE, tag, format(format, arg1, arg2, arg3, null), null) : 0;
+    }
+
+    public static int v(final String tag, final String format, final Object[] args) {
+        return (V && isLoggable(tag, VERBOSE)) ? log(VERBOSE, tag, format(format, null, null, null, args), null) : 0;
     }
 
 
+    public static int d(final String tag, final String msg) {
+        return (D && isLoggable(tag, DEBUG)) ? log(DEBUG, tag, msg, null) : 0;
+    }
+
     public static int d(final String tag, final String msg, final Throwable tr) {
-        return (isLoggingEnabled() ? android.util.Log.v(tag, System.currentTimeMillis() + " | " + msg, tr) : 0);
+        return (D && isLoggable(tag, DEBUG)) ? log(DEBUG, tag, msg, tr) : 0;
+    }
+
+    public static int d(final String tag, final String format, final Object arg) {
+        return (D && isLoggable(tag, DEBUG)) ? log(DEBUG, tag, format(format, arg, null, null, null), null) : 0;
+    }
+
+    public static int d(final String tag, final String format, final Object arg1, final Object arg2) {
+        return (D && isLoggable(tag, DEBUG)) ? log(DEBUG, tag, format(format, arg1, arg2, null, null), null) : 0;
     }
 
 
     public static int i(final String tag, final String msg) {
-        return (isLoggingEnabled() ? android.util.Log.i(tag, System.currentTimeMillis() + " | " + msg) : 0);
+        return isLoggable(tag, INFO) ? log(INFO, tag, msg, null) : 0;
     }
 
     public static int i(final String tag, final String msg, final Throwable tr) {
-        return (isLoggingEnabled() ? android.util.Log.i(tag, System.currentTimeMillis() + " | " + msg, tr) : 0);
+        return isLoggable(tag, INFO) ? log(INFO, tag, msg, tr) : 0;
+    }
+
+    public static int i(final String tag, final String format, final Object arg) {
+        return isLoggable(tag, INFO) ? log(INFO, tag, format(format, arg, null, null, null), null) : 0;
     }
 
 
     public static int w(final String tag, final String msg) {
-        return (isLoggingEnabled() ? android.util.Log.w(tag, System.currentTimeMillis() + " | " + msg) : 0);
+        return isLoggable(tag, WARN) ? log(WARN, tag, msg, null) : 0;
     }
 
-
     public static int w(final String tag, final String msg, final Throwable tr) {
-        return (isLoggingEnabled() ? android.util.Log.w(tag, System.currentTimeMillis() + " | " + msg, tr) : 0);
+        return isLoggable(tag, WARN) ? log(WARN, tag, msg, tr) : 0;
     }
 
+    public static int w(final String tag, final String format, final Object arg) {
+        return isLoggable(tag, WARN) ? log(WARN, tag, format(format, arg, null, null, null), null) : 0;
+    }
+
+    public static int w(final String tag, final String format, final Object arg1, final Object arg2) {
+        return isLoggable(tag, WARN) ? log(WARN, tag, format(format, arg1, arg2, null, null), null) : 0;
+    }
 
     public static int w(final String tag, final Throwable tr) {
-        return (isLoggingEnabled() ? android.util.Log.w(tag, tr) : 0);
+        return isLoggable(tag, WARN) ? log(WARN, tag, "", tr) : 0;
     }
 
 
     public static int e(final String tag, final String msg) {
-        return (isLoggingEnabled() ? android.util.Log.e(tag, System.currentTimeMillis() + " | " + msg) : 0);
+        return isLoggable(tag, ERROR) ? log(ERROR, tag, msg, null) : 0;
     }
 
-
     public static int e(final String tag, final String msg, final Throwable tr) {
-        return (isLoggingEnabled() ? android.util.Log.e(tag, System.currentTimeMillis() + " | " + msg, tr) : 0);
+        return isLoggable(tag, ERROR) ? log(ERROR, tag, msg, tr) : 0;
     }
 
-    private static boolean isLoggingEnabled() {
-        return IS_ENABLED;
+    public static int e(final String tag, final String format, final Object arg) {
+        return isLoggable(tag, ERROR) ? log(ERROR, tag, format(format, arg, null, null, null), null) : 0;
     }
 
-}
\ No newline at end of file
+    private static int log(int level, String tag, String msg, Throwable tr) {
+        appender.append(level, tag, System.currentTimeMillis(), msg, tr);
+        return msg.length();
+    }
+
+    /**
+     * Replace the {} placeholders in format by the arguments, in order. Either the
+     * separate arguments or args are used.
+     */
+    static String format(String format, Object arg1, Object arg2, Object arg3, Object[] args) {
+        StringBuilder sb = new StringBuilder(format.length() + 32);
+        int argument = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = format.indexOf("{}", start)) != -1) {
+            sb.append(format, start, placeholder);
+            if (args != null) {
+                sb.append(argument < args.length ? args[argument] : "{}");
+            } else {
+                sb.append(argument == 0 ? arg1 : argument == 1 ? arg2 : argument == 2 ? arg3 : "{}");
+            }
+            argument++;
+            start = placeholder + 2;
+        }
+        sb.append(format, start, format.length());
+        return sb.toString();
+    }
+}
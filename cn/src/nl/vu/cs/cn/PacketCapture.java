@@ -0,0 +1,272 @@
+package nl.vu.cs.cn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the packets an IP stack sends and receives to a pcap file, which can be
+ * opened with Wireshark or tcpdump. Packets only carry the TCP segment, so an IPv4
+ * header is put in front of each one (link type RAW). Timestamps have nanosecond
+ * resolution.
+ *
+ * Capturing happens on the sending and receiving threads, so it has to be cheap: a
+ * packet is copied into a free slot of a ring, claimed with a compare-and-set, and a
+ * background thread moves the slots to the file through a memory-mapped region.
+ * Nothing blocks: when the writer falls behind and the ring is full, packets are
+ * left out of the capture and counted.
+ *
+ * Enable it with IP.setCapture(), and close() it when done to write the rest of the
+ * ring and trim the file.
+ */
+public class PacketCapture {
+
+    public static final int DEFAULT_SLOTS = 512;
+    public static final int MAX_SNAP_LENGTH = 0xffff;
+
+    private static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int FILE_HEADER_SIZE = 24;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int IP_HEADER_SIZE = 20;
+    private static final long MAP_SIZE = 16 * 1024 * 1024;     // the file is mapped in regions of this size
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private MappedByteBuffer region;    // the mapped part of the file the writer is filling
+    private long regionStart;           // file position of the region
+    private long written;               // file position after the last record
+
+    private final int snapLength;
+    private final byte[][] slots;       // formatted records: record header, IP header, segment
+    private final int[] slotLength;
+    private final AtomicLongArray published;    // sequence number + 1 of the record in each slot, once it is complete
+    private final AtomicLong next = new AtomicLong();   // sequence number of the next record to claim
+    private volatile long head;         // sequence number of the next record to write to the file
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;    // no more packets are captured
+    private boolean released;           // the file was closed
+    private final Thread writer;
+
+    private final long baseNanos = System.nanoTime();
+    private final long baseEpochNanos = System.currentTimeMillis() * 1000 * 1000;
+
+    /**
+     * Start a capture of whole packets.
+     * @param file the pcap file to write, an existing file is overwritten
+     * @throws IOException if the file cannot be created
+     */
+    public PacketCapture(File file) throws IOException {
+        this(file, MAX_SNAP_LENGTH, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param file the pcap file to write, an existing file is overwritten
+     * @param snapLength number of bytes of each packet that are kept, counting the IP header.
+     * 60 keeps the IP and TCP headers only, which makes capturing cheaper.
+     * @param slots number of packets that can wait for the writer
+     * @throws IOException if the file cannot be created
+     */
+    public PacketCapture(File file, int snapLength, int slots) throws IOException {
+        this.snapLength = Math.max(IP_HEADER_SIZE, Math.min(snapLength, MAX_SNAP_LENGTH));
+
+        int slotSize = RECORD_HEADER_SIZE + Math.min(this.snapLength, IP_HEADER_SIZE + PacketPool.BUFFER_SIZE);
+        this.slots = new byte[slots][slotSize];
+        slotLength = new int[slots];
+        published = new AtomicLongArray(slots);
+
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        channel = this.file.getChannel();
+        map(0);
+        writeFileHeader();
+
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "PacketCapture " + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Add a packet to the capture. The packet is copied, so it can be reused right away.
+     * @param packet
+     * @param source the source address, in "host" order
+     */
+    public void capture(IP.Packet packet, int source) {
+        if (closed) {
+            return;
+        }
+
+        // claim a slot, unless the writer has not emptied it yet
+        long sequence;
+        do {
+            sequence = next.get();
+            if (sequence - head >= slots.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!next.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) (sequence % slots.length);
+        byte[] slot = slots[index];
+        long timestamp = baseEpochNanos + (System.nanoTime() - baseNanos);
+
+        int ipLength = IP_HEADER_SIZE + packet.length;
+        int captured = Math.min(Math.min(ipLength, snapLength), slot.length - RECORD_HEADER_SIZE);
+
+        // record header, in little-endian like the file header
+        putIntLE(slot, 0, (int) (timestamp / 1000000000L));
+        putIntLE(slot, 4, (int) (timestamp % 1000000000L));
+        putIntLE(slot, 8, captured);
+        putIntLE(slot, 12, ipLength);
+
+        putIpHeader(slot, RECORD_HEADER_SIZE, packet, source, ipLength);
+        System.arraycopy(packet.data, 0, slot, RECORD_HEADER_SIZE + IP_HEADER_SIZE, captured - IP_HEADER_SIZE);
+
+        slotLength[index] = RECORD_HEADER_SIZE + captured;
+        published.set(index, sequence + 1);
+    }
+
+    private static void putIpHeader(byte[] buf, int offset, IP.Packet packet, int source, int length) {
+        buf[offset] = 0x45;                     // version 4, 5 words
+        buf[offset + 1] = 0;
+        buf[offset + 2] = (byte) (length >> 8);
+        buf[offset + 3] = (byte) length;
+        buf[offset + 4] = (byte) (packet.id >> 8);
+        buf[offset + 5] = (byte) packet.id;
+        buf[offset + 6] = 0x40;                 // don't fragment
+        buf[offset + 7] = 0;
+        buf[offset + 8] = 64;                   // TTL
+        buf[offset + 9] = (byte) packet.protocol;
+        buf[offset + 10] = 0;
+        buf[offset + 11] = 0;
+        putAddress(buf, offset + 12, source);
+        putAddress(buf, offset + 16, packet.destination);
+
+        int sum = 0;
+        for (int i = 0; i < IP_HEADER_SIZE; i += 2) {
+            sum += ((buf[offset + i] & 0xff) << 8) | (buf[offset + i + 1] & 0xff);
+        }
+        sum = (sum & 0xffff) + (sum >> 16);
+        sum = (sum & 0xffff) + (sum >> 16);
+        buf[offset + 10] = (byte) (~sum >> 8);
+        buf[offset + 11] = (byte) ~sum;
+    }
+
+    /**
+     * Addresses are kept in "host" order, with the first byte of the dotted notation in the lowest bits.
+     */
+    private static void putAddress(byte[] buf, int offset, int address) {
+        buf[offset] = (byte) address;
+        buf[offset + 1] = (byte) (address >> 8);
+        buf[offset + 2] = (byte) (address >> 16);
+        buf[offset + 3] = (byte) (address >>> 24);
+    }
+
+    private static void putIntLE(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >> 8);
+        buf[offset + 2] = (byte) (value >> 16);
+        buf[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private void writeFileHeader() {
+        region.putInt(PCAP_MAGIC_NANOS);
+        region.putShort((short) 2);         // version 2.4
+        region.putShort((short) 4);
+        region.putInt(0);                   // time zone
+        region.putInt(0);                   // timestamp accuracy
+        region.putInt(snapLength);
+        region.putInt(LINKTYPE_RAW);
+        written = FILE_HEADER_SIZE;
+    }
+
+    private void map(long position) throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, MAP_SIZE);
+        region.order(ByteOrder.LITTLE_ENDIAN);
+        regionStart = position;
+    }
+
+    /**
+     * Move published records to the file, in sequence number order.
+     */
+    private void write() {
+        while (true) {
+            long sequence = head;
+            int index = (int) (sequence % slots.length);
+
+            if (published.get(index) != sequence + 1) {
+                // the next record is not complete yet
+                if (closed && next.get() == sequence) {
+                    return;
+                }
+                LockSupport.parkNanos(this, 1000 * 1000);
+                continue;
+            }
+
+            int length = slotLength[index];
+            try {
+                if (written + length > regionStart + MAP_SIZE) {
+                    map(written);
+                }
+                region.position((int) (written - regionStart));
+                region.put(slots[index], 0, length);
+                written += length;
+            } catch (IOException e) {
+                Log.w("PacketCapture", "Error while writing the capture, stopping", e);
+                closed = true;
+                return;
+            }
+
+            // free the slot for the producers
+            head = sequence + 1;
+        }
+    }
+
+    /**
+     * Stop capturing, write the packets still in the ring and trim the file to its contents.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (released) {
+            return;
+        }
+        closed = true;
+        released = true;
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        region.force();
+        region = null;
+        channel.truncate(written);
+        file.close();
+    }
+
+    /**
+     * @return the number of packets in the file, or waiting to be written to it
+     */
+    public long getCaptured() {
+        return next.get();
+    }
+
+    /**
+     * @return the number of packets left out because the ring was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+}
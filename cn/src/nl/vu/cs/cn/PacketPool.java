@@ -0,0 +1,79 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.vu.cs.cn.tcp.TransmissionControlBlock;
+
+/**
+ * A pool of packets with buffers large enough to hold a full size segment, so
+ * segments can be encoded without allocating a new buffer for every send.
+ *
+ * A packet taken from the pool belongs to the caller until it is released again.
+ * Releasing is optional: packets that are never released are simply garbage collected.
+ */
+public class PacketPool {
+
+    public static final int BUFFER_SIZE = TransmissionControlBlock.MAX_SEGMENT_SIZE;
+    public static final int MAX_POOLED = 256;      // maximum number of idle packets kept
+
+    private static final PacketPool INSTANCE = new PacketPool();
+
+    // every thread that sends or receives takes packets from here and returns them, so the free list is lock-free
+    private final ConcurrentLinkedQueue<IP.Packet> free = new ConcurrentLinkedQueue<IP.Packet>();
+    private final AtomicInteger size = new AtomicInteger();      // number of packets in free
+
+    private final AtomicLong allocated = new AtomicLong();      // number of packets created because the pool was empty
+
+    /**
+     * @return the packet pool shared by all connections in this process
+     */
+    public static PacketPool getInstance() {
+        return INSTANCE;
+    }
+
+    private PacketPool() {
+    }
+
+    /**
+     * @return a packet with a buffer of BUFFER_SIZE bytes. Its other fields are undefined.
+     */
+    public IP.Packet acquire() {
+        IP.Packet packet = free.poll();
+        if (packet != null) {
+            size.decrementAndGet();
+            return packet;
+        }
+
+        allocated.incrementAndGet();
+        packet = new IP.Packet();
+        packet.data = new byte[BUFFER_SIZE];
+        return packet;
+    }
+
+    /**
+     * Return a packet to the pool. The packet may not be used anymore by the caller.
+     * @param packet
+     */
+    public void release(IP.Packet packet) {
+        // the buffer may have been replaced, e.g. by the JNI layer
+        if (packet.data == null || packet.data.length != BUFFER_SIZE) {
+            return;
+        }
+
+        // reserve a place first, so the pool never holds more than MAX_POOLED packets
+        if (size.incrementAndGet() > MAX_POOLED) {
+            size.decrementAndGet();
+            return;
+        }
+        free.offer(packet);
+    }
+
+    /**
+     * @return the number of packets created so far because the pool was empty
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,166 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The inbound queue of a transport: a lock-free queue of pooled packets with a
+ * single consumer. The consumer either parks in receive() while the queue is empty,
+ * or sets a listener that is told when packets arrive and then polls them.
+ */
+public class PacketQueue {
+
+    /**
+     * Told when packets are added to a queue.
+     */
+    public interface Listener {
+        /**
+         * Called by the thread that added a packet, so this should return quickly.
+         * @param queue
+         */
+        public void onPacketAvailable(PacketQueue queue);
+    }
+
+    private final ConcurrentLinkedQueue<IP.Packet> packets = new ConcurrentLinkedQueue<IP.Packet>();
+    private volatile Thread receiver;       // set while the receiving thread is parked
+    private volatile Listener listener;
+    private volatile boolean closed;
+    private volatile PacketCapture capture;
+
+    /**
+     * Set the listener that is told about new packets, or null to remove it.
+     * If packets are waiting already, the new listener is told right away.
+     * @param listener
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        if (listener != null && !packets.isEmpty()) {
+            listener.onPacketAvailable(this);
+        }
+    }
+
+    /**
+     * Capture the packets added to this queue from now on, or stop capturing if capture is null.
+     * @param capture
+     */
+    public void setCapture(PacketCapture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Append a packet and wake up the receiver. The queue takes ownership of the packet.
+     * @param packet a packet from the packet pool
+     * @return false if the queue was closed, in which case the packet is released
+     */
+    public boolean offer(IP.Packet packet) {
+        if (closed) {
+            PacketPool.getInstance().release(packet);
+            return false;
+        }
+
+        PacketCapture capturing = capture;
+        if (capturing != null) {
+            capturing.capture(packet, packet.source);
+        }
+
+        packets.offer(packet);
+
+        Listener listening = listener;
+        if (listening != null) {
+            listening.onPacketAvailable(this);
+        }
+
+        Thread waiting = receiver;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+        return true;
+    }
+
+    /**
+     * Take the next packet without waiting. The caller owns the packet and should
+     * release it to the packet pool when done.
+     * @return the packet, or null if the queue is empty
+     */
+    public IP.Packet poll() {
+        return packets.poll();
+    }
+
+    /**
+     * Take the next packet and copy it into the given packet, see IpTransport.receive().
+     * Only one thread may receive at a time.
+     * @param packet
+     * @param timeout the timeout in seconds, or zero to wait without a timeout
+     * @throws InterruptedException on a timeout, or if the queue was closed
+     */
+    public void receive(IP.Packet packet, int timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout * 1000L * 1000L * 1000L;
+
+        while (true) {
+            IP.Packet received = packets.poll();
+            if (received != null) {
+                copy(received, packet);
+                PacketPool.getInstance().release(received);
+                return;
+            }
+            if (closed) {
+                throw new InterruptedException("Transport closed");
+            }
+
+            // announce that we are about to park, then check the queue once more so
+            // a packet offered in between is not missed
+            receiver = Thread.currentThread();
+            try {
+                if (!packets.isEmpty() || closed) {
+                    continue;
+                }
+
+                if (timeout > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new InterruptedException("Timeout");
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+            } finally {
+                receiver = null;
+            }
+        }
+    }
+
+    private static void copy(IP.Packet from, IP.Packet to) {
+        if (to.data == null || to.data.length < from.length) {
+            to.data = new byte[Math.max(from.length, PacketPool.BUFFER_SIZE)];
+        }
+        System.arraycopy(from.data, 0, to.data, 0, from.length);
+        to.source = from.source;
+        to.destination = from.destination;
+        to.protocol = from.protocol;
+        to.id = from.id;
+        to.length = from.length;
+    }
+
+    /**
+     * Close the queue: release the queued packets, and make a blocked receive() throw.
+     */
+    public void close() {
+        closed = true;
+        listener = null;
+
+        Thread waiting = receiver;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+
+        IP.Packet packet;
+        while ((packet = packets.poll()) != null) {
+            PacketPool.getInstance().release(packet);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,230 @@
+package nl.vu.cs.cn.tcp;
+
+import java.util.ArrayList;
+
+import nl.vu.cs.cn.tcp.segment.SegmentUtil;
+
+/**
+ * Holds data that arrived out of order, until the data in front of it arrives.
+ *
+ * The data is kept as one block per arriving segment, ordered by sequence number.
+ * Blocks do not overlap: data that is in the queue already is cut from a new
+ * segment before it is added, so every byte is copied into the queue once and
+ * blocks are never merged. Adjacent blocks only come together when they are
+ * reported as SACK blocks, and when they are written to the processing queue one
+ * after the other once the gap in front of them is filled.
+ *
+ * Arriving segments are decoded in place, so the data is copied into the queue.
+ *
+ * All methods are synchronized.
+ */
+public class ReassemblyQueue {
+
+    private static class Block {
+        long seq;                   // sequence number of the first byte
+        final byte[] data;
+        int offset;                 // the bytes of the block are data[offset, offset + length)
+        int length;
+
+        Block(long seq, byte[] data) {
+            this.seq = seq;
+            this.data = data;
+            this.length = data.length;
+        }
+
+        long end() {
+            return (seq + length) % Integer.MAX_VALUE;
+        }
+    }
+
+    private final ArrayList<Block> blocks = new ArrayList<Block>();
+    private int size;       // number of bytes in the queue
+    private long recent;    // sequence number of the most recently added data
+
+    /**
+     * Add data that starts after RCV.NXT. The caller makes sure the data lies within the receive window.
+     * @param rcvNxt RCV.NXT
+     * @param seq sequence number of the first byte
+     * @param buf
+     * @param offset
+     * @param len
+     */
+    public synchronized void add(long rcvNxt, long seq, byte[] buf, int offset, int len) {
+        if (len <= 0) {
+            return;
+        }
+        recent = seq;
+
+        long start = offset(rcvNxt, seq);
+        long end = start + len;
+
+        // walk the blocks that may overlap [start, end) and add the gaps between them
+        int i = firstEndingAfter(rcvNxt, start);
+        long next = start;
+        while (next < end) {
+            long gapEnd = end;
+            if (i < blocks.size()) {
+                Block block = blocks.get(i);
+                long blockStart = offset(rcvNxt, block.seq);
+                if (blockStart <= next) {
+                    // already queued
+                    next = Math.max(next, blockStart + block.length);
+                    i++;
+                    continue;
+                }
+                gapEnd = Math.min(end, blockStart);
+            }
+            insert(i, rcvNxt, next, gapEnd, seq, buf, offset);
+            i++;
+            next = gapEnd;
+        }
+    }
+
+    /**
+     * Copy the bytes at offsets [from, to) from RCV.NXT into a new block at the given index.
+     */
+    private void insert(int index, long rcvNxt, long from, long to, long seq, byte[] buf, int offset) {
+        byte[] data = new byte[(int) (to - from)];
+        int skip = (int) (from - offset(rcvNxt, seq));
+        System.arraycopy(buf, offset + skip, data, 0, data.length);
+        blocks.add(index, new Block((rcvNxt + from) % Integer.MAX_VALUE, data));
+        size += data.length;
+    }
+
+    /**
+     * @return the index of the first block that ends after the given offset from RCV.NXT
+     */
+    private int firstEndingAfter(long rcvNxt, long offset) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            Block block = blocks.get(middle);
+            if (offset(rcvNxt, block.seq) + block.length <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Move the data that now directly follows RCV.NXT to the processing queue. Data before
+     * RCV.NXT is discarded, it has been delivered by a retransmission already.
+     * @param rcvNxt RCV.NXT
+     * @param processingQueue
+     * @return the number of bytes written to the processing queue, by which RCV.NXT should advance
+     */
+    public synchronized int deliver(long rcvNxt, ByteRingBuffer processingQueue) {
+        int delivered = 0;
+
+        int removed = 0;
+        while (removed < blocks.size()) {
+            Block block = blocks.get(removed);
+
+            long ahead = offset(rcvNxt, block.seq);
+            if (ahead > 0) {
+                // there is still a gap in front of the block
+                break;
+            }
+
+            // the block starts at or before RCV.NXT, skip the bytes that were delivered already
+            int skip = (int) Math.min(-ahead, block.length);
+
+            int len = block.length - skip;
+            int written = processingQueue.write(block.data, block.offset + skip, len);
+            delivered += written;
+            rcvNxt = (rcvNxt + written) % Integer.MAX_VALUE;
+
+            if (written < len) {
+                // no more room, keep the rest of the block
+                block.seq = rcvNxt;
+                block.offset += skip + written;
+                block.length = len - written;
+                size -= skip + written;
+                break;
+            }
+
+            size -= block.length;
+            removed++;
+        }
+        blocks.subList(0, removed).clear();
+
+        return delivered;
+    }
+
+    /**
+     * Report the data as SACK blocks (RFC 2018), each covering a run of adjacent queued
+     * blocks. The first SACK block is the one holding the most recently received data,
+     * the others follow in sequence number order.
+     * @param blocks receives the left and right edge of each block
+     * @param max maximum number of blocks
+     * @return the number of blocks
+     */
+    public synchronized int getSackBlocks(long[] blocks, int max) {
+        if (this.blocks.isEmpty() || max <= 0) {
+            return 0;
+        }
+
+        // find the run that holds the most recent data
+        int recentRun = 0;
+        for (int i = 0; i < this.blocks.size(); i = nextRun(i)) {
+            int last = nextRun(i) - 1;
+            if (SegmentUtil.inWindow(this.blocks.get(i).seq, recent, this.blocks.get(last).end())) {
+                recentRun = i;
+                break;
+            }
+        }
+        putRun(blocks, 0, recentRun);
+
+        int count = 1;
+        for (int i = 0; i < this.blocks.size() && count < max; i = nextRun(i)) {
+            if (i != recentRun) {
+                putRun(blocks, count, i);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the index of the first block after the run of adjacent blocks that starts at the given index
+     */
+    private int nextRun(int first) {
+        int i = first + 1;
+        while (i < blocks.size() && blocks.get(i).seq == blocks.get(i - 1).end()) {
+            i++;
+        }
+        return i;
+    }
+
+    private void putRun(long[] sackBlocks, int index, int first) {
+        sackBlocks[2 * index] = blocks.get(first).seq;
+        sackBlocks[2 * index + 1] = blocks.get(nextRun(first) - 1).end();
+    }
+
+    /**
+     * @return the number of bytes waiting for the data in front of them
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the offset of seq from RCV.NXT, negative if seq lies before it
+     */
+    private static long offset(long rcvNxt, long seq) {
+        long distance = (seq - rcvNxt + Integer.MAX_VALUE) % Integer.MAX_VALUE;
+        return (distance > Integer.MAX_VALUE / 2) ? distance - Integer.MAX_VALUE : distance;
+    }
+}
@@ -0,0 +1,200 @@
+package nl.vu.cs.cn.tcp;
+
+import java.util.ArrayList;
+
+import nl.vu.cs.cn.tcp.segment.RetransmissionSegment;
+import nl.vu.cs.cn.tcp.segment.Segment;
+import nl.vu.cs.cn.tcp.segment.SegmentUtil;
+
+/**
+ * Queue of unacknowledged segments, ordered by sequence number.
+ *
+ * Segments are always sent (and thus added) in sequence number order, so the queue
+ * is a growable ring of segments where the head is the segment starting at SND.UNA.
+ * A cumulative ACK removes a prefix of the queue, which only touches the segments
+ * that are actually acknowledged. Retransmitted segments keep their position.
+ *
+ * Since the segments are ordered, the segment holding a sequence number is found by
+ * a binary search on the distance from the head. SACK blocks only visit the segments
+ * they cover, and the queue remembers how far the SACKed segments reach, so finding
+ * a hole does not scan the whole queue either.
+ *
+ * All methods are synchronized.
+ */
+public class RetransmissionQueue {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private RetransmissionSegment[] segments = new RetransmissionSegment[INITIAL_CAPACITY];
+    private int head;       // index of the oldest segment
+    private int size;
+    private int sackedEnd;  // position after the last SACKed segment, counted from the head, 0 if none is SACKed
+
+    /**
+     * Add a segment at the end of the queue. Its sequence number must follow
+     * the segments already in the queue.
+     * @param segment
+     */
+    public synchronized void add(RetransmissionSegment segment){
+        if(size == segments.length){
+            grow();
+        }
+        segments[(head + size) % segments.length] = segment;
+        size++;
+        segment.setQueued(true);
+    }
+
+    /**
+     * @return the oldest unacknowledged segment, or null if the queue is empty
+     */
+    public synchronized RetransmissionSegment peekFirst(){
+        return (size == 0) ? null : segments[head];
+    }
+
+    /**
+     * Remove all segments at the head of the queue that are completely acknowledged by ack.
+     * @param ack
+     * @param removed receives the removed segments in sequence number order, the caller
+     *                reuses it so that ACKs do not allocate
+     * @return the number of removed segments
+     */
+    public synchronized int removeAcked(long ack, ArrayList<RetransmissionSegment> removed){
+        int count = 0;
+        while(size > 0 && SegmentUtil.isAcked(segments[head].getSegment(), ack)){
+            removed.add(pollFirst());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Mark the segments that lie completely inside a SACK block as SACKed.
+     * @param left first sequence number of the block
+     * @param right sequence number following the block
+     * @return the number of segments that were newly marked
+     */
+    public synchronized int markSacked(long left, long right){
+        int marked = 0;
+        for(int i = positionOf(left); i < size; i++){
+            RetransmissionSegment segment = get(i);
+            Segment s = segment.getSegment();
+            if(!SegmentUtil.inWindow(left, s.getSeq(), right)){
+                // this and all later segments start after the block
+                break;
+            }
+            if(!segment.isSacked() && SegmentUtil.inWindow(left, s.getLastSeq(), right)){
+                segment.setSacked(true);
+                marked++;
+                sackedEnd = Math.max(sackedEnd, i + 1);
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Find the first segment that was not SACKed although a later segment was, so the
+     * receiver is missing it rather than still waiting for it.
+     * @param from only segments starting at or after this sequence number are considered
+     * @return the segment, or null if there is none
+     */
+    public synchronized RetransmissionSegment nextHole(long from){
+        // segments after the last SACKed one are not missing (yet)
+        for(int i = positionOf(from); i < sackedEnd - 1; i++){
+            RetransmissionSegment segment = get(i);
+            if(!segment.isSacked()){
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param seq
+     * @return the position, counted from the head, of the first segment that starts at or
+     * after seq; 0 if seq lies before the head and size if it lies after the last segment
+     */
+    private int positionOf(long seq){
+        if(size == 0){
+            return 0;
+        }
+        long first = segments[head].getSegment().getSeq();
+        long target = distance(first, seq);
+        if(target > Integer.MAX_VALUE / 2){
+            return 0;
+        }
+
+        int low = 0;
+        int high = size;
+        while(low < high){
+            int middle = (low + high) >>> 1;
+            if(distance(first, get(middle).getSegment().getSeq()) < target){
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private RetransmissionSegment get(int position){
+        return segments[(head + position) % segments.length];
+    }
+
+    private static long distance(long from, long to){
+        return (to - from + Integer.MAX_VALUE) % Integer.MAX_VALUE;
+    }
+
+    private RetransmissionSegment pollFirst(){
+        RetransmissionSegment segment = segments[head];
+        segments[head] = null;
+        head = (head + 1) % segments.length;
+        size--;
+        if(sackedEnd > 0){
+            sackedEnd--;
+        }
+        segment.setQueued(false);
+        return segment;
+    }
+
+    /**
+     * Remove all segments.
+     * @return the segments that were in the queue
+     */
+    public synchronized ArrayList<RetransmissionSegment> clear(){
+        ArrayList<RetransmissionSegment> removed = toList();
+        while(size > 0){
+            pollFirst();
+        }
+        head = 0;
+        sackedEnd = 0;
+        return removed;
+    }
+
+    /**
+     * @return a copy of the queue contents in sequence number order
+     */
+    public synchronized ArrayList<RetransmissionSegment> toList(){
+        ArrayList<RetransmissionSegment> list = new ArrayList<RetransmissionSegment>(size);
+        for(int i = 0; i < size; i++){
+            list.add(segments[(head + i) % segments.length]);
+        }
+        return list;
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    public synchronized boolean isEmpty(){
+        return size == 0;
+    }
+
+    private void grow(){
+        RetransmissionSegment[] grown = new RetransmissionSegment[segments.length * 2];
+        for(int i = 0; i < size; i++){
+            grown[i] = segments[(head + i) % segments.length];
+        }
+        segments = grown;
+        head = 0;
+    }
+}
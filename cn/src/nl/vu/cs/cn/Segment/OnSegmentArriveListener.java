@@ -2,5 +2,10 @@ package nl.vu.cs.cn.tcp.segment;
 
 public interface OnSegmentArriveListener {
 
+    /**
+     * Called for every arriving segment. The segment may be a view on a receive buffer
+     * that is reused after this call returns, so copy whatever should be kept.
+     * @param segment
+     */
     public void onSegmentArrive(Segment segment);
 }
\ No newline at end of file
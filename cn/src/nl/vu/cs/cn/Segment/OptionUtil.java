@@ -0,0 +1,176 @@
+package nl.vu.cs.cn.tcp.segment;
+
+/**
+ * Reading and writing TCP options (RFC 793, RFC 2018, RFC 7323).
+ *
+ * Options are a list of kind bytes, each but EOL and NOP followed by a length byte
+ * that includes the kind and length bytes themselves. The options written here are
+ * preceded by NOPs, so that the values line up on 32 bit words and the total is a
+ * multiple of 4 bytes.
+ */
+public abstract class OptionUtil {
+
+    public static final int KIND_EOL = 0;
+    public static final int KIND_NOP = 1;
+    public static final int KIND_MSS = 2;
+    public static final int KIND_WINDOW_SCALE = 3;
+    public static final int KIND_SACK_PERMITTED = 4;
+    public static final int KIND_SACK = 5;
+
+    /** the number of SACK blocks that fit in the options */
+    public static final int MAX_SACK_BLOCKS = (Segment.MAX_OPTIONS_SIZE - 4) / 8;
+
+    /** NOP, NOP, SACK permitted */
+    public static final int SACK_PERMITTED_LENGTH = 4;
+
+    /** NOP, window scale */
+    public static final int WINDOW_SCALE_LENGTH = 4;
+
+    /**
+     * Find an option in a segment.
+     * @param segment
+     * @param kind
+     * @return the position of the kind byte in segment.getOptions(), or -1 if the segment does not have the option
+     */
+    public static int find(Segment segment, int kind){
+        byte[] options = segment.getOptions();
+        int position = segment.getOptionsOffset();
+        int end = position + segment.getOptionsLength();
+
+        while(position < end){
+            int current = options[position] & 0xff;
+            if(current == KIND_EOL){
+                break;
+            } else if(current == KIND_NOP){
+                position++;
+                continue;
+            }
+
+            if(position + 1 >= end){
+                break;
+            }
+            int length = options[position + 1] & 0xff;
+            if(length < 2 || position + length > end){
+                // malformed, ignore the rest
+                break;
+            }
+            if(current == kind){
+                return position;
+            }
+            position += length;
+        }
+        return -1;
+    }
+
+    /**
+     * @param segment
+     * @return true if the segment has the SACK permitted option
+     */
+    public static boolean hasSackPermitted(Segment segment){
+        return segment.getOptionsLength() > 0 && find(segment, KIND_SACK_PERMITTED) != -1;
+    }
+
+    /**
+     * @param segment
+     * @return the shift count of the window scale option, or -1 if the segment does not have the option
+     */
+    public static int getWindowScale(Segment segment){
+        if(segment.getOptionsLength() == 0){
+            return -1;
+        }
+        int position = find(segment, KIND_WINDOW_SCALE);
+        if(position == -1 || (segment.getOptions()[position + 1] & 0xff) != 3){
+            return -1;
+        }
+        return segment.getOptions()[position + 2] & 0xff;
+    }
+
+    /**
+     * Read the SACK blocks of a segment.
+     * @param segment
+     * @param blocks receives the left and right edge of each block, at least 2 * MAX_SACK_BLOCKS long
+     * @return the number of blocks
+     */
+    public static int getSackBlocks(Segment segment, long[] blocks){
+        if(segment.getOptionsLength() == 0){
+            return 0;
+        }
+        int position = find(segment, KIND_SACK);
+        if(position == -1){
+            return 0;
+        }
+
+        byte[] options = segment.getOptions();
+        int count = Math.min(MAX_SACK_BLOCKS, ((options[position + 1] & 0xff) - 2) / 8);
+        position += 2;
+        for(int i = 0; i < count; i++){
+            blocks[2 * i] = getInt(options, position) & 0xffffffffL;
+            blocks[2 * i + 1] = getInt(options, position + 4) & 0xffffffffL;
+            position += 8;
+        }
+        return count;
+    }
+
+    /**
+     * Write the SACK permitted option.
+     * @param buf
+     * @param offset
+     * @return the number of bytes written, SACK_PERMITTED_LENGTH
+     */
+    public static int putSackPermitted(byte[] buf, int offset){
+        buf[offset] = KIND_NOP;
+        buf[offset + 1] = KIND_NOP;
+        buf[offset + 2] = KIND_SACK_PERMITTED;
+        buf[offset + 3] = 2;
+        return SACK_PERMITTED_LENGTH;
+    }
+
+    /**
+     * Write the window scale option.
+     * @param buf
+     * @param offset
+     * @param shift
+     * @return the number of bytes written, WINDOW_SCALE_LENGTH
+     */
+    public static int putWindowScale(byte[] buf, int offset, int shift){
+        buf[offset] = KIND_NOP;
+        buf[offset + 1] = KIND_WINDOW_SCALE;
+        buf[offset + 2] = 3;
+        buf[offset + 3] = (byte) shift;
+        return WINDOW_SCALE_LENGTH;
+    }
+
+    /**
+     * Write a SACK option.
+     * @param buf
+     * @param offset
+     * @param blocks the left and right edge of each block
+     * @param count the number of blocks, at most MAX_SACK_BLOCKS
+     * @return the number of bytes written
+     */
+    public static int putSack(byte[] buf, int offset, long[] blocks, int count){
+        buf[offset] = KIND_NOP;
+        buf[offset + 1] = KIND_NOP;
+        buf[offset + 2] = KIND_SACK;
+        buf[offset + 3] = (byte) (2 + 8 * count);
+        int position = offset + 4;
+        for(int i = 0; i < count; i++){
+            putInt(buf, position, (int) blocks[2 * i]);
+            putInt(buf, position + 4, (int) blocks[2 * i + 1]);
+            position += 8;
+        }
+        return position - offset;
+    }
+
+    private static int getInt(byte[] buf, int offset){
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+                | ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] buf, int offset, int value){
+        buf[offset] = (byte) (value >> 24);
+        buf[offset + 1] = (byte) (value >> 16);
+        buf[offset + 2] = (byte) (value >> 8);
+        buf[offset + 3] = (byte) value;
+    }
+}
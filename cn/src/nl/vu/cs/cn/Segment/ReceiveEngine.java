@@ -0,0 +1,159 @@
+package nl.vu.cs.cn.tcp.segment;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.PacketPool;
+import nl.vu.cs.cn.PacketQueue;
+
+/**
+ * Handles the arriving segments of all IP stacks in this process on a single thread.
+ *
+ * Each registered inbound queue tells the engine when packets arrive, which puts the
+ * queue on a ready list and wakes up the engine thread. The engine thread takes the
+ * ready queues one at a time, decodes their packets into a SegmentView and hands them
+ * to the listener of the queue. While nothing is ready the thread is parked, so it
+ * costs nothing, and cancelling a registration takes effect immediately.
+ */
+public class ReceiveEngine {
+
+    private static final String TAG = "ReceiveEngine";
+
+    private static final int BATCH_SIZE = 64;      // packets handled per queue before moving to the next
+
+    private static ReceiveEngine instance;
+
+    private final ConcurrentLinkedQueue<Registration> ready = new ConcurrentLinkedQueue<Registration>();
+    private final SegmentView segment = new SegmentView();
+    private volatile Thread worker;
+    private volatile boolean parked;
+
+    /**
+     * The registration of an inbound queue.
+     */
+    public final class Registration implements PacketQueue.Listener {
+
+        private final PacketQueue queue;
+        private final OnSegmentArriveListener listener;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        private Registration(PacketQueue queue, OnSegmentArriveListener listener) {
+            this.queue = queue;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onPacketAvailable(PacketQueue queue) {
+            if (!cancelled && scheduled.compareAndSet(false, true)) {
+                ready.offer(this);
+                wakeup();
+            }
+        }
+
+        /**
+         * Stop handing segments to the listener. Packets that arrive afterwards stay in the queue.
+         */
+        public void cancel() {
+            cancelled = true;
+            queue.setListener(null);
+        }
+    }
+
+    /**
+     * @return the receive engine shared by all IP stacks in this process
+     */
+    public static synchronized ReceiveEngine getInstance() {
+        if (instance == null) {
+            instance = new ReceiveEngine();
+        }
+        return instance;
+    }
+
+    private ReceiveEngine() {
+    }
+
+    /**
+     * Hand every packet that arrives in queue to listener, on the engine thread.
+     * @param queue
+     * @param listener
+     * @return the registration, used to cancel it
+     */
+    public Registration register(PacketQueue queue, OnSegmentArriveListener listener) {
+        startWorker();
+
+        Registration registration = new Registration(queue, listener);
+        queue.setListener(registration);
+        return registration;
+    }
+
+    private synchronized void startWorker() {
+        if (worker != null) {
+            return;
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+    }
+
+    private void wakeup() {
+        if (parked) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            Registration registration = ready.poll();
+            if (registration == null) {
+                // announce that we are about to park, then check once more so a
+                // queue that became ready in between is not missed
+                parked = true;
+                if (ready.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+                continue;
+            }
+
+            // clear the flag before draining, so packets that arrive meanwhile schedule the queue again
+            registration.scheduled.set(false);
+            if (registration.cancelled) {
+                // the queue may have been registered again, leave its packets to the new registration
+                continue;
+            }
+
+            int handled = 0;
+            IP.Packet packet;
+            while (handled < BATCH_SIZE && (packet = registration.queue.poll()) != null) {
+                handled++;
+                try {
+                    if (packet.length >= Segment.HEADER_SIZE) {
+                        // listeners handle the segment before returning, and copy what they keep
+                        registration.listener.onSegmentArrive(segment.wrap(packet));
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Exception while handling segment", e);
+                } finally {
+                    segment.recycle();
+                    PacketPool.getInstance().release(packet);
+                }
+            }
+
+            // give other queues a turn if this one has more packets
+            if (handled == BATCH_SIZE && !registration.cancelled) {
+                registration.onPacketAvailable(registration.queue);
+            }
+        }
+    }
+}
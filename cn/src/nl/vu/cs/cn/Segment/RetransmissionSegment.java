@@ -1,22 +1,109 @@
 package nl.vu.cs.cn.tcp.segment;
 
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.PacketPool;
+import nl.vu.cs.cn.tcp.ChecksumUtil;
+import nl.vu.cs.cn.tcp.timeout.TimerWheel;
+
 /**
- * RetransmissionSegment wraps a Segment and maintains the retry number.
+ * RetransmissionSegment wraps a Segment and maintains the retry number, the
+ * time at which the segment was sent and its retransmission timer. It also keeps
+ * the encoded packet, so retransmissions send the same bytes without encoding again.
  */
 public class RetransmissionSegment {
 
     private final Segment segment;
+    private IP.Packet packet;        // encoded segment, returned to the packet pool on release()
     private int retry;
+    private final long sendTime;    // System.nanoTime() of the first transmission
+
+    private TimerWheel.Timer timer; // pending retransmission timer
+    private boolean queued;         // true while the segment is in the retransmission queue
+    private boolean sacked;         // true once the receiver reported it in a SACK block
 
-    public RetransmissionSegment(Segment segment){
+    public RetransmissionSegment(Segment segment, IP.Packet packet){
         this.segment = segment;
+        this.packet = packet;
         retry = 0;
+        sendTime = System.nanoTime();
     }
 
     public Segment getSegment(){
         return segment;
     }
 
+    /**
+     * @return the encoded segment, or null once the segment has been released
+     */
+    public IP.Packet getPacket(){
+        return packet;
+    }
+
+    /**
+     * Set the ACK number and window of the encoded segment to the current values
+     * before it is resent. The checksum is updated for just the changed fields
+     * (RFC 1624) instead of summing the whole segment again.
+     * @param ack
+     * @param window the window field, already scaled down
+     */
+    public void updateAckAndWindow(long ack, int window){
+        if(packet == null || !segment.isAck()){
+            return;
+        }
+
+        byte[] buf = packet.data;
+        short checksum = getShort(buf, Segment.CHECKSUM_OFFSET);
+
+        int oldAck = getInt(buf, Segment.ACK_OFFSET);
+        int newAck = (int) (ack % Integer.MAX_VALUE);
+        if(oldAck != newAck){
+            checksum = ChecksumUtil.updateChecksum(checksum, oldAck, newAck);
+            putInt(buf, Segment.ACK_OFFSET, newAck);
+        }
+
+        short oldWindow = getShort(buf, Segment.WINDOW_OFFSET);
+        short newWindow = (short) window;
+        if(oldWindow != newWindow){
+            checksum = ChecksumUtil.updateChecksum(checksum, oldWindow, newWindow);
+            putShort(buf, Segment.WINDOW_OFFSET, newWindow);
+        }
+
+        putShort(buf, Segment.CHECKSUM_OFFSET, checksum);
+    }
+
+    private static short getShort(byte[] buf, int offset){
+        return (short) (((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff));
+    }
+
+    private static int getInt(byte[] buf, int offset){
+        return ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16)
+                | ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+    }
+
+    private static void putShort(byte[] buf, int offset, short value){
+        buf[offset] = (byte) (value >> 8);
+        buf[offset + 1] = (byte) value;
+    }
+
+    private static void putInt(byte[] buf, int offset, int value){
+        buf[offset] = (byte) (value >> 24);
+        buf[offset + 1] = (byte) (value >> 16);
+        buf[offset + 2] = (byte) (value >> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Return the encoded segment to the packet pool. Call this once the segment
+     * will not be retransmitted anymore. Note that the data of the segment may
+     * point into the packet, so it becomes invalid as well.
+     */
+    public void release(){
+        if(packet != null){
+            PacketPool.getInstance().release(packet);
+            packet = null;
+        }
+    }
+
     public int getRetry(){
         return retry;
     }
@@ -25,6 +112,54 @@ public class RetransmissionSegment {
         retry++;
     }
 
+    public long getSendTime(){
+        return sendTime;
+    }
+
+    /**
+     * According to Karn's algorithm only segments that were never retransmitted
+     * may be used to measure the round trip time.
+     * @return true if an ACK for this segment gives a valid RTT sample
+     */
+    public boolean isRttSample(){
+        return retry == 0;
+    }
+
+    public TimerWheel.Timer getTimer(){
+        return timer;
+    }
+
+    public void setTimer(TimerWheel.Timer timer){
+        this.timer = timer;
+    }
+
+    /**
+     * Cancel the pending retransmission timer, if any.
+     */
+    public void cancelTimer(){
+        if(timer != null){
+            timer.cancel();
+        }
+    }
+
+    public boolean isQueued(){
+        return queued;
+    }
+
+    public void setQueued(boolean queued){
+        this.queued = queued;
+    }
+
+    /**
+     * @return true if the receiver holds this segment, so it does not need to be retransmitted
+     */
+    public boolean isSacked(){
+        return sacked;
+    }
+
+    public void setSacked(boolean sacked){
+        this.sacked = sacked;
+    }
 
     @Override
     public boolean equals(Object o) {
@@ -36,4 +171,9 @@ public class RetransmissionSegment {
 
         return false;
     }
-}
\ No newline at end of file
+
+    @Override
+    public int hashCode() {
+        return segment.hashCode();
+    }
+}
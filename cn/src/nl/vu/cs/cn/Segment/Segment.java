@@ -1,8 +1,6 @@
 package nl.vu.cs.cn.tcp.segment;
 
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 import nl.vu.cs.cn.IP;
 import nl.vu.cs.cn.tcp.ChecksumUtil;
@@ -33,7 +31,7 @@ public class Segment {
 
     /**
      * Data offset: The number of 32 bit words in the TCP Header.  This indicates where
-     * the data begins. We have 5 words of 32 bits:
+     * the data begins. We have 5 words of 32 bits, followed by the options (if any):
      * - Source + destination port
      * - Seq num
      * - Ack num
@@ -42,8 +40,17 @@ public class Segment {
      */
     private static final short DATA_OFFSET = 5;
 
+    /** size of the header without options */
     public static final short HEADER_SIZE = DATA_OFFSET * 4;
 
+    /** maximum size of the options, limited by the 4 bit data offset */
+    public static final int MAX_OPTIONS_SIZE = 40;
+
+    // positions of header fields that are changed in encoded segments
+    static final int ACK_OFFSET = 8;
+    static final int WINDOW_OFFSET = 14;
+    static final int CHECKSUM_OFFSET = 16;
+
     private IP.IpAddress sourceAddr;
     private IP.IpAddress destinationAddr;
     private short sourcePort;
@@ -51,16 +58,21 @@ public class Segment {
 
     private long seq;    // segment sequence number
     private long ack;    // segment acknowledgement number
-    private short wnd;  // segment window
+    private int wnd;    // segment window, the unsigned 16 bit field as sent (not scaled)
 
     private int len = -1;    // segment length data + syn + fin
 
     // Note: we omit variables urgent pointer and precendence value because
     // those are unsupported in this implementation.
 
-    private byte[] data;
+    private byte[] data;        // data is the part [dataOffset, dataOffset + dataLength) of this array
+    private int dataOffset;
+    private int dataLength;
     private boolean isUrg, isAck, isPsh, isRst, isSyn, isFin;
 
+    private byte[] options;     // encoded options, padded to a multiple of 4 bytes
+    private int optionsLength;
+
     private short checksum;
     private boolean validChecksum;
 
@@ -72,7 +84,7 @@ public class Segment {
      * @param destinationPort
      * @param seq
      */
-    protected Segment(IP.IpAddress sourceAddr, IP.IpAddress destinationAddr, short sourcePort, short destinationPort, long seq, short wnd) {
+    protected Segment(IP.IpAddress sourceAddr, IP.IpAddress destinationAddr, short sourcePort, short destinationPort, long seq, int wnd) {
         this(sourceAddr, destinationAddr, sourcePort, destinationPort, seq, wnd, -1);
     }
 
@@ -85,7 +97,7 @@ public class Segment {
      * @param seq
      * @param ack
      */
-    protected Segment(IP.IpAddress sourceAddr, IP.IpAddress destinationAddr, short sourcePort, short destinationPort, long seq, short wnd, long ack) {
+    protected Segment(IP.IpAddress sourceAddr, IP.IpAddress destinationAddr, short sourcePort, short destinationPort, long seq, int wnd, long ack) {
         this.sourceAddr = sourceAddr;
         this.destinationAddr = destinationAddr;
         this.sourcePort = sourcePort;
@@ -105,44 +117,58 @@ public class Segment {
         isRst = false;
     }
 
+    /**
+     * Decode a received segment. The data is copied, use SegmentView to decode
+     * without allocating.
+     * @param packet the segment, exactly packet.length bytes
+     * @param sourceAddr in "host" order
+     * @param destinationAddr in "host" order
+     */
     public Segment(byte[] packet, int sourceAddr, int destinationAddr){
-        this.sourceAddr = IP.IpAddress.getAddress(sourceAddr);
-        this.destinationAddr = IP.IpAddress.getAddress(destinationAddr);
-
-        ByteBuffer bb = ByteBuffer.wrap(packet);
-
-        sourcePort = bb.getShort();
-        destinationPort = bb.getShort();
-        seq = bb.getInt();
-        ack = bb.getInt();
-
-        /*
-         * bits contains data offset, reserved area, and control bits.
-         * It looks like 0101 0000 0011 1111 (if all flags would be true,
-         * and the data offset would be 5). We ignore the data offset for now,
-         * and read out the control bits using the logical and operation.
-         */
-        short bits = bb.getShort();
-        setControlBits(bits);
-
-        wnd = bb.getShort();
-        int checksumPosition = bb.position();
-        checksum = bb.getShort();
-
-        // ignore urgent pointer, never used in this implementation
-        bb.getShort();
+        this(new SegmentView().wrap(packet, 0, packet.length, sourceAddr, destinationAddr));
+    }
 
-        // options never used in this implementation, so data comes next (if there is data)
-        if(bb.remaining() > 0){
-            data = new byte[bb.remaining()];
-            bb.get(data);
+    /**
+     * Create a copy of a segment, including a copy of its data. Use this to keep
+     * a segment that is only a view on a buffer that will be reused.
+     * @param segment
+     */
+    public Segment(Segment segment){
+        sourceAddr = segment.getSourceAddr();
+        destinationAddr = segment.getDestinationAddr();
+        sourcePort = segment.getSourcePort();
+        destinationPort = segment.getDestinationPort();
+        seq = segment.getSeq();
+        ack = segment.getAck();
+        wnd = segment.getWindow();
+
+        isUrg = segment.isUrg();
+        isAck = segment.isAck();
+        isPsh = segment.isPsh();
+        isRst = segment.isRst();
+        isSyn = segment.isSyn();
+        isFin = segment.isFin();
+
+        checksum = segment.getChecksum();
+        validChecksum = segment.hasValidChecksum();
+
+        if(segment.getDataLength() > 0){
+            dataLength = segment.getDataLength();
+            data = new byte[dataLength];
+            System.arraycopy(segment.getData(), segment.getDataOffset(), data, 0, dataLength);
         }
 
-        // check if checksum is correct
-        bb.putShort(checksumPosition, (short)0);
+        if(segment.getOptionsLength() > 0){
+            optionsLength = segment.getOptionsLength();
+            options = new byte[optionsLength];
+            System.arraycopy(segment.getOptions(), segment.getOptionsOffset(), options, 0, optionsLength);
+        }
+    }
 
-        short expectedChecksum = ChecksumUtil.calculateChecksum(bb, this.sourceAddr, this.destinationAddr, bb.capacity());
-        validChecksum = (expectedChecksum == checksum);
+    /**
+     * Constructor for subclasses that keep the segment fields elsewhere.
+     */
+    protected Segment(){
     }
 
     /**
@@ -165,6 +191,13 @@ public class Segment {
         return sourceAddr;
     }
 
+    /**
+     * @return the source address as an integer in "host" order
+     */
+    public int getSourceAddress(){
+        return sourceAddr.getAddress();
+    }
+
     public short getSourcePort() {
         return sourcePort;
     }
@@ -173,6 +206,13 @@ public class Segment {
         return destinationAddr;
     }
 
+    /**
+     * @return the destination address as an integer in "host" order
+     */
+    public int getDestinationAddress(){
+        return destinationAddr.getAddress();
+    }
+
     public short getDestinationPort() {
         return destinationPort;
     }
@@ -182,13 +222,21 @@ public class Segment {
     }
 
     public long getLastSeq() {
-        return (getLen() == 0) ? seq : ((seq + getLen() - 1) % Integer.MAX_VALUE);
+        return (getLen() == 0) ? getSeq() : ((getSeq() + getLen() - 1) % Integer.MAX_VALUE);
     }
 
     public long getAck() {
         return ack;
     }
 
+    /**
+     * @return the window field, between 0 and 65535. Segments other than SYNs need to
+     * be scaled by the window scale of the connection.
+     */
+    public int getWindow() {
+        return wnd;
+    }
+
     /**
      * Get the length of the segment, which is the length of the data plus
      * the length of control bits that take up space (SYN and FIN)
@@ -197,33 +245,43 @@ public class Segment {
     public int getLen() {
         if(len == -1){
             len = getDataLength();
-            if(isSyn) len += 1;
-            if(isFin) len += 1;
+            if(isSyn()) len += 1;
+            if(isFin()) len += 1;
         }
         return len;
     }
 
+    /**
+     * @return the array that holds the data, which starts at getDataOffset()
+     */
     public byte[] getData(){
         return data;
     }
 
+    public int getDataOffset(){
+        return dataOffset;
+    }
+
     /**
-     * Copy bytes from data (starting at offset, maximum of either len or max data size)
-     * into the data field.
+     * Use bytes from data (starting at offset, maximum of either len or max data size)
+     * as the data of this segment. The bytes are not copied, so they should not change
+     * until the segment has been encoded.
      * @param data
      * @param offset
      * @param len
-     * @return number of bytes copied into the data field
+     * @return number of bytes used as data
      */
     public int setData(byte[] data, int offset, int len){
         len = Math.min(TransmissionControlBlock.MAX_SEGMENT_SIZE - HEADER_SIZE, len);
-        this.data = new byte[len];
-        System.arraycopy(data, offset, this.data, 0, len);
+        this.data = data;
+        this.dataOffset = offset;
+        this.dataLength = len;
+        this.len = -1;
         return len;
     }
 
     /**
-     * Copy bytes from data into the data field. This is the same as calling
+     * Use data as the data of this segment. This is the same as calling
      * setData(data, 0, data.length).
      * @param data
      * @return
@@ -233,7 +291,43 @@ public class Segment {
     }
 
     public int getDataLength(){
-        return (data == null) ? 0 : data.length;
+        return dataLength;
+    }
+
+    /**
+     * Use the encoded options in options as the options of this segment, see OptionUtil.
+     * The bytes are not copied, so they should not change until the segment has been encoded.
+     * @param options
+     * @param length a multiple of 4, at most MAX_OPTIONS_SIZE
+     */
+    public void setOptions(byte[] options, int length){
+        if(length % 4 != 0 || length > MAX_OPTIONS_SIZE){
+            throw new IllegalArgumentException("Invalid options length " + length);
+        }
+        this.options = options;
+        this.optionsLength = length;
+    }
+
+    /**
+     * @return the array that holds the options, which start at getOptionsOffset()
+     */
+    public byte[] getOptions(){
+        return options;
+    }
+
+    public int getOptionsOffset(){
+        return 0;
+    }
+
+    public int getOptionsLength(){
+        return optionsLength;
+    }
+
+    /**
+     * @return the size of the header including options
+     */
+    public int getHeaderLength(){
+        return HEADER_SIZE + getOptionsLength();
     }
 
     public boolean isUrg() {
@@ -292,26 +386,49 @@ public class Segment {
         return validChecksum;
     }
 
+    /**
+     * Encode this segment into a new array.
+     * @return
+     */
     public byte[] encode(){
-        int capacity = HEADER_SIZE; // capacity in bytes
-        if(getDataLength() > 0){
-            capacity += data.length;
+        byte[] buf = new byte[getHeaderLength() + getDataLength()];
+        encode(buf, 0);
+        return buf;
+    }
+
+    /**
+     * Encode this segment into buf, starting at offset. The data is not copied when
+     * it already is in place, i.e. right behind the header (and options) in buf.
+     *
+     * @param buf
+     * @param offset
+     * @return the number of bytes written
+     */
+    public int encode(byte[] buf, int offset){
+        int headerLength = getHeaderLength();
+        int length = headerLength + getDataLength();
+
+        // move the data first, it may be in the same buffer right behind a header without options
+        if(getDataLength() > 0 && !(data == buf && dataOffset == offset + headerLength)){
+            System.arraycopy(data, dataOffset, buf, offset + headerLength, dataLength);
+            if(data == buf){
+                dataOffset = offset + headerLength;
+            }
         }
 
-        ByteBuffer bb = ByteBuffer.allocate(capacity);
-        bb.putShort(sourcePort);
-        bb.putShort(destinationPort);
-        bb.putInt((int)seq);
-        bb.putInt((int)ack);
+        putShort(buf, offset, sourcePort);
+        putShort(buf, offset + 2, destinationPort);
+        putInt(buf, offset + 4, (int) seq);
+        putInt(buf, offset + ACK_OFFSET, (int) ack);
 
         /*
          * Create bits for data offset, reserved area, and control bits.
          *
-         * Start with DATA_OFFSET, which looks like 0000 0000 0000 0101 (assuming
-         * the value DATA_OFFSET equals 5). The data offset field is 4 bits long,
+         * Start with the data offset, which looks like 0000 0000 0000 0101 (assuming
+         * a header of 5 words without options). The data offset field is 4 bits long,
          * so shift to the left by twelve. This results in 0101 0000 0000 0000
          */
-        short bits = DATA_OFFSET << 12;
+        short bits = (short) ((headerLength / 4) << 12);
 
         /*
          * Set the control bits using the logical operator
@@ -329,32 +446,52 @@ public class Segment {
          * length 16, the bit string looks exactly as we need it. Also, the reserved
          * area will always stay 0.
          */
-
-        bb.putShort(bits);
-        bb.putShort(wnd);
-
-        /*
-         * Store current position so we can inject the checksum later on.
-         * Also, insert 16 zero's that we'll later replace with the actual
-         * checksum.
-         */
-        int checksumPosition = bb.position();
-        bb.putShort((short) 0);
+        putShort(buf, offset + 12, bits);
+        putShort(buf, offset + WINDOW_OFFSET, (short) wnd);
 
         /*
-         * Set urgent pointer; this will be ignored if urg is not set,
+         * Insert 16 zero's as checksum while calculating the actual checksum,
+         * and set the urgent pointer; this will be ignored if urg is not set,
          * which is the case in this implementation.
          */
-        bb.putShort((short) 0);
+        putShort(buf, offset + CHECKSUM_OFFSET, (short) 0);
+        putShort(buf, offset + 18, (short) 0);
 
-        if(getDataLength() > 0){
-            bb.put(data);
+        if(optionsLength > 0){
+            System.arraycopy(options, 0, buf, offset + HEADER_SIZE, optionsLength);
         }
 
-        checksum = ChecksumUtil.calculateChecksum(bb, sourceAddr, destinationAddr, bb.capacity());
-        bb.putShort(checksumPosition, checksum);
+        checksum = ChecksumUtil.calculateChecksum(buf, offset, length,
+                sourceAddr.getAddress(), destinationAddr.getAddress());
+        putShort(buf, offset + CHECKSUM_OFFSET, checksum);
+
+        return length;
+    }
+
+    private static void putShort(byte[] buf, int offset, short value){
+        buf[offset] = (byte) (value >> 8);
+        buf[offset + 1] = (byte) value;
+    }
 
-        return bb.array();
+    private static void putInt(byte[] buf, int offset, int value){
+        buf[offset] = (byte) (value >> 24);
+        buf[offset + 1] = (byte) (value >> 16);
+        buf[offset + 2] = (byte) (value >> 8);
+        buf[offset + 3] = (byte) value;
+    }
+
+    private boolean dataEquals(Segment segment){
+        if(segment.getDataLength() != getDataLength()){
+            return false;
+        }
+        byte[] data = getData();
+        byte[] otherData = segment.getData();
+        for(int i = 0; i < getDataLength(); i++){
+            if(otherData[segment.getDataOffset() + i] != data[getDataOffset() + i]){
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -364,37 +501,53 @@ public class Segment {
         }
 
         Segment segment = (Segment) o;
-        return segment.sourceAddr.getAddress() == sourceAddr.getAddress() &&
-                segment.sourcePort == sourcePort &&
-                segment.destinationAddr.getAddress() == destinationAddr.getAddress() &&
-                segment.destinationPort == destinationPort &&
-                segment.seq == seq && segment.ack == ack && segment.wnd == wnd &&
-                segment.isAck == isAck && segment.isSyn == isSyn && segment.isFin == isFin &&
-                segment.isRst == isRst && segment.isPsh == isPsh &&
-                Arrays.equals(segment.data, data);
+        return segment.getSourceAddress() == getSourceAddress() &&
+                segment.getSourcePort() == getSourcePort() &&
+                segment.getDestinationAddress() == getDestinationAddress() &&
+                segment.getDestinationPort() == getDestinationPort() &&
+                segment.getSeq() == getSeq() && segment.getAck() == getAck() && segment.getWindow() == getWindow() &&
+                segment.isAck() == isAck() && segment.isSyn() == isSyn() && segment.isFin() == isFin() &&
+                segment.isRst() == isRst() && segment.isPsh() == isPsh() &&
+                dataEquals(segment);
+    }
+
+    @Override
+    public int hashCode() {
+        long seq = getSeq();
+        long ack = getAck();
+        int result = (int) (seq ^ (seq >>> 32));
+        result = 31 * result + (int) (ack ^ (ack >>> 32));
+        result = 31 * result + getSourcePort();
+        result = 31 * result + getDestinationPort();
+        result = 31 * result + (isSyn() ? 1 : 0) + (isFin() ? 2 : 0) + (isAck() ? 4 : 0);
+        byte[] data = getData();
+        for(int i = 0; i < getDataLength(); i++){
+            result = 31 * result + data[getDataOffset() + i];
+        }
+        return result;
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("[src: ").append(IP.IpAddress.htoa(sourceAddr.getAddress())).append(":").append(sourcePort).append("] ");
-        sb.append("[dst: ").append(IP.IpAddress.htoa(destinationAddr.getAddress())).append(":").append(destinationPort).append("] ");
-        sb.append(" | SEQ: ").append(seq);
-        if(isAck) sb.append(" | ACK: ").append(ack);
+        sb.append("[src: ").append(IP.IpAddress.htoa(getSourceAddress())).append(":").append(getSourcePort()).append("] ");
+        sb.append("[dst: ").append(IP.IpAddress.htoa(getDestinationAddress())).append(":").append(getDestinationPort()).append("] ");
+        sb.append(" | SEQ: ").append(getSeq());
+        if(isAck()) sb.append(" | ACK: ").append(getAck());
         sb.append(" | ");
-        sb.append("checksum: ").append(Integer.toHexString(checksum)).append(" | ");
-        if(isUrg) sb.append("URG, ");
-        if(isAck) sb.append("ACK, ");
-        if(isPsh) sb.append("PSH, ");
-        if(isRst) sb.append("RST, ");
-        if(isSyn) sb.append("SYN, ");
-        if(isFin) sb.append("FIN ");
+        sb.append("checksum: ").append(Integer.toHexString(getChecksum())).append(" | ");
+        if(isUrg()) sb.append("URG, ");
+        if(isAck()) sb.append("ACK, ");
+        if(isPsh()) sb.append("PSH, ");
+        if(isRst()) sb.append("RST, ");
+        if(isSyn()) sb.append("SYN, ");
+        if(isFin()) sb.append("FIN ");
         if(getDataLength() > 0) try {
-            sb.append(" | [").append(new String(data, "UTF-8")).append("]");
+            sb.append(" | [").append(new String(getData(), getDataOffset(), getDataLength(), "UTF-8")).append("]");
         } catch (UnsupportedEncodingException e) {
-            sb.append(" | [").append(new String(data)).append("]");
+            sb.append(" | [").append(new String(getData(), getDataOffset(), getDataLength())).append("]");
         }
 
         return sb.toString();
     }
-}
\ No newline at end of file
+}
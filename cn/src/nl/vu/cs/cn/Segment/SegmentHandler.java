@@ -1,291 +1,476 @@
-package cn.src.nl.vu.cs.cn.Segment;
+package nl.vu.cs.cn.tcp.segment;
 
 
-import java.io.IOException;
-
-import cn.src.nl.vu.cs.cn.IP;
-import cn.src.nl.vu.cs.cn.TranmissionControlBlock;
-import cn.src.nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.tcp.TransmissionControlBlock;
 
 
 /**
  * Created by haritha on 2/1/17.
- * Deals with each layer it passes through
+ * Deals with each segment that arrives, following the event processing
+ * rules of RFC 793 (section 3.9, SEGMENT ARRIVES).
  */
-
-public class SegmentHandler extends SegmentsArriveListener {
+public class SegmentHandler implements OnSegmentArriveListener {
 
     private String TAG = "SegmentHandler";
 
-    private volatile TranmissionControlBlock tcb;
-
-    private volatile IP ip;
-
+    private final TransmissionControlBlock tcb;
 
+    private final SegmentSender sender;
 
+    private final long[] sackBlocks = new long[2 * OptionUtil.MAX_SACK_BLOCKS];
 
+    public SegmentHandler(TransmissionControlBlock tcb, SegmentSender sender){
+        this.tcb = tcb;
+        this.sender = sender;
 
-    public void onSegmentArrive (Segment segment) {
+        TAG += (tcb.isServer()) ? " [server]" : " [client]";
+    }
 
-        Log.v (TAG, "Recieved:" + segment.toString());
+    public void onSegmentArrive(Segment segment) {
 
-        if (!segment.isValidCheckSum()) {
+        Log.v(TAG, "Received: {}", segment);
 
-            Log.v(TAG,  "Recieved segment with invalid checksum. Dropping segment");
+        if (!segment.hasValidChecksum()) {
+            Log.v(TAG, "Received segment with invalid checksum. Dropping segment");
+            tcb.getMetrics().checksumFailures.increment();
             return;
         }
-
+        tcb.getMetrics().segmentsReceived.increment();
+        tcb.getMetrics().bytesReceived.add(segment.getDataLength());
 
         synchronized (tcb) {
             switch (tcb.getState()) {
-
                 case CLOSED:
                     Log.v(TAG, "onSegmentArrive(): segment is dropped. Connection does not exist");
-                    return ;
-
+                    return;
                 case LISTEN:
-
-                    SegmentArrivesInListenState(segment);
+                    handleSegmentArrivesInListenState(segment);
                     return;
-
-                case SYN_RECIEVED:
-                    break;
                 case SYN_SENT:
-
-                    SegmentArrivesInSynSentState();
+                    handleSegmentArrivesInSynSentState(segment);
                     return;
-                case ESTABLISHED:
-                    break;
-                case FIN_WAIT_1:
-                    break;
-                case FIN_WAIT_2:
-                    break;
-                case TIME_WAIT:
-                    break;
-                case CLOSE_WAIT:
-                    break;
-                case LAST_ACK:
-                    break;
-                case CLOSING:
-                    break;
                 default:
-                        //check if it is an acceptable sequence number
-                        if(!acceptableSegment(segment)) {
-                            Log.w(TAG, "onSegmentArrive(): unacceptable segment (" + segment.toString() + ") received. Dropping segment");
-                            // send ACK <SEQ=SND.NXT><ACK=RCV.NXT><CTL=ACK>
-                            Segment outSegment = SegmentUtils.getPacket(tcb, tcb.getSendNext(), tcb.getReceiveNext());
-                            IP.Packet packet = IPUtil.getPacket(outSegment);
-                            try {
-                                Log.v(TAG, "Sending: " + outSegment.toString());
-                                ip.ip_send(packet);
-                            } catch (IOException e) {
-                                Log.e(TAG, "Error while sending ACK. Will be retransmitted...", e);
-                            }
-
-                            return;
-                        }
-
-                        //no RST bit implementation
-                        //no security checking implemented
-
-                        //check SYN bit implementation
-
-                        if(segment.isSyn()){
-                            // This is an error, and should responed with RESET (however that's not supported)
-                            Log.e(TAG, "onSegmentArrive(): unexpected SYN segment. Ignoring");
-                            tcb.enterState(tcb.State.CLOSED);
-                            return;
-                        }
-
-                        //check the ACK field
-                        if (!segment.isAck()) {
-                            Log.w(TAG, "onSegmentArrive(): unexpected segment without ACK. Dropping segment");
-                            return;
-                        } else {
-                            if(! handleACKArriveInDefaultState(segment)){ //need to be implemented
-                                return;
-                            }
-                        }
-
-                        //check the URG bit field
-                        if(segment.getDataLength() > 0) {
-                            handleSegmentText(Segment);
-                        }
-
-                        //check if Fin bit
-                        if (segment.isFin()) {
-                            handleSegmentFIN(Segment);
-                        }
-
-
-
-
+                    handleSegmentArrivesInOtherState(segment);
             }
         }
-
-
-    }
-
-    private void handleACKArriveInDefaultState(Segment segment) {
-
-    }
-
-    private void handleSegmentText(Segment segment) {
-
-    }
-
-    private void handleSegmentFIN(Segment segment) {
-
     }
 
-    public void SegmentArrivesInListenState (Segment segment) {
+    private void handleSegmentArrivesInListenState(Segment segment) {
 
-        //Recieve client sync and sent sync+ACK
-        //Server is waiting to recieve a SYN message from the client
+        // Receive client SYN and send SYN+ACK
 
         if (segment.isRst()) {
-
             Log.v(TAG, "onSegmentArrive(RST): state is LISTEN, RST is ignored");
 
         } else if (segment.isAck()) {
-            //recieves an ack which is not necessary
-            Log.v(TAG, "Unkown acknowledgement");
-            //Implementing the connection reset
+            // any acknowledgment is bad if it arrives on a connection still in the LISTEN state,
+            // this should be answered with a RESET (however that's not supported)
+            Log.w(TAG, "onSegmentArrive(): unexpected ACK in LISTEN state. Ignoring");
 
         } else if (segment.isSyn()) {
-            //recieves a SYN from the client
-
-            //sends back a message with SYN+ACK
-
-            //get the sequence number and add one to it.
-            tcb.setRecieveNext(segment.getSeqno() +segment.getLen()% Integer. MAX_VALUE);
-            tcb.setIntialSequenceNumber(segment.getSeqno());
-
-            //server moves to SYN recieved state
-            tcb.enterState(TranmissionControlBlock.State.SYN_RECIEVED);
-
-            long isn = tcb.getIntialSequenceNumber();
-            Segment outgoingSegment =  //have SYN+ACK pack (iss, offset for recieving the next);
-
-            try {
-
-                Log.v(TAG, "Sending: ");
-                ip.ip_send(); //sends the packet
-
-            } catch (IOException ) {
-
-                Log.e(TAG, "Error while sending SYN+ACK", e)
-
-            } finally {
-
-                //goes to the transmission Queue and waits there for retransmission
-                tcb.addToRetransmissionQueue(new RetransmissionSegment(outgoingSegment));
-            }
-
-            tcb.setSendNext(iss +segment.getLen()); //find the correct function
-
+            // the foreign socket is only known once the client SYN arrives
+            tcb.setForeignSocketInfo(segment.getSourceAddr(), segment.getSourcePort());
+
+            // set receive next sequence number by the length of this segment (i.e. SYN)
+            tcb.setReceiveNext(segment.getSeq() + segment.getLen());
+            tcb.setInitialReceiveSequenceNumber(segment.getSeq());
+            tcb.setSendWindow(segment.getWindow());
+            tcb.setSackEnabled(tcb.isSackPermitted() && OptionUtil.hasSackPermitted(segment));
+            tcb.onWindowScaleOption(OptionUtil.getWindowScale(segment));
+
+            // Send SYN ACK segment <SEQ=ISS><ACK=RCV.NXT><CTL=SYN,ACK>
+            long iss = tcb.getInitialSendSequenceNumber();
+            Segment outSegment = SegmentUtil.getSYNACKPacket(tcb, iss, tcb.getReceiveNext());
+            sender.send(outSegment, true);
+
+            tcb.setSendNext(iss + outSegment.getLen());
             tcb.setSendUnacknowledged(iss);
 
+            tcb.enterState(TransmissionControlBlock.State.SYN_RECEIVED);
+
         } else {
             Log.w(TAG, "onSegmentArrive(): unexpected state. Not a problem though. Ignoring segment");
         }
-
-
     }
 
-    public void SegmentArrivesInSynSentState (Segment segment) {
-
-        if(segment.isAck()) {
-            if(!SegmentUtils.inWindow(segment.getAckno(), segment.getAckno(), tcb.getIntialSequenceNumber()+2)) {
+    private void handleSegmentArrivesInSynSentState(Segment segment) {
 
-                Log.w(TAG, "onSegmentArrive(): unexpected ACK num (segment discarded)");
+        if (segment.isAck()) {
+            // If SEG.ACK =< ISS, or SEG.ACK > SND.NXT the segment is unacceptable
+            if (!SegmentUtil.inWindow(tcb.getSendUnacknowledged() + 1, segment.getAck(), tcb.getSendNext() + 1)) {
+                Log.w(TAG, "onSegmentArrive(): unacceptable ACK received. Ignoring");
                 return;
             }
-
-
-        } else if (SegmentUtils.inWindow(tcb.getSendUnacknowledged(), segment.getAck(), tcb.getSendNext()+1)) {
             Log.v(TAG, "onSegmentArrive(): acceptable ACK received");
+        }
 
-        } else {
-            Log.w(TAG, "onSegmentArrive(): unacceptable ACK received. Ignoring");
+        if (segment.isRst()) {
+            Log.v(TAG, "onSegmentArrive(RST): RST is not supported. Ignoring");
             return;
+        }
 
-        } else {
-            Log.w(TAG, "onSegmentArrive(): excepted SYN-ACK in SYN SENT state. Missing ACK. Ignoring");
+        if (!segment.isSyn()) {
+            Log.w(TAG, "onSegmentArrive(): expected SYN-ACK in SYN SENT state. Missing SYN. Ignoring");
             return;
         }
 
-        if(Segment.isSyn()) {
+        // set receive next sequence number by the length of this segment (i.e. SYN)
+        tcb.setReceiveNext(segment.getSeq() + segment.getLen());
+        tcb.setInitialReceiveSequenceNumber(segment.getSeq());
+        tcb.setSendWindow(segment.getWindow());
+        tcb.setSackEnabled(tcb.isSackPermitted() && OptionUtil.hasSackPermitted(segment));
+        tcb.onWindowScaleOption(OptionUtil.getWindowScale(segment));
 
-           //set and recieve next sequence number by the length of this segment
-
-            tcb.setRecieveNext(segment.getSeqno() +segment.getLen()% Integer. MAX_VALUE);
-            tcb.setIntialSequenceNumber(segment.getSeqno());
+        if (segment.isAck()) {
+            tcb.setSendUnacknowledged(segment.getAck());
+            tcb.removeFromRetransmissionQueue(segment.getAck());
+        }
 
-            tcb.setSendUnacknowldeged(segment.getAckno());
-            tcb.removeFromRetransmissionQueue(segment.getAckno());
+        if (segment.isAck() && SegmentUtil.isAcked(tcb.getInitialSendSequenceNumber(), segment.getAck(), 1)) {
+            // our SYN has been ACKed
+            tcb.enterState(TransmissionControlBlock.State.ESTABLISHED);
 
-            if(SegmentUtils.isAcked(tcb.getIntialSequenceNumber(), segment.getAckno(), 1)){
-                // our SYN has been ACKed
-                tcb.enterState(tcb.State.ESTABLISHED);
+            // Send ACK segment <SEQ=SND.NXT><ACK=RCV.NXT><CTL=ACK>
+            sender.sendAck();
+        } else {
+            // simultaneous open
+            tcb.enterState(TransmissionControlBlock.State.SYN_RECEIVED);
 
-                // TODO: add data that has been queued for transmission here
+            // Send SYN ACK segment <SEQ=ISS><ACK=RCV.NXT><CTL=SYN,ACK>
+            Segment outSegment = SegmentUtil.getSYNACKPacket(tcb, tcb.getInitialSendSequenceNumber(), tcb.getReceiveNext());
+            sender.send(outSegment, true);
+        }
+    }
 
-                // Send ACK segment <SEQ=SND.NXT><ACK=RCV.NXT><CTL=ACK>
-                Segment outSegment = SegmentUtils.getPacket(tcb, tcb.getSendNext(), tcb.getReceiveNext());
-                IP.Packet packet = IPUtil.getPacket(outSegment);
-                try {
-                    Log.v(TAG, "Sending: " + outSegment.toString());
-                    ip.ip_send(packet);
-                } catch (IOException e) {
-                    Log.e(TAG, "Error while sending ACK.. will be retried", e);
-                }
+    private void handleSegmentArrivesInOtherState(Segment segment) {
 
-                tcb.advanceSendNext(outSegment.getLen());
-
-            } else {
-                tcb.enterState(tcb.State.SYN_RECEIVED);
-
-                // Send SYN ACK segment <SEQ=ISS><ACK=RCV.NXT><CTL=SYN,ACK>
-                Segment outSegment = SegmentUtils.getSYNACKPacket(tcb, tcb.getIntialSequenceNumber(), tcb.getReceiveNext());
-                IP.Packet packet = IPUtil.getPacket(outSegment);
-                try {
-                    Log.v(TAG, "Sending: " + outSegment.toString());
-                    ip.ip_send(packet);
-                } catch (IOException e) {
-                    Log.e(TAG, "Error while sending SYN ACK.. will be retried", e);
-                } finally {
-                    tcb.addToRetransmissionQueue(new RetransmissionSegment(outSegment));
-                }
-            }
-        } else {
-            Log.w(TAG, "onSegmentArrive(): excepted SYN-ACK in SYN SENT state. Missing SYN. Ignoring");
+        // check if it is an acceptable sequence number
+        if (!acceptableSegment(segment)) {
+            Log.w(TAG, "onSegmentArrive(): unacceptable segment ({}) received. Dropping segment", segment);
+            // send ACK <SEQ=SND.NXT><ACK=RCV.NXT><CTL=ACK>
+            sender.sendAck();
             return;
         }
 
+        // no RST bit implementation
+        // no security checking implemented
 
-    }
+        // check the SYN bit
+        if (segment.isSyn()) {
+            // This is an error, and should be responded with RESET (however that's not supported)
+            Log.e(TAG, "onSegmentArrive(): unexpected SYN segment. Closing connection");
+            tcb.enterState(TransmissionControlBlock.State.CLOSED);
+            tcb.stopWaitingForDataToProcess();
+            return;
+        }
 
+        // check the ACK field
+        if (!segment.isAck()) {
+            Log.w(TAG, "onSegmentArrive(): unexpected segment without ACK. Dropping segment");
+            return;
+        } else if (!handleACK(segment)) {
+            return;
+        }
 
+        // URG is not supported, so process the segment text
+        if (segment.getDataLength() > 0) {
+            handleSegmentText(segment);
+        }
 
+        // check the FIN bit
+        if (segment.isFin()) {
+            handleSegmentFIN(segment);
+        }
+    }
 
+    /**
+     * Check the ACK field of a segment that arrived in a synchronized state.
+     *
+     * @param segment
+     * @return true if processing of the segment should continue
+     */
+    private boolean handleACK(Segment segment) {
+        long ack = segment.getAck();
+
+        switch (tcb.getState()) {
+            case SYN_RECEIVED:
+                // If SND.UNA =< SEG.ACK =< SND.NXT then enter ESTABLISHED state
+                if (!SegmentUtil.inWindow(tcb.getSendUnacknowledged(), ack, tcb.getSendNext() + 1)) {
+                    Log.w(TAG, "onSegmentArrive(): unacceptable ACK in SYN RECEIVED state. Dropping segment");
+                    return false;
+                }
+                tcb.enterState(TransmissionControlBlock.State.ESTABLISHED);
+                // continue processing in ESTABLISHED state
+                return handleEstablishedACK(segment, ack);
+            case ESTABLISHED:
+            case FIN_WAIT_1:
+            case FIN_WAIT_2:
+            case CLOSE_WAIT:
+            case CLOSING:
+                return handleEstablishedACK(segment, ack);
+            case LAST_ACK:
+                tcb.setSendUnacknowledged(ack);
+                tcb.removeFromRetransmissionQueue(ack);
+                if (isFinAcked()) {
+                    tcb.enterState(TransmissionControlBlock.State.CLOSED);
+                }
+                return false;
+            case TIME_WAIT:
+                // the only thing that can arrive is a retransmission of the remote FIN
+                return true;
+            default:
+                return false;
+        }
+    }
 
+    /**
+     * Check the ACK field in the ESTABLISHED state, which FIN WAIT 1, FIN WAIT 2,
+     * CLOSE WAIT and CLOSING share. An old ACK (SEG.ACK < SND.UNA), overtaken by a later
+     * one, is ignored and the rest of the segment is processed.
+     *
+     * @param segment
+     * @param ack
+     * @return true if processing of the segment should continue
+     */
+    private boolean handleEstablishedACK(Segment segment, long ack) {
+        if (SegmentUtil.inWindow(tcb.getSendUnacknowledged() + 1, ack, tcb.getSendNext() + 1)) {
+            // SND.UNA < SEG.ACK =< SND.NXT: new data is acknowledged
+            int acked = (int) ((ack - tcb.getSendUnacknowledged() + Integer.MAX_VALUE) % Integer.MAX_VALUE);
+            tcb.setSendUnacknowledged(ack);
+            tcb.removeFromRetransmissionQueue(ack);
+            tcb.setSendWindow(tcb.getScaledWindow(segment));
+            handleSackBlocks(segment);
+            handleRecoveryAck(ack, acked);
+
+            // the window slid forward, send whatever fits in it now
+            sender.sendQueuedData();
+        } else if (ack == tcb.getSendUnacknowledged()) {
+            // SEG.ACK = SND.UNA: a duplicate ACK, which may still carry SACK blocks or a new window
+            handleSackBlocks(segment);
+            if (tcb.getScaledWindow(segment) != tcb.getSendWindow()) {
+                // duplicate ACK carrying a window update
+                tcb.setSendWindow(tcb.getScaledWindow(segment));
+                sender.sendQueuedData();
+            } else if (segment.getDataLength() == 0 && !segment.isFin() && tcb.hasDataToRetransmit()) {
+                // the receiver got a segment beyond a gap (RFC 5681 section 2)
+                handleDuplicateAck();
+            }
+        } else if (!isOldAck(ack)) {
+            // SEG.ACK > SND.NXT: acknowledges something not yet sent
+            Log.w(TAG, "onSegmentArrive(): ACK for data not yet sent. Dropping segment");
+            sender.sendAck();
+            return false;
+        }
 
+        if (tcb.getState() == TransmissionControlBlock.State.FIN_WAIT_1 && isFinAcked()) {
+            tcb.enterState(TransmissionControlBlock.State.FIN_WAIT_2);
+        } else if (tcb.getState() == TransmissionControlBlock.State.CLOSING && isFinAcked()) {
+            enterTimeWait();
+            return false;
+        }
+        return true;
+    }
 
+    /**
+     * @param ack
+     * @return true if ack lies before SND.UNA, taking the half of the sequence space behind it as the past
+     */
+    private boolean isOldAck(long ack) {
+        long una = tcb.getSendUnacknowledged();
+        long past = (una - Integer.MAX_VALUE / 2 + Integer.MAX_VALUE) % Integer.MAX_VALUE;
+        return SegmentUtil.inWindow(past, ack, una);
+    }
 
+    /**
+     * Retransmit the oldest segment after three duplicate ACKs, instead of waiting for its
+     * timer, and enter fast recovery. During recovery every further duplicate ACK may report
+     * another hole through its SACK blocks, which is then resent as well.
+     */
+    private void handleDuplicateAck() {
+        int dupAcks = tcb.onDuplicateAck();
+
+        if (tcb.isInRecovery()) {
+            fastRetransmit(tcb.getNextHole());
+            // a segment left the network, the inflated congestion window may let new data out
+            tcb.getCongestionControl().onDuplicateAck();
+            sender.sendQueuedData();
+        } else if (dupAcks == TransmissionControlBlock.DUPACK_THRESHOLD && tcb.canEnterRecovery()) {
+            if (Log.V && Log.isLoggable(TAG, Log.VERBOSE)) {
+                Log.v(TAG, "Fast retransmit of " + tcb.getSendUnacknowledged() + " after " + dupAcks + " duplicate ACKs");
+            }
+            tcb.enterRecovery();
+            fastRetransmit(tcb.getFirstUnacknowledged());
+        }
+    }
 
+    /**
+     * Called after an ACK for new data. During fast recovery an ACK that does not cover
+     * everything that was outstanding when recovery started means the segment now at
+     * SND.UNA was lost as well, so it is resent right away (NewReno, RFC 6582).
+     *
+     * @param ack
+     * @param acked the number of sequence numbers the ACK covers
+     */
+    private void handleRecoveryAck(long ack, int acked) {
+        tcb.resetDuplicateAcks();
+        boolean partial = tcb.isInRecovery() && tcb.isPartialAck(ack);
+        tcb.onNewDataAcked(acked, partial);
+        if (!tcb.isInRecovery()) {
+            return;
+        }
+
+        if (partial) {
+            RetransmissionSegment first = tcb.getFirstUnacknowledged();
+            fastRetransmit(tcb.isRetransmittedInRecovery(first) ? tcb.getNextHole() : first);
+        } else {
+            tcb.exitRecovery();
+        }
     }
 
-    public void SegmentArrivesInFinState () {
+    private void fastRetransmit(RetransmissionSegment retransmissionSegment) {
+        if (retransmissionSegment == null || retransmissionSegment.isSacked()) {
+            return;
+        }
+        sender.retransmit(retransmissionSegment);
+        tcb.onFastRetransmit(retransmissionSegment);
+    }
 
+    /**
+     * Record the SACK blocks of an ACK in the retransmission queue, so the
+     * segments the receiver already holds are not retransmitted.
+     * @param segment
+     */
+    private void handleSackBlocks(Segment segment) {
+        if (!tcb.isSackEnabled()) {
+            return;
+        }
 
+        int count = OptionUtil.getSackBlocks(segment, sackBlocks);
+        for (int i = 0; i < count; i++) {
+            tcb.onSackBlock(sackBlocks[2 * i], sackBlocks[2 * i + 1]);
+        }
     }
 
-    public void ACKArrivesInDefaultState () {
+    private void handleSegmentText(Segment segment) {
+        switch (tcb.getState()) {
+            case ESTABLISHED:
+            case FIN_WAIT_1:
+            case FIN_WAIT_2:
+                // number of bytes at the start of the segment that have already been received
+                int offset = (int) ((tcb.getReceiveNext() - segment.getSeq() + Integer.MAX_VALUE) % Integer.MAX_VALUE);
+
+                if (offset < segment.getDataLength()) {
+                    // the segment (or what is left of it after trimming) is next in line, deliver
+                    // as much as fits in the receive window
+                    int wanted = segment.getDataLength() - offset;
+                    int accepted = tcb.queueDataForProcessing(segment.getData(), segment.getDataOffset() + offset, wanted);
+                    tcb.advanceReceiveNext(accepted);
+
+                    // delay the ACK only if the whole segment arrived in order and did not fill a gap.
+                    // Once the application reads, the window update ACKs it anyway
+                    if (offset == 0 && accepted == wanted && !tcb.hasOutOfOrderData()) {
+                        sender.sendDelayedAck();
+                        break;
+                    }
+
+                    // the segment may have filled the gap in front of data that arrived out of order
+                    tcb.deliverReassembledData();
+                } else if (offset > Integer.MAX_VALUE / 2) {
+                    // the segment starts beyond RCV.NXT: keep the part inside the receive window until
+                    // the data in front of it arrives, and send a duplicate ACK right away
+                    long windowEnd = (tcb.getReceiveNext() + tcb.getReceiveWindow()) % Integer.MAX_VALUE;
+                    int len = (int) Math.min(segment.getDataLength(),
+                            (windowEnd - segment.getSeq() + Integer.MAX_VALUE) % Integer.MAX_VALUE);
+                    if (Log.V && Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "onSegmentArrive(): segment " + segment.getSeq() + " arrived before " + tcb.getReceiveNext() + ". Queueing " + len + " bytes for reassembly");
+                    }
+                    tcb.queueOutOfOrderData(segment.getSeq(), segment.getData(), segment.getDataOffset(), len);
+                } else {
+                    if (Log.V && Log.isLoggable(TAG, Log.VERBOSE)) {
+                        Log.v(TAG, "onSegmentArrive(): segment " + segment.getSeq() + " was received already. Dropping data");
+                    }
+                }
 
+                // Send ACK segment <SEQ=SND.NXT><ACK=RCV.NXT><CTL=ACK>
+                sender.sendAck();
+                break;
+            default:
+                // remote side has already sent FIN, text should not arrive. Ignore
+                Log.w(TAG, "onSegmentArrive(): unexpected text in state {}. Ignoring", tcb.getState());
+        }
     }
 
+    private void handleSegmentFIN(Segment segment) {
+        // only process the FIN if all text preceding it has been received
+        if (SegmentUtil.isAcked(segment, tcb.getReceiveNext())) {
+            // duplicate FIN, the peer missed our ACK
+            sender.sendAck();
+            if (tcb.getState() == TransmissionControlBlock.State.TIME_WAIT) {
+                tcb.startTimeWaitTimer();
+            }
+            return;
+        } else if (((segment.getSeq() + segment.getDataLength()) % Integer.MAX_VALUE) != tcb.getReceiveNext()) {
+            Log.v(TAG, "onSegmentArrive(): FIN arrived before preceding text. Ignoring");
+            return;
+        }
+
+        // advance RCV.NXT over the FIN and acknowledge it
+        tcb.advanceReceiveNext(1);
+        sender.sendAck();
+
+        // no more data will arrive, release any waiting RECEIVEs
+        tcb.stopWaitingForDataToProcess();
+
+        switch (tcb.getState()) {
+            case SYN_RECEIVED:
+            case ESTABLISHED:
+                tcb.enterState(TransmissionControlBlock.State.CLOSE_WAIT);
+                break;
+            case FIN_WAIT_1:
+                if (isFinAcked()) {
+                    enterTimeWait();
+                } else {
+                    tcb.enterState(TransmissionControlBlock.State.CLOSING);
+                }
+                break;
+            case FIN_WAIT_2:
+                enterTimeWait();
+                break;
+            default:
+                // CLOSE_WAIT, CLOSING, LAST_ACK: remain in the same state
+        }
+    }
 
+    /**
+     * Check if a segment is acceptable according to the receive window (RFC 793, page 69).
+     * @param segment
+     * @return
+     */
+    private boolean acceptableSegment(Segment segment) {
+        long rcvNxt = tcb.getReceiveNext();
+        int rcvWnd = tcb.getReceiveWindow();
+        long windowEnd = (rcvNxt + rcvWnd) % Integer.MAX_VALUE;
+
+        if (segment.getLen() == 0) {
+            return (rcvWnd == 0)
+                    ? segment.getSeq() == rcvNxt
+                    : SegmentUtil.inWindow(rcvNxt, segment.getSeq(), windowEnd);
+        } else {
+            return (rcvWnd != 0) &&
+                    (SegmentUtil.inWindow(rcvNxt, segment.getSeq(), windowEnd) ||
+                     SegmentUtil.inWindow(rcvNxt, segment.getLastSeq(), windowEnd));
+        }
+    }
 
+    private boolean isFinAcked() {
+        Segment fin = tcb.getUnacknowledgedFin();
+        return fin != null && SegmentUtil.isAcked(fin, tcb.getSendUnacknowledged());
+    }
 
+    private void enterTimeWait() {
+        tcb.enterState(TransmissionControlBlock.State.TIME_WAIT);
+        tcb.clearRetransmissionQueue();
+        tcb.startTimeWaitTimer();
+    }
 }
@@ -5,65 +5,39 @@ import nl.vu.cs.cn.IP;
 import nl.vu.cs.cn.Log;
 
 
+/**
+ * Receives the segments of an IP stack and hands them to a listener. The segments
+ * are handled on the thread of the ReceiveEngine, as soon as they arrive.
+ */
 public class SegmentReceiver {
 
-    private static final int RECEIVE_TIMEOUT = 1;
-    private final ReceiverRunnable receiver;
+    private final OnSegmentArriveListener listener;
+    private final IP ip;
 
-    private volatile boolean shouldStop;
+    private ReceiveEngine.Registration registration;
 
     public SegmentReceiver(OnSegmentArriveListener listener, IP ip){
-        receiver = new ReceiverRunnable(listener, ip);
+        this.listener = listener;
+        this.ip = ip;
     }
 
-    public void stop(){
-        shouldStop = true;
-    }
-
-    public void run(){
-        new Thread(receiver).start();
-    }
-
-    private class ReceiverRunnable implements Runnable {
-
-        private final IP ip;
-        private final OnSegmentArriveListener listener;
-        private final IP.Packet packet;
-
-        private ReceiverRunnable(OnSegmentArriveListener listener, IP ip) {
-            this.ip = ip;
-            this.listener = listener;
-            packet = new IP.Packet();
+    /**
+     * Stop handing segments to the listener. Takes effect immediately.
+     */
+    public synchronized void stop(){
+        if(registration != null){
+            Log.d("SegmentRecvr", "Stopping receiving for {}", ip.getLocalAddress());
+            registration.cancel();
+            registration = null;
         }
+    }
 
-        @Override
-        public void run() {
-            while(!shouldStop){
-                // reset packet.data before receiving again
-                packet.data = null;
-
-                // loop until we receive data
-                while(!shouldStop && (packet.data == null || packet.data.length == 0)){
-                    try {
-                        ip.ip_receive_timeout(packet, RECEIVE_TIMEOUT);
-                        if(packet.data != null){
-                            Segment segment = new Segment(packet.data, packet.source, packet.destination);
-                            Log.d("SegmentRecvr", "[Thread " + Thread.currentThread().getId() + "] Received segment!");
-                            if(!shouldStop) {
-                                listener.onSegmentArrive(segment);
-                            } else {
-                                Log.d("SegmentRecvr", "[Thread " + Thread.currentThread().getId() + "] Ignoring segment, stopping!");
-                            }
-                        } else {
-                            Log.d("SegmentRecvr", "[Thread " + Thread.currentThread().getId() + "] Received EMPTY segment!");
-                        }
-                    } catch (Exception e) {
-                        packet.data = null;
-                        Log.w("SegmentRecvr", "[Thread " + Thread.currentThread().getId() + "] Exception in ip_receive_timeout()", e);
-                    }
-                }
-            }
+    /**
+     * Start handing segments to the listener.
+     */
+    public synchronized void run(){
+        if(registration == null){
+            registration = ReceiveEngine.getInstance().register(ip.getInboundQueue(), listener);
         }
     }
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,343 @@
+package nl.vu.cs.cn.tcp.segment;
+
+import java.io.IOException;
+
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.IPUtil;
+import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.PacketPool;
+import nl.vu.cs.cn.tcp.ConnectionMetrics;
+import nl.vu.cs.cn.tcp.TransmissionControlBlock;
+import nl.vu.cs.cn.tcp.timeout.TimerWheel;
+
+/**
+ * SegmentSender sends segments for a single connection, and moves data from the
+ * transmission queue onto the network as far as the send window allows.
+ *
+ * All methods should be called while holding the lock on the transmission control block.
+ */
+public class SegmentSender {
+
+    /** maximum number of data bytes in a single segment */
+    public static final int MAX_DATA_SIZE = TransmissionControlBlock.MAX_SEGMENT_SIZE - Segment.HEADER_SIZE;
+
+    /** default time an ACK for arrived data may be delayed, well below the minimum RTO */
+    public static final int DEFAULT_ACK_DELAY_MS = 40;
+
+    private String TAG = "SegmentSender";
+
+    private final TransmissionControlBlock tcb;
+    private final IP ip;
+    private final ConnectionMetrics metrics;
+
+    private TimerWheel.Timer persistTimer;  // pending zero window probe, if any
+
+    // Nagle's algorithm (RFC 896): hold back small segments while data is unacknowledged
+    private boolean noDelay = true;
+    private int pushRemaining;              // queued bytes that flush() asked to send regardless
+
+    // delayed ACKs (RFC 1122 4.2.3.2)
+    private int ackDelay = DEFAULT_ACK_DELAY_MS;
+    private int unackedSegments;            // segments that arrived since the last ACK we sent
+    private TimerWheel.Timer ackTimer;
+
+    // SACK option of the next ACK, only used while sending it
+    private final byte[] sackOptions = new byte[Segment.MAX_OPTIONS_SIZE];
+    private final long[] sackBlocks = new long[2 * OptionUtil.MAX_SACK_BLOCKS];
+
+    public SegmentSender(TransmissionControlBlock tcb, IP ip){
+        this.tcb = tcb;
+        this.ip = ip;
+        metrics = tcb.getMetrics();
+
+        TAG += (tcb.isServer()) ? " [server]" : " [client]";
+    }
+
+    /**
+     * Send queued data while there is room in the send window. Up to min(cwnd, SND.WND)
+     * bytes are kept in flight between SND.UNA and SND.NXT, so call this again every time
+     * an ACK arrives.
+     *
+     * @return the number of data bytes sent
+     */
+    public int sendQueuedData(){
+        int totalSent = 0;
+        int inFlight = tcb.getBytesInFlight();
+        int usableWindow = Math.min(tcb.getSendWindow(), tcb.getCongestionWindow()) - inFlight;
+
+        while(tcb.hasDataToTransmit()){
+            int wanted = Math.min(tcb.getTransmissionQueueSize(), MAX_DATA_SIZE);
+            int len = Math.min(wanted, usableWindow);
+
+            if(len <= 0){
+                if(inFlight == 0){
+                    // zero window and nothing outstanding: probe the window if no window update arrives
+                    startPersistTimer();
+                }
+                break;
+            } else if(len < wanted && inFlight > 0 && len < tcb.getMaxSendWindow() / 2){
+                // sender side silly window avoidance: wait until a bigger part of the window opens up,
+                // but half the largest window is enough (RFC 1122 4.2.3.4), otherwise a window
+                // update that arrives while a probe is outstanding would wait for its retransmission
+                break;
+            } else if(!noDelay && len < MAX_DATA_SIZE && inFlight > 0 && pushRemaining == 0){
+                // Nagle: collect small writes into one segment until the outstanding data is ACKed
+                break;
+            }
+
+            // copy the data straight behind the header in a pooled packet, so encoding
+            // only has to fill in the header
+            IP.Packet packet = PacketPool.getInstance().acquire();
+            len = tcb.getDataToTransmit(packet.data, Segment.HEADER_SIZE, len);
+
+            Segment outSegment = SegmentUtil.getPacket(tcb, tcb.getSendNext(), tcb.getReceiveNext());
+            outSegment.setData(packet.data, Segment.HEADER_SIZE, len);
+            send(outSegment, packet, true);
+            tcb.advanceSendNext(outSegment.getLen());
+
+            inFlight += len;
+            usableWindow -= len;
+            totalSent += len;
+            pushRemaining = Math.max(0, pushRemaining - len);
+        }
+
+        return totalSent;
+    }
+
+    /**
+     * Send all queued data as soon as the window allows, even if Nagle's algorithm
+     * would hold back the last small segment.
+     *
+     * @return the number of data bytes sent right away
+     */
+    public int flush(){
+        pushRemaining = tcb.getTransmissionQueueSize();
+        return sendQueuedData();
+    }
+
+    /**
+     * @param noDelay false to hold back small segments while data is unacknowledged
+     * (Nagle's algorithm), true to send every write right away
+     */
+    public void setNoDelay(boolean noDelay){
+        this.noDelay = noDelay;
+        if(noDelay){
+            sendQueuedData();
+        }
+    }
+
+    public boolean getNoDelay(){
+        return noDelay;
+    }
+
+    /**
+     * Start the persist timer, unless it is running already. The receiver announces
+     * its window once the application reads, so the probe is only needed when that
+     * update got lost. Sending it right away would only make it arrive at a full
+     * buffer and be dropped.
+     */
+    private void startPersistTimer(){
+        if(persistTimer != null){
+            return;
+        }
+
+        persistTimer = TimerWheel.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (tcb){
+                    persistTimer = null;
+                    sendWindowProbe();
+                }
+            }
+        }, tcb.getRetransmissionTimeout());
+    }
+
+    /**
+     * Send a single byte beyond a zero window. Retransmissions of this byte keep
+     * probing the window until the receiver accepts it.
+     */
+    private void sendWindowProbe(){
+        if(!tcb.hasDataToTransmit() || tcb.getBytesInFlight() > 0){
+            return;
+        }
+        if(tcb.getSendWindow() > 0){
+            // the window opened up in the meantime
+            sendQueuedData();
+            return;
+        }
+
+        IP.Packet packet = PacketPool.getInstance().acquire();
+        int len = tcb.getDataToTransmit(packet.data, Segment.HEADER_SIZE, 1);
+
+        Segment outSegment = SegmentUtil.getPacket(tcb, tcb.getSendNext(), tcb.getReceiveNext());
+        outSegment.setData(packet.data, Segment.HEADER_SIZE, len);
+        send(outSegment, packet, true);
+        tcb.advanceSendNext(outSegment.getLen());
+    }
+
+    /**
+     * Send ACK segment <SEQ=SND.NXT><ACK=RCV.NXT><CTL=ACK>
+     */
+    public void sendAck(){
+        Segment segment = SegmentUtil.getPacket(tcb, tcb.getSendNext(), tcb.getReceiveNext());
+
+        // tell the sender which data arrived out of order, so it does not resend it
+        if(tcb.isSackEnabled() && tcb.hasOutOfOrderData()){
+            int count = tcb.getSackBlocks(sackBlocks, OptionUtil.MAX_SACK_BLOCKS);
+            segment.setOptions(sackOptions, OptionUtil.putSack(sackOptions, 0, sackBlocks, count));
+        }
+        send(segment, false);
+    }
+
+    /**
+     * Acknowledge a segment with data that arrived in order. The ACK is sent right away for
+     * every second segment, and otherwise delayed until the ACK delay expires, unless it can
+     * be sent along with data before then.
+     */
+    public void sendDelayedAck(){
+        unackedSegments++;
+        if(unackedSegments >= 2 || ackDelay <= 0){
+            flushDelayedAck();
+        } else if(ackTimer == null){
+            ackTimer = TimerWheel.getInstance().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (tcb){
+                        ackTimer = null;
+                        if(unackedSegments > 0 && tcb.getState() != TransmissionControlBlock.State.CLOSED){
+                            flushDelayedAck();
+                        }
+                    }
+                }
+            }, ackDelay);
+        }
+    }
+
+    /**
+     * Set how long the ACK for a single segment may be delayed.
+     * @param ackDelay delay in milliseconds, or 0 to acknowledge every segment right away
+     */
+    public void setAckDelay(int ackDelay){
+        this.ackDelay = ackDelay;
+    }
+
+    public int getAckDelay(){
+        return ackDelay;
+    }
+
+    /**
+     * @return the number of segments without data sent to acknowledge received segments
+     */
+    public long getAcksSent(){
+        return metrics.acksSent.get();
+    }
+
+    /**
+     * @return the number of received segments that did not need an ACK of their own,
+     * because the ACK was delayed and covered a later segment or was sent along with data
+     */
+    public long getAcksSaved(){
+        return metrics.acksSaved.get();
+    }
+
+    /**
+     * Send the delayed ACK. It stands in for the ACK of the last segment, so only the
+     * segments before it count as saved.
+     */
+    private void flushDelayedAck(){
+        unackedSegments--;
+        sendAck();
+    }
+
+    /**
+     * Every segment we send carries RCV.NXT, so it acknowledges everything that arrived so far,
+     * and the segments still waiting for an ACK do not need one of their own anymore.
+     * @param segment
+     */
+    private void onAckSent(Segment segment){
+        if(segment.getLen() == 0){
+            metrics.acksSent.increment();
+        }
+        if(unackedSegments > 0){
+            metrics.acksSaved.add(unackedSegments);
+        }
+
+        unackedSegments = 0;
+        if(ackTimer != null){
+            ackTimer.cancel();
+            ackTimer = null;
+        }
+    }
+
+    private void onSegmentSent(Segment segment){
+        metrics.segmentsSent.increment();
+        metrics.bytesSent.add(segment.getDataLength());
+    }
+
+    /**
+     * Send a segment, and add it to the retransmission queue if requested.
+     * @param segment
+     * @param retransmit true if the segment should be retransmitted until it is ACKed
+     */
+    public void send(Segment segment, boolean retransmit){
+        send(segment, PacketPool.getInstance().acquire(), retransmit);
+    }
+
+    /**
+     * Resend a segment from the retransmission queue, with the current ACK number and
+     * window, and restart its retransmission timer.
+     * @param retransmissionSegment
+     * @return the number of bytes sent, or -1 if sending failed. The timer retries it in that case
+     */
+    public int retransmit(RetransmissionSegment retransmissionSegment){
+        Segment segment = retransmissionSegment.getSegment();
+        metrics.onRetransmit(retransmissionSegment.getRetry(), segment.getDataLength());
+        retransmissionSegment.increaseRetry();
+        retransmissionSegment.updateAckAndWindow(tcb.getReceiveNext(),
+                segment.isSyn() ? tcb.getSynWindow() : tcb.getAdvertisedWindow());
+        if(segment.isAck()){
+            onAckSent(segment);
+        }
+        onSegmentSent(segment);
+
+        try {
+            return ip.send(retransmissionSegment.getPacket());
+        } catch (IOException e) {
+            if (Log.isLoggable(TAG, Log.WARN)) {
+                Log.w(TAG, "Error while resending segment " + segment.getSeq(), e);
+            }
+            return -1;
+        } finally {
+            // the segment keeps its place in the retransmission queue
+            retransmissionSegment.cancelTimer();
+            tcb.startRetransmissionTimer(retransmissionSegment);
+        }
+    }
+
+    /**
+     * Encode a segment into a pooled packet and send it. The packet is kept for
+     * retransmissions, or returned to the pool right away.
+     * @param segment
+     * @param packet
+     * @param retransmit true if the segment should be retransmitted until it is ACKed
+     */
+    private void send(Segment segment, IP.Packet packet, boolean retransmit){
+        IPUtil.getPacket(segment, packet);
+        if(segment.isAck()){
+            onAckSent(segment);
+        }
+        onSegmentSent(segment);
+        try {
+            Log.v(TAG, "Sending: {}", segment);
+            ip.send(packet);
+        } catch (IOException e) {
+            Log.e(TAG, "Error while sending segment. Will be retried", e);
+        } finally {
+            if(retransmit && segment.getLen() > 0){
+                tcb.addToRetransmissionQueue(new RetransmissionSegment(segment, packet));
+            } else {
+                PacketPool.getInstance().release(packet);
+            }
+        }
+    }
+}
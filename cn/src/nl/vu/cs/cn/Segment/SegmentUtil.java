@@ -13,9 +13,10 @@ public abstract class SegmentUtil {
         Segment segment = new Segment(
                 tcb.getLocalAddr(), tcb.getForeignAddr(),
                 tcb.getLocalport(), tcb.getForeignPort(),
-                seq, tcb.getSendWindow());
+                seq, tcb.getSynWindow());
 
         segment.setIsSyn(true);
+        setSynOptions(segment, tcb.isSackPermitted(), tcb.isWindowScalePermitted(), tcb.getWantedReceiveWindowShift());
         return segment;
     }
 
@@ -25,13 +26,33 @@ public abstract class SegmentUtil {
      * @return
      */
     public static Segment getSYNACKPacket(TransmissionControlBlock tcb, long seq, long ack){
-        Segment segment = getPacket(tcb, seq, ack);
+        // the window of a SYN is never scaled
+        Segment segment = new Segment(
+                tcb.getLocalAddr(), tcb.getForeignAddr(),
+                tcb.getLocalport(), tcb.getForeignPort(),
+                seq, tcb.getSynWindow(), ack);
         segment.setIsSyn(true);
-        // isAck is automatically set inside getPacket()
+
+        // only allow SACK and window scaling if the SYN did
+        setSynOptions(segment, tcb.isSackEnabled(), tcb.isWindowScaleEnabled(), tcb.getReceiveWindowShift());
 
         return segment;
     }
 
+    private static void setSynOptions(Segment segment, boolean sack, boolean windowScale, int shift){
+        byte[] options = new byte[OptionUtil.SACK_PERMITTED_LENGTH + OptionUtil.WINDOW_SCALE_LENGTH];
+        int length = 0;
+        if(sack){
+            length += OptionUtil.putSackPermitted(options, length);
+        }
+        if(windowScale){
+            length += OptionUtil.putWindowScale(options, length, shift);
+        }
+        if(length > 0){
+            segment.setOptions(options, length);
+        }
+    }
+
     /**
      * Construct an ACK packet possibly containing data
      * @param tcb
@@ -41,7 +62,7 @@ public abstract class SegmentUtil {
         Segment segment = new Segment(
                 tcb.getLocalAddr(), tcb.getForeignAddr(),
                 tcb.getLocalport(), tcb.getForeignPort(),
-                seq, tcb.getSendWindow(), ack);
+                seq, tcb.getAdvertisedWindow(), ack);
 
         // isAck is automatically set because we passed an ack num to Segment
 
@@ -57,7 +78,7 @@ public abstract class SegmentUtil {
         Segment segment = new Segment(
                 tcb.getLocalAddr(), tcb.getForeignAddr(),
                 tcb.getLocalport(), tcb.getForeignPort(),
-                seq, tcb.getSendWindow(), ack);
+                seq, tcb.getAdvertisedWindow(), ack);
 
         segment.setIsFin(true);
         // isAck is automatically set because we passed an ack num to Segment
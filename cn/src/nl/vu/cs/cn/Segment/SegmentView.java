@@ -0,0 +1,277 @@
+package nl.vu.cs.cn.tcp.segment;
+
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.tcp.ChecksumUtil;
+
+/**
+ * A read-only segment on top of a receive buffer. Header fields are read from the
+ * buffer when they are asked for, and the data is never copied, so wrapping a packet
+ * does not allocate anything.
+ *
+ * A view is only valid until its buffer is reused, which for received packets is when
+ * the next packet arrives. Use new Segment(view) to keep a copy. The same view can be
+ * used again for the next packet by calling wrap().
+ */
+public class SegmentView extends Segment {
+
+    private static final int UNKNOWN = 0, VALID = 1, INVALID = 2;
+
+    private byte[] buf;
+    private int offset;
+    private int length;
+
+    private int sourceAddress;          // in "host" order
+    private int destinationAddress;
+    private IP.IpAddress sourceAddr;    // only created when asked for
+    private IP.IpAddress destinationAddr;
+
+    private int checksumState;
+
+    /**
+     * Let this view represent the segment in buf.
+     * @param buf
+     * @param offset start of the TCP header
+     * @param length length of the segment, header included
+     * @param sourceAddress in "host" order
+     * @param destinationAddress in "host" order
+     * @return this view
+     */
+    public SegmentView wrap(byte[] buf, int offset, int length, int sourceAddress, int destinationAddress){
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+        this.sourceAddress = sourceAddress;
+        this.destinationAddress = destinationAddress;
+
+        sourceAddr = null;
+        destinationAddr = null;
+        checksumState = UNKNOWN;
+        return this;
+    }
+
+    /**
+     * Let this view represent the segment in a received packet.
+     * @param packet
+     * @return this view
+     */
+    public SegmentView wrap(IP.Packet packet){
+        return wrap(packet.data, 0, packet.length, packet.source, packet.destination);
+    }
+
+    /**
+     * Drop the reference to the buffer, so it can be garbage collected.
+     */
+    public void recycle(){
+        wrap(null, 0, 0, 0, 0);
+    }
+
+    @Override
+    public int getHeaderLength(){
+        return ((buf[offset + 12] >> 4) & 0xf) * 4;
+    }
+
+    private short getShort(int position){
+        return (short) (((buf[offset + position] & 0xff) << 8) | (buf[offset + position + 1] & 0xff));
+    }
+
+    private int getInt(int position){
+        return ((buf[offset + position] & 0xff) << 24) | ((buf[offset + position + 1] & 0xff) << 16)
+                | ((buf[offset + position + 2] & 0xff) << 8) | (buf[offset + position + 3] & 0xff);
+    }
+
+    private boolean getControlBit(short mask){
+        return (buf[offset + 13] & mask) != 0;
+    }
+
+    @Override
+    public IP.IpAddress getSourceAddr() {
+        if(sourceAddr == null){
+            sourceAddr = IP.IpAddress.getAddress(sourceAddress);
+        }
+        return sourceAddr;
+    }
+
+    @Override
+    public int getSourceAddress() {
+        return sourceAddress;
+    }
+
+    @Override
+    public IP.IpAddress getDestinationAddr() {
+        if(destinationAddr == null){
+            destinationAddr = IP.IpAddress.getAddress(destinationAddress);
+        }
+        return destinationAddr;
+    }
+
+    @Override
+    public int getDestinationAddress() {
+        return destinationAddress;
+    }
+
+    @Override
+    public short getSourcePort() {
+        return getShort(0);
+    }
+
+    @Override
+    public short getDestinationPort() {
+        return getShort(2);
+    }
+
+    @Override
+    public long getSeq() {
+        return getInt(4);
+    }
+
+    @Override
+    public long getAck() {
+        return getInt(8);
+    }
+
+    @Override
+    public int getWindow() {
+        return getShort(14) & 0xffff;
+    }
+
+    @Override
+    public int getLen() {
+        int len = getDataLength();
+        if(isSyn()) len += 1;
+        if(isFin()) len += 1;
+        return len;
+    }
+
+    @Override
+    public byte[] getData() {
+        return buf;
+    }
+
+    @Override
+    public int getDataOffset() {
+        return offset + getHeaderLength();
+    }
+
+    @Override
+    public int getDataLength() {
+        return Math.max(0, length - getHeaderLength());
+    }
+
+    @Override
+    public byte[] getOptions() {
+        return buf;
+    }
+
+    @Override
+    public int getOptionsOffset() {
+        return offset + HEADER_SIZE;
+    }
+
+    @Override
+    public int getOptionsLength() {
+        return Math.max(0, Math.min(length, getHeaderLength()) - HEADER_SIZE);
+    }
+
+    @Override
+    public boolean isUrg() {
+        return getControlBit(URG_MASK);
+    }
+
+    @Override
+    public boolean isAck() {
+        return getControlBit(ACK_MASK);
+    }
+
+    @Override
+    public boolean isPsh() {
+        return getControlBit(PSH_MASK);
+    }
+
+    @Override
+    public boolean isRst() {
+        return getControlBit(RST_MASK);
+    }
+
+    @Override
+    public boolean isSyn() {
+        return getControlBit(SYN_MASK);
+    }
+
+    @Override
+    public boolean isFin() {
+        return getControlBit(FIN_MASK);
+    }
+
+    @Override
+    public short getChecksum() {
+        return getShort(CHECKSUM_OFFSET);
+    }
+
+    /**
+     * The checksum is verified the first time this is called. Summing the whole
+     * segment, including the checksum itself, gives zero for an intact segment.
+     */
+    @Override
+    public boolean hasValidChecksum() {
+        if(checksumState == UNKNOWN){
+            boolean valid = length >= HEADER_SIZE && getHeaderLength() >= HEADER_SIZE && getHeaderLength() <= length
+                    && ChecksumUtil.calculateChecksum(buf, offset, length, sourceAddress, destinationAddress) == 0;
+            checksumState = valid ? VALID : INVALID;
+        }
+        return checksumState == VALID;
+    }
+
+    /**
+     * Copy the segment as it was received.
+     */
+    @Override
+    public int encode(byte[] buf, int offset) {
+        System.arraycopy(this.buf, this.offset, buf, offset, length);
+        return length;
+    }
+
+    @Override
+    public void setControlBits(short bits) {
+        throw new UnsupportedOperationException("SegmentView is read-only");
+    }
+
+    @Override
+    public int setData(byte[] data, int offset, int len) {
+        throw new UnsupportedOperationException("SegmentView is read-only");
+    }
+
+    @Override
+    public void setOptions(byte[] options, int length) {
+        throw new UnsupportedOperationException("SegmentView is read-only");
+    }
+
+    @Override
+    public void setIsUrg(boolean urg) {
+        throw new UnsupportedOperationException("SegmentView is read-only");
+    }
+
+    @Override
+    public void setIsAck(boolean ack) {
+        throw new UnsupportedOperationException("SegmentView is read-only");
+    }
+
+    @Override
+    public void setIsPsh(boolean psh) {
+        throw new UnsupportedOperationException("SegmentView is read-only");
+    }
+
+    @Override
+    public void setIsRst(boolean rst) {
+        throw new UnsupportedOperationException("SegmentView is read-only");
+    }
+
+    @Override
+    public void setIsSyn(boolean syn) {
+        throw new UnsupportedOperationException("SegmentView is read-only");
+    }
+
+    @Override
+    public void setIsFin(boolean fin) {
+        throw new UnsupportedOperationException("SegmentView is read-only");
+    }
+}
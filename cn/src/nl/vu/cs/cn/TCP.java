@@ -3,11 +3,14 @@ package nl.vu.cs.cn;
 import java.io.IOException;
 
 import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.tcp.ConnectionMetrics;
+import nl.vu.cs.cn.tcp.ConnectionTable;
+import nl.vu.cs.cn.tcp.ListenQueue;
 import nl.vu.cs.cn.tcp.TransmissionControlBlock;
-import nl.vu.cs.cn.tcp.segment.RetransmissionSegment;
+import nl.vu.cs.cn.tcp.congestion.CongestionControl;
 import nl.vu.cs.cn.tcp.segment.Segment;
 import nl.vu.cs.cn.tcp.segment.SegmentHandler;
-import nl.vu.cs.cn.tcp.segment.SegmentReceiver;
+import nl.vu.cs.cn.tcp.segment.SegmentSender;
 import nl.vu.cs.cn.tcp.segment.SegmentUtil;
 
 /**
@@ -15,18 +18,27 @@ import nl.vu.cs.cn.tcp.segment.SegmentUtil;
  */
 public class TCP {
 
-    private static final short CLIENT_LOCAL_PORT = 3110;    // local port used by client
+    /**
+     * Determines when Socket.write() returns.
+     */
+    public enum WriteMode {
+        /** return as soon as all data has been queued for transmission */
+        QUEUED,
+        /** return once all data has been acknowledged by the remote side */
+        ACKNOWLEDGED
+    }
 
     private String TAG = "TCP";
 
-    // protected ip stack and tcb so test cases can use it
+    // protected ip stack and tcb so test cases can use it (tcb is the one of the last created socket)
     protected IP ip;
     protected TransmissionControlBlock tcb;
 
-    private boolean sendIssued;
+    // all connections of this stack, and the receive loop that serves them
+    protected ConnectionTable connectionTable;
 
-    protected SegmentReceiver segmentReceiver;
-    protected SegmentHandler segmentHandler;
+    // the sum of the metrics of all connections of this stack
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
 
 
     /**
@@ -38,17 +50,28 @@ public class TCP {
      * @throws IOException if the IP stack fails to initialize.
      */
     public TCP(int address) throws IOException {
-        ip = new IP(address);
+        this(new IP(address));
+    }
+
+    /**
+     * Constructs a TCP stack on top of the given IP stack, e.g. one that
+     * uses an InMemoryNetwork instead of the native layer.
+     *
+     * @param ip the IP stack to use
+     */
+    public TCP(IP ip) {
+        this.ip = ip;
+        connectionTable = new ConnectionTable(ip);
     }
 
     /**
      * @return a new client socket for this stack
      */
     public Socket socket() {
-        TAG += " [client]";
-        tcb = new TransmissionControlBlock(ip, false);
+        tcb = new TransmissionControlBlock(ip, false, metrics);
+        tcb.setLocalSocketInfo(ip.getLocalAddress(), connectionTable.allocatePort());
 
-        return new Socket();
+        return new Socket(tcb);
     }
 
     /**
@@ -56,34 +79,33 @@ public class TCP {
      * @param port the port to bind the socket to.
      */
     public Socket socket(int port) {
-        TAG += " [server]";
-        tcb = new TransmissionControlBlock(ip, true);
+        tcb = new TransmissionControlBlock(ip, true, metrics);
+        tcb.setLocalSocketInfo(ip.getLocalAddress(), (short) port);
 
-        return new Socket(port);
+        return new Socket(tcb);
     }
 
     /**
-     * Create a segment handler, and start new thread to receive messages
+     * @return the counters and latency histograms of all connections of this stack,
+     * and the number of connections in each state
      */
-    private void initSegmentReceiver(){
-        Log.d(TAG, "Starting SegmentReceiver: " + Thread.currentThread().getId());
-        segmentHandler = new SegmentHandler(tcb, ip);
-        segmentReceiver = new SegmentReceiver(segmentHandler, ip);
-        segmentReceiver.run();
-
-        // set segmentReceiver in transmission control block so it can be stopped
-        // when the state changes to CLOSED
-        tcb.setSegmentReceiver(segmentReceiver);
+    public ConnectionMetrics.Snapshot getMetrics() {
+        return metrics.snapshot();
     }
 
     /**
-     * ??
+     * Queue data for transmission, and send as much of it as the send window allows.
+     * The rest is sent when ACKs arrive.
      * @param buf
      * @param offset
      * @param len
-     * @return
+     * @param mode whether to return after queueing the data, or after it has been acknowledged
+     * @return the number of bytes queued (QUEUED) or acknowledged (ACKNOWLEDGED), or -1 on error
      */
-    private int send(byte[] buf, int offset, int len) {
+    private int send(Socket socket, byte[] buf, int offset, int len, WriteMode mode) {
+        TransmissionControlBlock tcb = socket.tcb;
+        String TAG = socket.TAG;
+
         switch (tcb.getState()) {
             case CLOSED:
                 Log.e(TAG, "Error in send(): connection does not exist");
@@ -94,61 +116,58 @@ public class TCP {
             case SYN_SENT:
             case SYN_RECEIVED:
                 // TODO: possibly use this later. For now unsupported
-//                // Queue data for transmission after entering ESTABLISHED state
-//                int bytesQueued = tcb.queueDataForTransmission(buf, offset, len);
-//                if(bytesQueued < len){
-//                    // this will (should) never happen. Adding data to queue always succeeds
-//                    Log.e(TAG, "Error in send(): insufficient resources");
-//                    return -1;
-//                }
-//                Log.v(TAG, "send(): data queued for transmission after entering ESTABLISHED. Waiting for ACK");
-//
-//                // should we already return, or wait for ACK?
-//                return bytesQueued;
-
                 Log.e(TAG, "Error in send(): connection not ESTABLISHED");
                 return -1;
             case ESTABLISHED:
             case CLOSE_WAIT:
-                // Send data to receiver (segmentize where necessary)
-                int totalWrittenData = 0;
-                int writtenData;
-                int dataLeft = len;
-                int totalAcknowledged = 0;
-                Segment outSegment;
-                do {
+                int totalQueued = 0;
+                long firstSeq;
+                long endSeq;
+
+                synchronized (tcb) {
+                    // sequence number of the first byte of this call
+                    firstSeq = (tcb.getSendNext() + tcb.getTransmissionQueueSize()) % Integer.MAX_VALUE;
+                }
+
+                while (true) {
                     synchronized (tcb) {
-                        outSegment = SegmentUtil.getPacket(tcb, tcb.getSendNext(), tcb.getReceiveNext());
-                        writtenData = outSegment.setData(buf, offset + totalWrittenData, dataLeft);
-                        totalWrittenData += writtenData;
-                        dataLeft -= writtenData;
-
-                        // send data packet
-                        IP.Packet packet = IPUtil.getPacket(outSegment);
-                        try {
-                            Log.v(TAG, "Sending: " + outSegment.toString());
-                            ip.ip_send(packet);
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error while sending data", e);
-                        } finally {
-                            tcb.addToRetransmissionQueue(new RetransmissionSegment(outSegment));
-                            sendIssued = true;
-                        }
+                        totalQueued += tcb.queueDataForTransmission(buf, offset + totalQueued, len - totalQueued);
+                        socket.segmentSender.sendQueuedData();
+                        socket.sendIssued = true;
+                    }
 
-                        tcb.advanceSendNext(outSegment.getLen());
+                    if (totalQueued == len) {
+                        break;
                     }
 
-                    boolean acknowledged = tcb.waitForAck(outSegment);
-                    if (!acknowledged) {
-                        Log.w(TAG, "Segment not acknowledged. Was waiting for " + outSegment.getLastSeq() + ", but got " + tcb.getSendUnacknowledged());
-                        return totalAcknowledged;
+                    // the transmission queue is full, wait until ACKs make room
+                    if (!tcb.waitForTransmissionSpace()) {
+                        Log.w(TAG, "Connection closed while queueing data. Queued {} of {} bytes", totalQueued, len);
+                        break;
                     }
+                }
+                endSeq = (firstSeq + totalQueued) % Integer.MAX_VALUE;
 
-                    totalAcknowledged += writtenData;
+                if (tcb.isAborted()) {
+                    Log.e(TAG, "Error in send(): connection aborted");
+                    return -1;
+                }
+                if (mode == WriteMode.QUEUED) {
+                    return totalQueued;
+                }
 
-                } while (dataLeft > 0);
+                boolean acknowledged = tcb.waitForAck(endSeq);
+                if (tcb.isAborted()) {
+                    Log.e(TAG, "Error in send(): connection aborted");
+                    return -1;
+                }
+                if (!acknowledged) {
+                    long acked = (tcb.getSendUnacknowledged() - firstSeq + Integer.MAX_VALUE) % Integer.MAX_VALUE;
+                    Log.w(TAG, "Data not acknowledged. Was waiting for {}, but got {}", endSeq, tcb.getSendUnacknowledged());
+                    return (int) Math.min(acked, totalQueued);
+                }
 
-                return totalAcknowledged;
+                return totalQueued;
             default:
                 Log.e(TAG, "Error in send(): connection closing");
                 return -1;
@@ -162,7 +181,10 @@ public class TCP {
      * @param maxlen
      * @return
      */
-    private int receive(byte[] buf, int offset, int maxlen) {
+    private int receive(Socket socket, byte[] buf, int offset, int maxlen) {
+        TransmissionControlBlock tcb = socket.tcb;
+        String TAG = socket.TAG;
+
         switch(tcb.getState()){
             case CLOSED:
                 Log.e(TAG, "Error in receive(): connection does not exist");
@@ -184,9 +206,13 @@ public class TCP {
                     Log.v(TAG, "receive(): call queued until segments arrive");
                     tcb.waitForDataToProcess();
                 }
+                if(tcb.isAborted()){
+                    Log.e(TAG, "Error in receive(): connection aborted");
+                    return -1;
+                }
 
                 Log.v(TAG, "receive(): returning data from processing queue");
-                return tcb.getDataToProcess(buf, offset, maxlen);
+                return getDataToProcess(socket, buf, offset, maxlen);
             case CLOSE_WAIT:
                 /*
                  * Since the remote side has already sent FIN, RECEIVEs must be
@@ -206,6 +232,27 @@ public class TCP {
         }
     }
 
+    /**
+     * Take data from the processing queue, and tell the remote side when this
+     * opened up the receive window again.
+     */
+    private int getDataToProcess(Socket socket, byte[] buf, int offset, int maxlen) {
+        TransmissionControlBlock tcb = socket.tcb;
+
+        synchronized (tcb) {
+            int windowBefore = tcb.getReceiveWindow();
+            int len = tcb.getDataToProcess(buf, offset, maxlen);
+
+            // receiver side silly window avoidance: only announce the window once it has
+            // opened up to a full segment or half the buffer, whichever is smaller (RFC 1122 4.2.3.3)
+            int threshold = Math.min(tcb.getReceiveBufferSize() / 2, SegmentSender.MAX_DATA_SIZE);
+            if (windowBefore < threshold && tcb.getReceiveWindow() >= threshold) {
+                socket.segmentSender.sendAck();
+            }
+            return len;
+        }
+    }
+
     /**
      * Get the state the TCP stack is currently in.
      * @return
@@ -220,22 +267,28 @@ public class TCP {
      */
     public class Socket {
 
-        /**
-         * Construct a client socket and setup a transmission control block with
-         * local socket information.
-         */
-        private Socket() {
-            tcb.setLocalSocketInfo(ip.getLocalAddress(), CLIENT_LOCAL_PORT);
-        }
+        private final String TAG;
+
+        private final TransmissionControlBlock tcb;
+        private final SegmentSender segmentSender;
+
+        private boolean sendIssued;
+        private WriteMode writeMode = WriteMode.ACKNOWLEDGED;
+
+        // passive open: the listen queue is created by the first accept()
+        private ListenQueue listenQueue;
+        private int backlog = ListenQueue.DEFAULT_BACKLOG;
+        private int synBacklog = ListenQueue.DEFAULT_SYN_BACKLOG;
 
         /**
-         * Construct a server socket bound to the given local port and setup
-         * transmission control block with a local socket information.
-         *
-         * @param port the local port to use
+         * Construct a socket for a transmission control block that has its
+         * local socket information set.
          */
-        private Socket(int port) {
-            tcb.setLocalSocketInfo(ip.getLocalAddress(), (short)port);
+        private Socket(TransmissionControlBlock tcb) {
+            this.tcb = tcb;
+            TAG = TCP.this.TAG + (tcb.isServer() ? " [server]" : " [client]");
+
+            segmentSender = tcb.getSegmentSender();
         }
 
         /**
@@ -264,22 +317,14 @@ public class TCP {
 
             tcb.setForeignSocketInfo(dst, (short)port);
 
-            initSegmentReceiver();
+            connectionTable.register(tcb, new SegmentHandler(tcb, segmentSender));
 
             // sending SYN until entering SYN SENT state should be synchronized
             synchronized(tcb) {
                 // send SYN packet <SEQ=ISS><CTL=SYN>
                 long iss = tcb.getInitialSendSequenceNumber();
                 Segment segment = SegmentUtil.getSYNPacket(tcb, iss);
-                IP.Packet packet = IPUtil.getPacket(segment);
-                try {
-                    Log.v(TAG, "Sending: " + segment.toString());
-                    ip.ip_send(packet);
-                } catch (IOException e) {
-                    Log.e(TAG, "Error while sending SYN", e);
-                } finally {
-                    tcb.addToRetransmissionQueue(new RetransmissionSegment(segment));
-                }
+                segmentSender.send(segment, true);
 
                 tcb.setSendUnacknowledged(iss);
                 tcb.setSendNext(iss + segment.getLen());
@@ -297,15 +342,196 @@ public class TCP {
 
         /**
          * Accept a connection on this socket.
+         * The first call starts listening on the local port of this socket, after which
+         * incoming connections are queued until they are accepted.
          * This call blocks until a connection is made.
+         *
+         * @return a new socket for the connection, or null if this socket cannot
+         * listen or was closed while waiting
+         */
+        public Socket accept() {
+            synchronized (this) {
+                if(listenQueue == null){
+                    if(tcb.getState() != TransmissionControlBlock.State.CLOSED || tcb.hasForeignSocketInfo()){
+                        Log.e(TAG, "Error in accept(): switching from active to passive open is not supported");
+                        return null;
+                    }
+
+                    ListenQueue queue = new ListenQueue(ip, tcb, connectionTable, backlog, synBacklog);
+                    if(!connectionTable.listen(tcb, queue)){
+                        Log.e(TAG, "Error in accept(): another socket is listening on port {}", tcb.getLocalport());
+                        return null;
+                    }
+
+                    listenQueue = queue;
+                    tcb.enterState(TransmissionControlBlock.State.LISTEN);
+                }
+            }
+
+            Log.v(TAG, "accept(): waiting for an established connection");
+            TransmissionControlBlock child = listenQueue.accept();
+            if(child == null){
+                return null;
+            }
+
+            TCP.this.tcb = child;
+            return new Socket(child);
+        }
+
+        /**
+         * Set the maximum number of connections that wait for accept(), and the maximum
+         * number of connections that are still in the three-way handshake. SYNs that
+         * arrive while either queue is full are dropped.
+         * Must be called before the first accept().
+         *
+         * @param backlog the accept queue depth
+         * @param synBacklog the SYN queue depth
+         * @return false if this socket is already listening
+         */
+        public synchronized boolean setBacklog(int backlog, int synBacklog) {
+            if(listenQueue != null){
+                Log.e(TAG, "Error in setBacklog(): socket is already listening");
+                return false;
+            }
+            if(backlog < 1 || synBacklog < 1){
+                throw new IllegalArgumentException("Backlog must be at least 1");
+            }
+
+            this.backlog = backlog;
+            this.synBacklog = synBacklog;
+            return true;
+        }
+
+        /**
+         * @return the number of SYNs dropped because the SYN queue was full
          */
-        public void accept() {
-            initSegmentReceiver();
+        public synchronized long getSynQueueDrops() {
+            return (listenQueue == null) ? 0 : listenQueue.getSynQueueDrops();
+        }
 
-            tcb.enterState(TransmissionControlBlock.State.LISTEN);
+        /**
+         * @return the number of connections dropped because the accept queue was full
+         */
+        public synchronized long getAcceptQueueDrops() {
+            return (listenQueue == null) ? 0 : listenQueue.getAcceptQueueDrops();
+        }
 
-            Log.v(TAG, "accept(): waiting until state becomes ESTABLISHED");
-            tcb.waitForStates(TransmissionControlBlock.State.ESTABLISHED);
+        /**
+         * Set how long the ACK for received data may be delayed, so that it can cover a
+         * second segment or be sent along with data. The default is
+         * SegmentSender.DEFAULT_ACK_DELAY_MS.
+         *
+         * @param ackDelay delay in milliseconds, or 0 to acknowledge every segment right away
+         */
+        public void setAckDelay(int ackDelay) {
+            synchronized (tcb) {
+                segmentSender.setAckDelay(ackDelay);
+            }
+        }
+
+        /**
+         * @return the counters, latency histograms and current windows of this connection
+         */
+        public ConnectionMetrics.Snapshot getMetrics() {
+            return tcb.getMetricsSnapshot();
+        }
+
+        /**
+         * @return the number of ACKs sent without data
+         */
+        public long getAcksSent() {
+            synchronized (tcb) {
+                return segmentSender.getAcksSent();
+            }
+        }
+
+        /**
+         * @return the number of received segments that did not need an ACK of their own
+         */
+        public long getAcksSaved() {
+            synchronized (tcb) {
+                return segmentSender.getAcksSaved();
+            }
+        }
+
+        /**
+         * Set the size of the receive buffer, which is the largest receive window this
+         * socket announces. Buffers over 64 KB need window scaling, which is negotiated
+         * when the connection is set up, so call this before connect(), or on the
+         * listening socket for the connections it accepts.
+         *
+         * @param size the size in bytes, at most TransmissionControlBlock.MAX_BUFFER_SIZE
+         * @return false if the connection is set up already
+         */
+        public boolean setReceiveBufferSize(int size) {
+            return tcb.setReceiveBufferSize(size);
+        }
+
+        public int getReceiveBufferSize() {
+            return tcb.getReceiveBufferSize();
+        }
+
+        /**
+         * Set the size of the send buffer, the data that write() can queue. To keep a
+         * path with a large bandwidth-delay product busy it should be at least as large
+         * as the receive window of the other side.
+         *
+         * @param size the size in bytes
+         * @return false if data is queued already
+         */
+        public boolean setSendBufferSize(int size) {
+            return tcb.setSendBufferSize(size);
+        }
+
+        public int getSendBufferSize() {
+            return tcb.getSendBufferSize();
+        }
+
+        /**
+         * @return the send window the other side announced last, in bytes
+         */
+        public int getSendWindow() {
+            synchronized (tcb) {
+                return tcb.getSendWindow();
+            }
+        }
+
+        /**
+         * Select the congestion control algorithm of this socket, for example a
+         * Reno or Cubic instance. Call this before connect(), or on an accepted socket
+         * before writing to it, since the algorithm starts from its initial window.
+         * The default is Reno.
+         *
+         * @param congestionControl a new instance, not shared with other sockets
+         */
+        public void setCongestionControl(CongestionControl congestionControl) {
+            synchronized (tcb) {
+                tcb.setCongestionControl(congestionControl);
+            }
+        }
+
+        public CongestionControl getCongestionControl() {
+            synchronized (tcb) {
+                return tcb.getCongestionControl();
+            }
+        }
+
+        /**
+         * @return the congestion window in bytes
+         */
+        public int getCongestionWindow() {
+            synchronized (tcb) {
+                return tcb.getCongestionWindow();
+            }
+        }
+
+        /**
+         * @return the slow start threshold in bytes, Integer.MAX_VALUE until the first loss
+         */
+        public int getSlowStartThreshold() {
+            synchronized (tcb) {
+                return tcb.getSlowStartThreshold();
+            }
         }
 
         /**
@@ -319,7 +545,7 @@ public class TCP {
          * @return the number of bytes read, or -1 if an error occurs.
          */
         public int read(byte[] buf, int offset, int maxlen) {
-            return receive(buf, offset, maxlen);
+            return receive(this, buf, offset, maxlen);
         }
 
         /**
@@ -331,7 +557,61 @@ public class TCP {
          * @return the number of bytes written or -1 if an error occurs.
          */
         public int write(byte[] buf, int offset, int len) {
-            return send(buf, offset, len);
+            return send(this, buf, offset, len, writeMode);
+        }
+
+        /**
+         * Set when write() returns: once the data is queued for transmission, or once
+         * it has been acknowledged (the default).
+         *
+         * @param writeMode
+         */
+        public void setWriteMode(WriteMode writeMode) {
+            this.writeMode = writeMode;
+        }
+
+        public WriteMode getWriteMode() {
+            return writeMode;
+        }
+
+        /**
+         * Enable or disable Nagle's algorithm. When disabled (noDelay is false), small
+         * writes are collected into one segment while earlier data is unacknowledged,
+         * which saves packets when many small messages are written in a row. Nagle's
+         * algorithm only helps in WriteMode.QUEUED, since otherwise every write waits
+         * for its ACK anyway. The default is true.
+         *
+         * @param noDelay true to send every write right away
+         */
+        public void setNoDelay(boolean noDelay) {
+            synchronized (tcb) {
+                segmentSender.setNoDelay(noDelay);
+            }
+        }
+
+        public boolean getNoDelay() {
+            synchronized (tcb) {
+                return segmentSender.getNoDelay();
+            }
+        }
+
+        /**
+         * Send the data that Nagle's algorithm holds back right away, e.g. at the end
+         * of a message. Data beyond the send window is still sent when the window opens.
+         *
+         * @return false if the connection cannot send data
+         */
+        public boolean flush() {
+            synchronized (tcb) {
+                switch (tcb.getState()) {
+                    case ESTABLISHED:
+                    case CLOSE_WAIT:
+                        segmentSender.flush();
+                        return true;
+                    default:
+                        return false;
+                }
+            }
         }
 
         /**
@@ -346,6 +626,8 @@ public class TCP {
                     Log.e(TAG, "Error in close(): connection does not exist");
                     return false;
                 case LISTEN:
+                    // release threads blocked in accept(), and drop connections that were not accepted
+                    listenQueue.close();
                     tcb.enterState(TransmissionControlBlock.State.CLOSED);
 
                     // Any outstanding RECEIVEs are stopped
@@ -362,15 +644,7 @@ public class TCP {
                     if(!sendIssued && !tcb.hasDataToTransmit()){
                         synchronized (tcb){
                             Segment segment = SegmentUtil.getFINPacket(tcb, tcb.getSendNext(), tcb.getReceiveNext());
-                            IP.Packet packet = IPUtil.getPacket(segment);
-                            try {
-                                Log.v(TAG, "Sending: " + segment.toString());
-                                ip.ip_send(packet);
-                            } catch (IOException e) {
-                                Log.e(TAG, "Error while sending FIN", e);
-                            } finally {
-                                tcb.addToRetransmissionQueue(new RetransmissionSegment(segment));
-                            }
+                            segmentSender.send(segment, true);
 
                             tcb.setSendUnacknowledged(segment.getSeq());
                             tcb.advanceSendNext(segment.getLen());
@@ -394,11 +668,13 @@ public class TCP {
                 case ESTABLISHED:
                     tcb.enterState(TransmissionControlBlock.State.FIN_WAIT_1);
 
-                    // Queue this close until all preceding SENDs have finished
-                    // In this implementation we always send data immediately, so no
-                    // data is added to the transmitQueue (i.e. tcb.hasDataToTransmit() will
-                    // always return false).
+                    // Queue this close until all preceding SENDs have finished, i.e. until
+                    // the transmission queue has been sent and all of it is acknowledged
                     if(tcb.hasDataToTransmit() || tcb.hasDataToRetransmit()){
+                        // do not let Nagle's algorithm hold back the last segment
+                        synchronized (tcb){
+                            segmentSender.flush();
+                        }
                         Log.v(TAG, "Waiting until all packets have been sent");
                         tcb.waitUntilAllAcknowledged();
                         Log.v(TAG, "All packets are either acknowledged or timed out");
@@ -407,15 +683,7 @@ public class TCP {
                     // sending FIN until entering FIN_WAIT_1 state should be synchronized
                     synchronized (tcb){
                         Segment segment = SegmentUtil.getFINPacket(tcb, tcb.getSendNext(), tcb.getReceiveNext());
-                        IP.Packet packet = IPUtil.getPacket(segment);
-                        try {
-                            Log.v(TAG, "Sending: " + segment.toString());
-                            ip.ip_send(packet);
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error while sending FIN", e);
-                        } finally {
-                            tcb.addToRetransmissionQueue(new RetransmissionSegment(segment));
-                        }
+                        segmentSender.send(segment, true);
 
                         tcb.setSendUnacknowledged(segment.getSeq());
                         tcb.advanceSendNext(segment.getLen());
@@ -429,11 +697,13 @@ public class TCP {
 
                     return true;
                 case CLOSE_WAIT:
-                    // Queue this close until all preceding SENDs have finished
-                    // In this implementation we always send data immediately, so no
-                    // data is added to the transmitQueue (i.e. tcb.hasDataToTransmit() will
-                    // always return false).
+                    // Queue this close until all preceding SENDs have finished, i.e. until
+                    // the transmission queue has been sent and all of it is acknowledged
                     if(tcb.hasDataToTransmit() || tcb.hasDataToRetransmit()){
+                        // do not let Nagle's algorithm hold back the last segment
+                        synchronized (tcb){
+                            segmentSender.flush();
+                        }
                         Log.v(TAG, "Waiting until all packets have been sent");
                         tcb.waitUntilAllAcknowledged();
                         Log.v(TAG, "All packets are either acknowledged or timed out");
@@ -442,15 +712,7 @@ public class TCP {
                     // Send a FIN segment, enter LAST_ACK state
                     synchronized (tcb){
                         Segment segment = SegmentUtil.getFINPacket(tcb, tcb.getSendNext(), tcb.getReceiveNext());
-                        IP.Packet packet = IPUtil.getPacket(segment);
-                        try {
-                            Log.v(TAG, "Sending: " + segment.toString());
-                            ip.ip_send(packet);
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error while sending FIN", e);
-                        } finally {
-                            tcb.addToRetransmissionQueue(new RetransmissionSegment(segment));
-                        }
+                        segmentSender.send(segment, true);
 
                         tcb.setSendUnacknowledged(segment.getSeq());
                         tcb.advanceSendNext(segment.getLen());
@@ -0,0 +1,81 @@
+package nl.vu.cs.cn.tcp.timeout;
+
+/**
+ * Computes the retransmission timeout (RTO) from round trip time measurements,
+ * as described in RFC 6298.
+ *
+ * Callers are responsible for Karn's algorithm: RTT samples must not be taken
+ * from segments that have been retransmitted.
+ */
+public class RttEstimator {
+
+    public static final long INITIAL_RTO_MS = 1000;     // RTO before the first measurement
+    public static final long MIN_RTO_MS = 200;          // lower bound of the RTO
+    public static final long MAX_RTO_MS = 60 * 1000;    // upper bound of the RTO
+
+    private static final long CLOCK_GRANULARITY_NS = 1000 * 1000;   // G, we measure in ms
+
+    private long srtt;          // smoothed round trip time in ns, 0 if there is no measurement yet
+    private long rttvar;        // round trip time variation in ns
+    private long rto;           // retransmission timeout in ns
+
+    public RttEstimator(){
+        rto = INITIAL_RTO_MS * 1000 * 1000;
+    }
+
+    /**
+     * Update the estimator with a new round trip time measurement.
+     * @param rttNanos the measured round trip time in nanoseconds
+     */
+    public synchronized void addSample(long rttNanos){
+        if(rttNanos < 0){
+            return;
+        }
+
+        if(srtt == 0){
+            // first measurement (RFC 6298, 2.2)
+            srtt = Math.max(rttNanos, 1);
+            rttvar = rttNanos / 2;
+        } else {
+            // subsequent measurements (RFC 6298, 2.3), beta = 1/4 and alpha = 1/8
+            rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4;
+            srtt = Math.max((7 * srtt + rttNanos) / 8, 1);
+        }
+
+        setRto(srtt + Math.max(CLOCK_GRANULARITY_NS, 4 * rttvar));
+    }
+
+    /**
+     * Back off the timer after a retransmission timeout (RFC 6298, 5.5).
+     */
+    public synchronized void backoff(){
+        setRto(rto * 2);
+    }
+
+    private void setRto(long rtoNanos){
+        long min = MIN_RTO_MS * 1000 * 1000;
+        long max = MAX_RTO_MS * 1000 * 1000;
+        rto = Math.max(min, Math.min(max, rtoNanos));
+    }
+
+    /**
+     * @return the current retransmission timeout in milliseconds
+     */
+    public synchronized long getRto(){
+        return rto / (1000 * 1000);
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, or -1 if no RTT was measured yet
+     */
+    public synchronized double getSmoothedRtt(){
+        return (srtt == 0) ? -1 : srtt / (1000.0 * 1000.0);
+    }
+
+    /**
+     * @return the round trip time variation in milliseconds
+     */
+    public synchronized double getRttVariation(){
+        return rttvar / (1000.0 * 1000.0);
+    }
+}
@@ -1,10 +1,7 @@
 package nl.vu.cs.cn.tcp.timeout;
 
 
-import java.io.IOException;
-
 import nl.vu.cs.cn.IP;
-import nl.vu.cs.cn.IPUtil;
 import nl.vu.cs.cn.Log;
 import nl.vu.cs.cn.tcp.TransmissionControlBlock;
 import nl.vu.cs.cn.tcp.segment.RetransmissionSegment;
@@ -24,38 +21,40 @@ public class TimeoutHandler implements OnTimeoutListener {
     }
 
     public void onUserTimeout(){
-        /*
-         *  Unimplemented for now.
-         *
-         * TODO:
-         * - flush all queus
-         * - signal user: "error:  connection aborted due to user timeout" in general
-         * - signal user: "error:  connection aborted due to user timeout" in any outstanding calls
-         * - enter closed state
-         */
-
-        tcb.enterState(TransmissionControlBlock.State.CLOSED);
+        Log.e(TAG, "Connection aborted due to user timeout");
+        tcb.abort();
     }
 
     public void onRetransmissionTimeout(RetransmissionSegment retransmissionSegment){
         Segment segment = retransmissionSegment.getSegment();
         synchronized (tcb){
-            // remove segment from the retransmission queue
-            if(!tcb.removeFromRetransmissionQueue(retransmissionSegment)){
-                // the segment did not exist in the queue anymore
+            if(!tcb.isInRetransmissionQueue(retransmissionSegment)){
+                // the segment has been acknowledged in the meantime
                 return;
             }
 
-            // double check if segment is not acknowledged by now
-            if(SegmentUtil.isAcked(segment, tcb.getSendUnacknowledged())){
+            // double check if segment is not acknowledged by now. Segments further in the queue
+            // start after SND.UNA, so check against [SND.UNA, SND.NXT) rather than isAcked()
+            if(!SegmentUtil.inWindow(tcb.getSendUnacknowledged(), segment.getLastSeq(), tcb.getSendNext())){
                 // the sequence number has been completely acknowledged by now
                 return;
             }
+
+            if(retransmissionSegment.isSacked() && segment.getSeq() != tcb.getSendUnacknowledged()){
+                // the receiver holds this segment already, wait for the data in front of it to be
+                // ACKed. Once it is the oldest unacknowledged segment it is resent after all, in case
+                // the receiver dropped it again
+                tcb.onRetransmissionSkipped();
+                tcb.startRetransmissionTimer(retransmissionSegment);
+                return;
+            }
         }
 
         int retryNum = retransmissionSegment.getRetry();
         if(retryNum >= TransmissionControlBlock.MAX_RETRANSMITS){
-            Log.v(getTag(), "Segment " + segment.getSeq() + " was not ACKed. Not retrying");
+            if(Log.V && Log.isLoggable(getTag(), Log.VERBOSE)){
+                Log.v(getTag(), "Segment {} was not ACKed. Not retrying", segment.getSeq());
+            }
             // not retrying, so don't add it to the queue again
 
             switch (tcb.getState()){
@@ -72,20 +71,19 @@ public class TimeoutHandler implements OnTimeoutListener {
             // TODO: according to RFC 1122, we want to close the connection now (since something is obviously wrong)
             tcb.enterState(TransmissionControlBlock.State.CLOSED);
         } else {
-            Log.v(getTag(), "Segment " + segment.getSeq() + " was not ACKed. Retry #" + (retryNum+1));
-
-            retransmissionSegment.increaseRetry();
-
-            IP.Packet packet = IPUtil.getPacket(segment);
-            try {
-                int bytesSent = ip.ip_send(packet);
-                Log.v(getTag(), "Resent " + bytesSent + " bytes.");
-            } catch (IOException e) {
-                // if an error occurs set a timer again and retry afterwards
-                Log.w(getTag(), "Error while resending packet", e);
-            } finally {
-                // retrying, so add segment to the retransmission queue again
-                tcb.addToRetransmissionQueue(retransmissionSegment);
+            if(Log.V && Log.isLoggable(getTag(), Log.VERBOSE)){
+                Log.v(getTag(), "Segment {} was not ACKed. Retry #{}", segment.getSeq(), retryNum+1);
+            }
+
+            // resend the already encoded packet. Hold the TCB lock, so an ACK cannot
+            // release the packet to the pool while it is being sent
+            synchronized (tcb){
+                if(!tcb.isInRetransmissionQueue(retransmissionSegment)){
+                    return;
+                }
+
+                tcb.onRetransmissionTimeout(retransmissionSegment);
+                tcb.getSegmentSender().retransmit(retransmissionSegment);
             }
         }
     }
@@ -0,0 +1,197 @@
+package nl.vu.cs.cn.tcp.timeout;
+
+import java.util.ArrayList;
+
+import nl.vu.cs.cn.Log;
+
+/**
+ * A hashed timing wheel that runs the retransmission, TIME WAIT and user timeouts
+ * of all connections in this process on a single thread.
+ *
+ * Time is divided in ticks of TICK_MS milliseconds, and timers are hashed into one of
+ * WHEEL_SIZE buckets by their expiry tick. Each bucket is a doubly linked list, so both
+ * scheduling and cancelling a timer take constant time. Timers that lie more than one
+ * revolution ahead keep a count of the rounds they still have to wait.
+ *
+ * Timer tasks run on the wheel thread, so they should be short.
+ */
+public class TimerWheel {
+
+    public static final long TICK_MS = 10;          // resolution of the wheel
+    public static final int WHEEL_SIZE = 512;       // number of buckets, must be a power of two
+
+    private static final String TAG = "TimerWheel";
+
+    private static TimerWheel instance;
+
+    private final long tickNanos;
+    private final Timer[] buckets;                  // sentinel heads of the bucket lists
+    private final int mask;
+
+    private long tick;                              // number of ticks processed so far
+    private Thread worker;
+
+    /**
+     * A scheduled task, which can be cancelled until it expires.
+     */
+    public final class Timer {
+
+        private final Runnable task;
+        private long remainingRounds;
+        private Timer prev, next;
+        private boolean cancelled, expired;
+
+        private Timer(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Cancel this timer.
+         * @return true if the timer was cancelled, false if it already expired or was cancelled before
+         */
+        public boolean cancel() {
+            return TimerWheel.this.cancel(this);
+        }
+
+        public synchronized boolean isExpired() {
+            return expired;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * @return the timer wheel shared by all connections in this process
+     */
+    public static synchronized TimerWheel getInstance() {
+        if (instance == null) {
+            instance = new TimerWheel(TICK_MS);
+        }
+        return instance;
+    }
+
+    private TimerWheel(long tickMs) {
+        tickNanos = tickMs * 1000 * 1000;
+        buckets = new Timer[WHEEL_SIZE];
+        mask = WHEEL_SIZE - 1;
+
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            Timer head = new Timer(null);
+            head.prev = head;
+            head.next = head;
+            buckets[i] = head;
+        }
+    }
+
+    /**
+     * Schedule task to run after delayMs milliseconds (rounded up to whole ticks).
+     * @param task
+     * @param delayMs
+     * @return a handle that can be used to cancel the task
+     */
+    public Timer schedule(Runnable task, long delayMs) {
+        Timer timer = new Timer(task);
+
+        long ticks = Math.max(1, (delayMs * 1000 * 1000 + tickNanos - 1) / tickNanos);
+
+        synchronized (this) {
+            startWorker();
+
+            timer.remainingRounds = (ticks - 1) / WHEEL_SIZE;
+
+            // insert at the tail of the bucket list
+            Timer head = buckets[(int) ((tick + ticks) & mask)];
+            timer.prev = head.prev;
+            timer.next = head;
+            head.prev.next = timer;
+            head.prev = timer;
+        }
+        return timer;
+    }
+
+    private synchronized boolean cancel(Timer timer) {
+        synchronized (timer) {
+            if (timer.expired || timer.cancelled) {
+                return false;
+            }
+            timer.cancelled = true;
+        }
+
+        unlink(timer);
+        return true;
+    }
+
+    private void unlink(Timer timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    private void startWorker() {
+        if (worker != null) {
+            return;
+        }
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, TAG);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void runWorker() {
+        long start = System.nanoTime();
+        ArrayList<Timer> expired = new ArrayList<Timer>();
+        long processed = 0;
+
+        while (true) {
+            // sleep until the start of the next tick
+            long deadline = start + (processed + 1) * tickNanos;
+            long sleepNanos = deadline - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    Thread.sleep(sleepNanos / (1000 * 1000), (int) (sleepNanos % (1000 * 1000)));
+                } catch (InterruptedException e) {
+                    // ignore, continue with the next tick
+                }
+                continue;
+            }
+            processed++;
+
+            synchronized (this) {
+                tick = processed;
+                Timer head = buckets[(int) (tick & mask)];
+                Timer timer = head.next;
+                while (timer != head) {
+                    Timer next = timer.next;
+                    if (timer.remainingRounds > 0) {
+                        timer.remainingRounds--;
+                    } else {
+                        unlink(timer);
+                        synchronized (timer) {
+                            timer.expired = true;
+                        }
+                        expired.add(timer);
+                    }
+                    timer = next;
+                }
+            }
+
+            // run expired tasks without holding the wheel lock, so they can schedule new timers
+            for (int i = 0; i < expired.size(); i++) {
+                try {
+                    expired.get(i).task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Timer task failed", e);
+                }
+            }
+            expired.clear();
+        }
+    }
+}
@@ -2,23 +2,21 @@ package nl.vu.cs.cn.tcp;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import nl.vu.cs.cn.IP;
 import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.tcp.congestion.CongestionControl;
+import nl.vu.cs.cn.tcp.congestion.Reno;
 import nl.vu.cs.cn.tcp.segment.RetransmissionSegment;
 import nl.vu.cs.cn.tcp.segment.Segment;
-import nl.vu.cs.cn.tcp.segment.SegmentReceiver;
+import nl.vu.cs.cn.tcp.segment.SegmentSender;
 import nl.vu.cs.cn.tcp.segment.SegmentUtil;
+import nl.vu.cs.cn.tcp.timeout.RttEstimator;
 import nl.vu.cs.cn.tcp.timeout.TimeoutHandler;
+import nl.vu.cs.cn.tcp.timeout.TimerWheel;
 
 /**
  * The Transmission Control Block in TCP keeps track of the state of a connection,
@@ -26,14 +24,20 @@ import nl.vu.cs.cn.tcp.timeout.TimeoutHandler;
  */
 public class TransmissionControlBlock {
 
-    private static final int RETRANSMIT_TIMEOUT_MS = 1000;    // number of time before retransmit
     public static final int MAX_RETRANSMITS = 10;           // maximum number of retransmits
     public static final int TIME_WAIT_TIMEOUT_SEC = 5;     // number of time TIME WAIT should wait before entering CLOSE
+    public static final int USER_TIMEOUT_SEC = 5 * 60;     // time data may stay unacknowledged before the connection is aborted
+    public static final int DUPACK_THRESHOLD = 3;           // duplicate ACKs that trigger a fast retransmit
 
     public static final short IP_HEADER_SIZE = 20;           // size of IP header in bytes
     public static final short MAX_SEGMENT_SIZE = 8 * 1024 - IP_HEADER_SIZE;    // maximum packet size in bytes
 
-    private static final int MAX_RETRANSMISSION_THREADS = 5;
+    public static final int SEND_BUFFER_SIZE = 64 * 1024;   // default size of the transmission queue in bytes
+    public static final int RECEIVE_BUFFER_SIZE = 64 * 1024;    // default size of the processing queue, the receive window
+
+    public static final int MAX_WINDOW_SHIFT = 14;          // largest window scale (RFC 7323 section 2.3)
+    public static final int MAX_WINDOW_FIELD = 0xffff;      // largest value of the window field of a segment
+    public static final int MAX_BUFFER_SIZE = MAX_WINDOW_FIELD << MAX_WINDOW_SHIFT;     // largest window that can be announced
 
 
     private String TAG = "TCB";
@@ -54,7 +58,7 @@ public class TransmissionControlBlock {
 
     private boolean isServer;   // used for logging purposes
 
-    private State state;
+    private volatile State state;
     private final Lock stateLock = new ReentrantLock();
     private final Condition stateChanged = stateLock.newCondition();
 
@@ -68,27 +72,55 @@ public class TransmissionControlBlock {
     private long irs;               // initial receive sequence number
 
     // send sequence variables (note that window and urgent pointer info is not used)
-    private long snd_una;           // send - unacknowledged sequence number
-    private long snd_nxt;           // send - next sequence number
-    private short snd_wnd;          // send - window (offset of snd_una)
+    private volatile long snd_una;  // send - unacknowledged sequence number
+    private volatile long snd_nxt;  // send - next sequence number
+    private int snd_wnd;            // send - window (offset of snd_una)
+    private int max_snd_wnd;        // largest send window the other side has offered
 
     private Segment fin_una;        // unacknowledged FIN segment
 
+    // selective acknowledgements (RFC 2018)
+    private boolean sackPermitted = true;   // offer SACK in the SYN
+    private boolean sackEnabled;            // both sides agreed on SACK
+
+    // window scaling (RFC 7323)
+    private boolean windowScalePermitted = true;    // offer window scaling in the SYN
+    private boolean windowScaleEnabled;             // both sides agreed on window scaling
+    private int snd_wscale;         // shift of the windows the other side announces
+    private int rcv_wscale;         // shift of the windows we announce
+
+    // fast retransmit and NewReno fast recovery (RFC 5681, RFC 6582)
+    private int dupAcks;                // duplicate ACKs for SND.UNA in a row
+    private boolean inRecovery;
+    private long recover;               // SND.NXT when fast recovery was entered, or at the last timeout
+    private long highRetransmitted;     // end of the highest segment retransmitted during recovery
+
+    private CongestionControl congestionControl;    // limits the data in flight besides SND.WND
+
 
     // receive sequence variables
     private long rcv_nxt;        // receive - next sequence number
-    private short rcv_wnd;      // receive - window
 
-    private final ScheduledExecutorService executor;
+    private final TimerWheel timerWheel;
+
+    private volatile ConnectionTable connectionTable;
+    private volatile ListenQueue listenQueue;    // set until a passively opened connection is accepted
 
-    private SegmentReceiver segmentReceiver;
+    private final SegmentSender segmentSender;
 
-    private ConcurrentLinkedQueue<Byte> transmissionQueue;
-    private ConcurrentLinkedQueue<Byte> processingQueue;
+    private ByteRingBuffer transmissionQueue;
+    private final Lock transmissionQueueLock = new ReentrantLock();
+    private final Condition hasSpaceForTransmission = transmissionQueueLock.newCondition();
+
+    private ByteRingBuffer processingQueue;     // its free space is the receive window
     private final Lock processingQueueLock = new ReentrantLock();
     private final Condition hasDataForProcessing = processingQueueLock.newCondition();
+    private boolean processingStopped;    // true once no more data will arrive (FIN received or closed)
+    private volatile boolean aborted;     // true once the connection is aborted, reads and writes fail from then on
+    private final ReassemblyQueue reassemblyQueue = new ReassemblyQueue();  // data beyond RCV.NXT
 
-    private ConcurrentHashMap<RetransmissionSegment, ScheduledFuture> retransmissionMap;
+    private final RetransmissionQueue retransmissionQueue;
+    private final ArrayList<RetransmissionSegment> ackedSegments = new ArrayList<RetransmissionSegment>();    // reused by removeFromRetransmissionQueue
     private final Lock retransmissionLock = new ReentrantLock();
     private final Condition retransmissionQueueChanged = retransmissionLock.newCondition();
 
@@ -96,7 +128,12 @@ public class TransmissionControlBlock {
     private final Condition allSegmentsAcked = allAckedLock.newCondition();
 
     private TimeoutHandler timeoutHandler;
-    private ScheduledFuture timeWaitScheduledFuture;
+    private TimerWheel.Timer timeWaitTimer;
+    private TimerWheel.Timer userTimer;
+
+    private final RttEstimator rttEstimator = new RttEstimator();
+
+    private final ConnectionMetrics metrics;
 
 
     /**
@@ -104,14 +141,24 @@ public class TransmissionControlBlock {
      * When this method finishes the state is set to CLOSED.
      */
     public TransmissionControlBlock(IP ip, boolean isServer) {
+        this(ip, isServer, null);
+    }
+
+    /**
+     * @param ip
+     * @param isServer
+     * @param stackMetrics the metrics of the TCP stack, which the metrics of this connection add to, or null
+     */
+    public TransmissionControlBlock(IP ip, boolean isServer, ConnectionMetrics stackMetrics) {
+        metrics = new ConnectionMetrics(stackMetrics);
         iss = getInitialSendSequenceNumber();
+        recover = iss;
         state = State.CLOSED;
 
-        executor = Executors.newScheduledThreadPool(MAX_RETRANSMISSION_THREADS);
+        timerWheel = TimerWheel.getInstance();
 
-        retransmissionMap = new ConcurrentHashMap<RetransmissionSegment, ScheduledFuture>();
-        transmissionQueue = new ConcurrentLinkedQueue<Byte>();
-        processingQueue = new ConcurrentLinkedQueue<Byte>();
+        retransmissionQueue = new RetransmissionQueue();
+        setCongestionControl(new Reno());
 
         timeoutHandler = new TimeoutHandler(ip, this);
 
@@ -119,9 +166,13 @@ public class TransmissionControlBlock {
         this.isServer = isServer;
         TAG += (isServer) ? " [server]" : " [client]";
 
-        // implementation specific settings: window is always max size of one packet
+        segmentSender = new SegmentSender(this, ip);
+
+        // the send window is known once the SYN of the other side arrives
         snd_wnd = MAX_SEGMENT_SIZE;
-        rcv_wnd = MAX_SEGMENT_SIZE;
+
+        transmissionQueue = new ByteRingBuffer(SEND_BUFFER_SIZE);
+        processingQueue = new ByteRingBuffer(RECEIVE_BUFFER_SIZE);
     }
 
     /**
@@ -131,18 +182,73 @@ public class TransmissionControlBlock {
     public synchronized void enterState(State state){
         stateLock.lock();
         try {
-            Log.v(TAG, "Entering state: " + state);
+            Log.v(TAG, "Entering state: {}", state);
+            metrics.onStateChange(this.state, state);
             this.state = state;
 
             // stop receiving packets when entering close
-            if(state == State.CLOSED && segmentReceiver != null){
-                segmentReceiver.stop();
+            if(state == State.CLOSED && connectionTable != null){
+                connectionTable.unregister(this);
+            }
+
+            // stop all timers, and release threads waiting for ACKs or space in the transmission queue
+            if(state == State.CLOSED){
+                clearRetransmissionQueue();
+                signalRetransmissionQueueChanged();
+                transmissionQueueLock.lock();
+                try {
+                    hasSpaceForTransmission.signalAll();
+                } finally {
+                    transmissionQueueLock.unlock();
+                }
+                stopWaitingForDataToProcess();
             }
 
             stateChanged.signalAll();
         } finally {
             stateLock.unlock();
         }
+
+        // a passively opened connection that is not accepted yet moves between the listen queues
+        ListenQueue listenQueue = this.listenQueue;
+        if(listenQueue != null){
+            if(state == State.ESTABLISHED){
+                listenQueue.onEstablished(this);
+            } else if(state == State.CLOSED){
+                listenQueue.onClosed(this);
+            }
+        }
+    }
+
+    /**
+     * Abort the connection: drop all data that is queued in either direction and enter
+     * CLOSED. Reads and writes, also those already waiting, return -1 from then on.
+     */
+    public synchronized void abort(){
+        aborted = true;
+
+        transmissionQueueLock.lock();
+        try {
+            transmissionQueue.clear();
+        } finally {
+            transmissionQueueLock.unlock();
+        }
+        processingQueueLock.lock();
+        try {
+            processingQueue.clear();
+        } finally {
+            processingQueueLock.unlock();
+        }
+        reassemblyQueue.clear();
+
+        enterState(State.CLOSED);
+    }
+
+    /**
+     * @return true if the connection was aborted, see abort()
+     */
+    public boolean isAborted(){
+        return aborted;
     }
 
     /**
@@ -183,17 +289,26 @@ public class TransmissionControlBlock {
     }
 
     /**
-     * Wait until the specified segment has been completely ACKed.
+     * Wait until all sequence numbers before seq have been ACKed, i.e. until
+     * SND.UNA has reached seq.
      *
-     * @param segment
-     * @return true if and only if the packet has been ACKed within the number of retries
+     * @param seq
+     * @return true if and only if seq has been ACKed. False if the connection was closed
+     * before that happened (e.g. because the maximum number of retries was reached).
      */
-    public boolean waitForAck(Segment segment){
+    public boolean waitForAck(long seq){
+        long waitStart = 0;
         retransmissionLock.lock();
         try {
-            int i;
-            for(i=0; i<MAX_RETRANSMITS+1 && !SegmentUtil.isAcked(segment, getSendUnacknowledged()); i++){
-                Log.v(TAG, "Checking if packet is acked... " + segment.getSeq() + ":" + segment.getLastSeq());
+            // note: state and SND.UNA are read without locking the TCB, so we never block the
+            // segment handler (which holds the TCB lock while signalling us)
+            while(!isAcked(seq) && state != State.CLOSED){
+                if(Log.V && Log.isLoggable(TAG, Log.VERBOSE)){
+                    Log.v(TAG, "Waiting until " + seq + " is acked... SND.UNA: " + snd_una);
+                }
+                if(waitStart == 0){
+                    waitStart = System.nanoTime();
+                }
                 try {
                     retransmissionQueueChanged.await();
                 } catch (InterruptedException e) {
@@ -201,10 +316,14 @@ public class TransmissionControlBlock {
                 }
             }
 
-            // either the packet has been met, or the number of retransmits have been
-            // reached, and the packet did not arrive
-            boolean isAcked = SegmentUtil.isAcked(segment, getSendUnacknowledged());
-            Log.v(TAG, "[" + Thread.currentThread().getId() + "] Packet " + segment.getSeq() + ":" + segment.getLastSeq() + " acknowledged? : " + isAcked + ". SND.UNA: " + getSendUnacknowledged());
+            if(waitStart != 0){
+                metrics.ackWait.record(System.nanoTime() - waitStart);
+            }
+
+            boolean isAcked = isAcked(seq);
+            if(Log.V && Log.isLoggable(TAG, Log.VERBOSE)){
+                Log.v(TAG, "[" + Thread.currentThread().getId() + "] " + seq + " acknowledged? : " + isAcked + ". SND.UNA: " + snd_una);
+            }
 
             return isAcked;
         } finally {
@@ -212,6 +331,18 @@ public class TransmissionControlBlock {
         }
     }
 
+    /**
+     * @param seq a sequence number up to the end of the queued data
+     * @return true if and only if SND.UNA < seq =< SND.NXT + queued data does not hold anymore
+     */
+    private boolean isAcked(long seq){
+        // seq lies beyond SND.NXT while the data in front of it is still queued. The queue
+        // shrinks as SND.NXT grows, so read it first to never see too little data outstanding
+        int queued = getTransmissionQueueSize();
+        long end = (snd_nxt + queued + 1) % Integer.MAX_VALUE;
+        return !SegmentUtil.inWindow((snd_una + 1) % Integer.MAX_VALUE, seq, end);
+    }
+
     /**
      * Wait until the retransmission queue is empty
      *
@@ -220,31 +351,28 @@ public class TransmissionControlBlock {
     public void waitUntilAllAcknowledged(){
         allAckedLock.lock();
         try {
-            if(retransmissionMap.size() > 0){
-                for(RetransmissionSegment retrans : retransmissionMap.keySet()){
-                    Log.e(TAG, "Segment not acked: ("+retrans.getSegment().getSeq()+":"+retrans.getSegment().getLastSeq()+")");
-                }
-            }
+            logUnacknowledgedSegments();
 
-            while(retransmissionMap.size() > 0){
+            while(!retransmissionQueue.isEmpty() || hasDataToTransmit()){
                 try {
                     allSegmentsAcked.await();
                 } catch (InterruptedException e) {
                     // ignore, wait again
                 }
 
-                if(retransmissionMap.size() > 0){
-                    for(RetransmissionSegment retrans : retransmissionMap.keySet()){
-                        Log.e(TAG, "Segment not acked: ("+retrans.getSegment().getSeq()+":"+retrans.getSegment().getLastSeq()+")");
-                    }
-                }
-
+                logUnacknowledgedSegments();
             }
         } finally {
             allAckedLock.unlock();
         }
     }
 
+    private void logUnacknowledgedSegments(){
+        RetransmissionSegment first = retransmissionQueue.peekFirst();
+        if(first != null && Log.isLoggable(TAG, Log.ERROR)){
+            Log.e(TAG, retransmissionQueue.size() + " segment(s) not acked, first: ("+first.getSegment().getSeq()+":"+first.getSegment().getLastSeq()+")");
+        }
+    }
 
     public boolean isServer() {
         return isServer;
@@ -311,11 +439,28 @@ public class TransmissionControlBlock {
     }
 
     /**
-     * Set the segmentReceiver, later used to stop receiving
-     * @param segmentReceiver
+     * Set the connection table this connection is registered in, later used to
+     * unregister when the connection is closed
+     * @param connectionTable
+     */
+    public void setConnectionTable(ConnectionTable connectionTable){
+        this.connectionTable = connectionTable;
+    }
+
+    /**
+     * Set the listen queue this connection was created by. The queue is told when the
+     * connection is established or closed, until it has been accepted.
+     * @param listenQueue
      */
-    public void setSegmentReceiver(SegmentReceiver segmentReceiver){
-        this.segmentReceiver = segmentReceiver;
+    public void setListenQueue(ListenQueue listenQueue){
+        this.listenQueue = listenQueue;
+    }
+
+    /**
+     * @return the sender that sends the segments of this connection
+     */
+    public SegmentSender getSegmentSender(){
+        return segmentSender;
     }
 
 
@@ -385,17 +530,35 @@ public class TransmissionControlBlock {
 
     /**
      * Set send window
-     * @param snd_wnd
+     * @param snd_wnd the window in bytes, after scaling
      * @return
      */
-    public void setSendWindow(short snd_wnd){
+    public void setSendWindow(int snd_wnd){
         this.snd_wnd = snd_wnd;
+        if(snd_wnd > max_snd_wnd){
+            max_snd_wnd = snd_wnd;
+        }
     }
 
-    public short getSendWindow(){
+    public int getSendWindow(){
         return snd_wnd;
     }
 
+    /**
+     * @return the largest send window seen on this connection
+     */
+    public int getMaxSendWindow(){
+        return max_snd_wnd;
+    }
+
+    /**
+     * Get the number of sequence numbers sent but not yet acknowledged (SND.NXT - SND.UNA).
+     * @return
+     */
+    public synchronized int getBytesInFlight(){
+        return (int) ((snd_nxt - snd_una + Integer.MAX_VALUE) % Integer.MAX_VALUE);
+    }
+
     /**
      * Advance receive next sequence number by len
      * @param len
@@ -421,11 +584,97 @@ public class TransmissionControlBlock {
     }
 
     /**
-     * Get receive window.
+     * Get receive window, which is the free space left in the processing queue.
      * @return
      */
     public int getReceiveWindow(){
-        return rcv_wnd;
+        processingQueueLock.lock();
+        try {
+            return processingQueue.free();
+        } finally {
+            processingQueueLock.unlock();
+        }
+    }
+
+    /**
+     * @return the window field of outgoing segments other than SYNs: the receive window scaled down
+     */
+    public int getAdvertisedWindow(){
+        return Math.min(getReceiveWindow() >> rcv_wscale, MAX_WINDOW_FIELD);
+    }
+
+    /**
+     * @return the window field of SYN segments, which is never scaled
+     */
+    public int getSynWindow(){
+        return Math.min(getReceiveWindow(), MAX_WINDOW_FIELD);
+    }
+
+    /**
+     * @param segment a segment from the other side that is not a SYN
+     * @return the window of the segment in bytes
+     */
+    public int getScaledWindow(Segment segment){
+        return segment.getWindow() << snd_wscale;
+    }
+
+    /**
+     * Set the size of the processing queue, which bounds the receive window. Only
+     * possible before the connection is set up, since the window scale is based on it.
+     * @param size
+     * @return false if the connection was set up already
+     */
+    public synchronized boolean setReceiveBufferSize(int size){
+        if((state != State.CLOSED && state != State.LISTEN) || size <= 0){
+            return false;
+        }
+        processingQueueLock.lock();
+        try {
+            processingQueue = new ByteRingBuffer(Math.min(size, MAX_BUFFER_SIZE));
+        } finally {
+            processingQueueLock.unlock();
+        }
+        return true;
+    }
+
+    public int getReceiveBufferSize(){
+        processingQueueLock.lock();
+        try {
+            return processingQueue.capacity();
+        } finally {
+            processingQueueLock.unlock();
+        }
+    }
+
+    /**
+     * Set the size of the transmission queue. Only possible while nothing is queued.
+     * @param size
+     * @return false if data is queued already
+     */
+    public boolean setSendBufferSize(int size){
+        if(size <= 0){
+            return false;
+        }
+        transmissionQueueLock.lock();
+        try {
+            if(!transmissionQueue.isEmpty()){
+                return false;
+            }
+            transmissionQueue = new ByteRingBuffer(size);
+            hasSpaceForTransmission.signalAll();
+            return true;
+        } finally {
+            transmissionQueueLock.unlock();
+        }
+    }
+
+    public int getSendBufferSize(){
+        transmissionQueueLock.lock();
+        try {
+            return transmissionQueue.capacity();
+        } finally {
+            transmissionQueueLock.unlock();
+        }
     }
 
     /**
@@ -451,18 +700,19 @@ public class TransmissionControlBlock {
     ////////////////////////
 
     /**
-     * Add data to the transmission queue.
+     * Add data to the transmission queue. This call does not block.
      * @param buf
      * @param offset
      * @param len
-     * @return number of bytes added. This is always equal to len.
+     * @return number of bytes added. This is less than len if the queue is full.
      */
     public int queueDataForTransmission(byte[] buf, int offset, int len){
-        int i;
-        for(i=0; i<len; i++){
-            transmissionQueue.add(buf[offset+i]);
+        transmissionQueueLock.lock();
+        try {
+            return transmissionQueue.write(buf, offset, len);
+        } finally {
+            transmissionQueueLock.unlock();
         }
-        return i;
     }
 
     /**
@@ -470,7 +720,59 @@ public class TransmissionControlBlock {
      * @return true if and only if there is data queued to transmit. False otherwise.
      */
     public boolean hasDataToTransmit(){
-        return transmissionQueue.size() > 0;
+        return getTransmissionQueueSize() > 0;
+    }
+
+    /**
+     * @return the number of bytes queued, but not yet sent
+     */
+    public int getTransmissionQueueSize(){
+        transmissionQueueLock.lock();
+        try {
+            return transmissionQueue.available();
+        } finally {
+            transmissionQueueLock.unlock();
+        }
+    }
+
+    /**
+     * Take at most maxlen bytes from the transmission queue to send them.
+     * @param buf
+     * @param offset
+     * @param maxlen
+     * @return the number of bytes written into buf
+     */
+    public int getDataToTransmit(byte[] buf, int offset, int maxlen){
+        transmissionQueueLock.lock();
+        try {
+            int len = transmissionQueue.read(buf, offset, maxlen);
+            if(len > 0){
+                hasSpaceForTransmission.signalAll();
+            }
+            return len;
+        } finally {
+            transmissionQueueLock.unlock();
+        }
+    }
+
+    /**
+     * Block until there is space in the transmission queue.
+     * @return false if the connection was closed while waiting
+     */
+    public boolean waitForTransmissionSpace(){
+        transmissionQueueLock.lock();
+        try {
+            while(transmissionQueue.free() == 0 && state != State.CLOSED){
+                try {
+                    hasSpaceForTransmission.await();
+                } catch (InterruptedException e) {
+                    // ignore, wait again
+                }
+            }
+            return transmissionQueue.free() > 0;
+        } finally {
+            transmissionQueueLock.unlock();
+        }
     }
 
     /**
@@ -478,23 +780,149 @@ public class TransmissionControlBlock {
      * @param buf
      * @param offset
      * @param len
-     * @return number of bytes added to the queue. This is always equal to len
+     * @return number of bytes added to the queue. This is less than len if the
+     * receive window was smaller than len.
      */
     public int queueDataForProcessing(byte[] buf, int offset, int len){
-        int i;
-        for(i=0; i<len; i++){
-            processingQueue.add(buf[offset+i]);
+        processingQueueLock.lock();
+        try {
+            int written = processingQueue.write(buf, offset, len);
+
+            // notify threads waiting for data to process
+            if(written > 0){
+                hasDataForProcessing.signalAll();
+            }
+            return written;
+        } finally {
+            processingQueueLock.unlock();
+        }
+    }
+
+    /**
+     * Keep data that arrived out of order until the data in front of it arrives.
+     * @param seq sequence number of the first byte, after RCV.NXT
+     * @param buf
+     * @param offset
+     * @param len number of bytes, which should fit in the receive window
+     */
+    public void queueOutOfOrderData(long seq, byte[] buf, int offset, int len){
+        reassemblyQueue.add(rcv_nxt, seq, buf, offset, len);
+    }
+
+    /**
+     * Move data that arrived out of order and now follows RCV.NXT to the processing
+     * queue, and advance RCV.NXT past it.
+     * @return the number of bytes delivered
+     */
+    public int deliverReassembledData(){
+        if(reassemblyQueue.isEmpty()){
+            return 0;
         }
 
-        // notify threads waiting for data to process
         processingQueueLock.lock();
         try {
-            hasDataForProcessing.signalAll();
+            int delivered = reassemblyQueue.deliver(rcv_nxt, processingQueue);
+            if(delivered > 0){
+                advanceReceiveNext(delivered);
+                hasDataForProcessing.signalAll();
+            }
+            return delivered;
         } finally {
             processingQueueLock.unlock();
         }
+    }
+
+    /**
+     * @return true if data that arrived out of order is waiting for the data in front of it
+     */
+    public boolean hasOutOfOrderData(){
+        return !reassemblyQueue.isEmpty();
+    }
+
+    /**
+     * Describe the data that arrived out of order as SACK blocks.
+     * @param blocks receives the left and right edge of each block
+     * @param max maximum number of blocks
+     * @return the number of blocks
+     */
+    public int getSackBlocks(long[] blocks, int max){
+        return reassemblyQueue.getSackBlocks(blocks, max);
+    }
+
+    /**
+     * @param sackPermitted true to offer selective acknowledgements when the connection is set up
+     */
+    public void setSackPermitted(boolean sackPermitted){
+        this.sackPermitted = sackPermitted;
+    }
+
+    public boolean isSackPermitted(){
+        return sackPermitted;
+    }
+
+    /**
+     * @param sackEnabled true if both sides allow selective acknowledgements
+     */
+    public void setSackEnabled(boolean sackEnabled){
+        this.sackEnabled = sackEnabled;
+    }
+
+    public boolean isSackEnabled(){
+        return sackEnabled;
+    }
+
+    /**
+     * @param windowScalePermitted true to offer window scaling when the connection is set up
+     */
+    public void setWindowScalePermitted(boolean windowScalePermitted){
+        this.windowScalePermitted = windowScalePermitted;
+    }
+
+    public boolean isWindowScalePermitted(){
+        return windowScalePermitted;
+    }
+
+    public boolean isWindowScaleEnabled(){
+        return windowScaleEnabled;
+    }
+
+    /**
+     * @return the smallest shift that lets the whole receive buffer be announced
+     */
+    public int getWantedReceiveWindowShift(){
+        int shift = 0;
+        while(shift < MAX_WINDOW_SHIFT && (getReceiveBufferSize() >> shift) > MAX_WINDOW_FIELD){
+            shift++;
+        }
+        return shift;
+    }
 
-        return i;
+    /**
+     * Called with the window scale option of the SYN from the other side. Windows are
+     * only scaled if both SYNs carry the option.
+     * @param shift the shift the other side asked for, or -1 if its SYN had no window scale option
+     */
+    public void onWindowScaleOption(int shift){
+        if(windowScalePermitted && shift >= 0){
+            if(shift > MAX_WINDOW_SHIFT){
+                Log.w(TAG, "Window scale {} too large, using {}", shift, MAX_WINDOW_SHIFT);
+            }
+            windowScaleEnabled = true;
+            snd_wscale = Math.min(shift, MAX_WINDOW_SHIFT);
+            rcv_wscale = getWantedReceiveWindowShift();
+        } else {
+            windowScaleEnabled = false;
+            snd_wscale = 0;
+            rcv_wscale = 0;
+        }
+    }
+
+    public int getSendWindowShift(){
+        return snd_wscale;
+    }
+
+    public int getReceiveWindowShift(){
+        return rcv_wscale;
     }
 
     /**
@@ -504,7 +932,7 @@ public class TransmissionControlBlock {
     public boolean hasDataToProcess(){
         processingQueueLock.lock();
         try {
-            return processingQueue.size() > 0;
+            return !processingQueue.isEmpty();
         } finally {
             processingQueueLock.unlock();
         }
@@ -514,16 +942,23 @@ public class TransmissionControlBlock {
      * Block until there is data to process
      */
     public void waitForDataToProcess(){
+        long waitStart = 0;
         processingQueueLock.lock();
 
         try {
-            while(!hasDataToProcess()){
+            while(!hasDataToProcess() && !processingStopped){
+                if(waitStart == 0){
+                    waitStart = System.nanoTime();
+                }
                 try {
                     hasDataForProcessing.await();
                 } catch (InterruptedException e) {
                     // ignore, wait again
                 }
             }
+            if(waitStart != 0){
+                metrics.readWait.record(System.nanoTime() - waitStart);
+            }
         } finally {
             processingQueueLock.unlock();
         }
@@ -535,6 +970,7 @@ public class TransmissionControlBlock {
     public void stopWaitingForDataToProcess(){
         processingQueueLock.lock();
         try {
+            processingStopped = true;
             hasDataForProcessing.signalAll();
         } finally {
             processingQueueLock.unlock();
@@ -549,11 +985,12 @@ public class TransmissionControlBlock {
      * @return the number of bytes written to buf
      */
     public int getDataToProcess(byte[] buf, int offset, int maxlen){
-        int len = Math.min(maxlen, processingQueue.size());
-        for(int i=0; i<len; i++){
-            buf[offset+i] = processingQueue.remove();
+        processingQueueLock.lock();
+        try {
+            return processingQueue.read(buf, offset, maxlen);
+        } finally {
+            processingQueueLock.unlock();
         }
-        return len;
     }
 
 
@@ -566,125 +1003,395 @@ public class TransmissionControlBlock {
      * be called when entering the TIME_WAIT state.
      */
     public void clearRetransmissionQueue(){
-        retransmissionMap.clear();
+        for(RetransmissionSegment segment : retransmissionQueue.clear()){
+            segment.cancelTimer();
+            segment.release();
+        }
+        stopUserTimer();
     }
 
     /**
-     * Add a segment to the retransmission queue and start a timer to check if the ACK
-     * timed out.
+     * Add a segment to the end of the retransmission queue and start a timer to check
+     * if the ACK timed out.
      *
      * @param retransmissionSegment
      */
-    public void addToRetransmissionQueue(final RetransmissionSegment retransmissionSegment){
+    public void addToRetransmissionQueue(RetransmissionSegment retransmissionSegment){
         // only segments with length > 0 (so either contains data, SYN of FIN) needs to be retransmitted
         if(retransmissionSegment.getSegment().getLen() > 0){
-            ScheduledFuture task = executor.schedule(new Runnable() {
-                @Override
-                public void run() {
-                    timeoutHandler.onRetransmissionTimeout(retransmissionSegment);
-                }
-            }, RETRANSMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            retransmissionQueue.add(retransmissionSegment);
+            startRetransmissionTimer(retransmissionSegment);
 
-            retransmissionMap.put(retransmissionSegment, task);
+            if(userTimer == null){
+                startUserTimer();
+            }
         }
     }
 
     /**
-     * Remove all segments from the retransmission queue which have been ACKed by ack
-     * @param ack
+     * (Re)start the retransmission timer of a segment in the retransmission queue,
+     * using the current RTO.
+     *
+     * @param retransmissionSegment
      */
-    public void removeFromRetransmissionQueue(long ack){
-        int numRemoves = 0;
-        for(RetransmissionSegment segment : retransmissionMap.keySet()){
-            if(SegmentUtil.isAcked(segment.getSegment(), ack)){
-                retransmissionMap.remove(segment).cancel(true);
-                Log.v(TAG, "Removed segment " + segment.getSegment().getSeq() + " from retransmission queue");
-                numRemoves++;
+    public void startRetransmissionTimer(final RetransmissionSegment retransmissionSegment){
+        TimerWheel.Timer timer = timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timeoutHandler.onRetransmissionTimeout(retransmissionSegment);
             }
-        }
+        }, rttEstimator.getRto());
 
-        // if segments have been removed (because they where ACKed) signal waiting threads
-        if(numRemoves > 0){
-            retransmissionLock.lock();
-            try {
-                retransmissionQueueChanged.signalAll();
-            } finally {
-                retransmissionLock.unlock();
-            }
+        retransmissionSegment.setTimer(timer);
+    }
 
-            allAckedLock.lock();
-            try {
-                allSegmentsAcked.signalAll();
-            } finally {
-                allAckedLock.unlock();
-            }
+    /**
+     * Mark the segments in the retransmission queue that the receiver reported in a SACK block.
+     * @param left first sequence number of the block
+     * @param right sequence number following the block
+     */
+    public void onSackBlock(long left, long right){
+        // ignore blocks that are not between SND.UNA and SND.NXT
+        if(SegmentUtil.inWindow(snd_una, left, snd_nxt) && SegmentUtil.inWindow(snd_una, right, snd_nxt + 1)){
+            retransmissionQueue.markSacked(left, right);
         }
+    }
+
+    /**
+     * Count a retransmission that was left out because the receiver has the segment.
+     */
+    public void onRetransmissionSkipped(){
+        metrics.skippedRetransmissions.increment();
+    }
 
+    /**
+     * @return the number of retransmissions left out because the segment was SACKed
+     */
+    public long getSkippedRetransmissions(){
+        return metrics.skippedRetransmissions.get();
     }
 
     /**
-     * Remove a specific segment from the retransmission queue
-     * @param retransmissionSegment
-     * @return true if and only if the segment existed (and was removed)
+     * Remove all segments from the retransmission queue which have been ACKed by ack
+     * @param ack
      */
-    public boolean removeFromRetransmissionQueue(RetransmissionSegment retransmissionSegment) {
-        ScheduledFuture scheduledFuture = retransmissionMap.remove(retransmissionSegment);
+    public void removeFromRetransmissionQueue(long ack){
+        ArrayList<RetransmissionSegment> removed = ackedSegments;
+        int count = retransmissionQueue.removeAcked(ack, removed);
+        if(count == 0){
+            return;
+        }
 
-        if(scheduledFuture != null){
-            // Cancel scheduled task (the call to retransmit)
-            scheduledFuture.cancel(true);
+        long latestSendTime = -1;
+        for(int i = 0; i < count; i++){
+            RetransmissionSegment segment = removed.get(i);
+            segment.cancelTimer();
+            segment.release();
 
-            // if segments have been removed (because they where ACKed) signal waiting threads
-            retransmissionLock.lock();
-            try {
-                retransmissionQueueChanged.signalAll();
-            } finally {
-                retransmissionLock.unlock();
+            // Karn's algorithm: never measure the RTT of retransmitted segments
+            if(segment.isRttSample() && segment.getSendTime() > latestSendTime){
+                latestSendTime = segment.getSendTime();
             }
+        }
+        if(Log.V && Log.isLoggable(TAG, Log.VERBOSE)){
+            Log.v(TAG, "Removed " + count + " segment(s) from retransmission queue, up to " + ack);
+        }
+        removed.clear();
 
-            allAckedLock.lock();
-            try {
-                allSegmentsAcked.signalAll();
-            } finally {
-                allAckedLock.unlock();
-            }
+        // take one RTT sample per ACK, from the most recently sent segment it covers
+        if(latestSendTime != -1){
+            long rtt = System.nanoTime() - latestSendTime;
+            rttEstimator.addSample(rtt);
+            metrics.rtt.record(rtt);
+        }
 
-            return true;
+        // the connection made progress, so restart the user timeout
+        if(retransmissionQueue.isEmpty()){
+            stopUserTimer();
+        } else {
+            startUserTimer();
         }
 
-        return false;
+        // segments have been removed (because they where ACKed), signal waiting threads
+        signalRetransmissionQueueChanged();
     }
 
-    public boolean hasDataToRetransmit(){
+    /**
+     * @param retransmissionSegment
+     * @return true if and only if the segment is still waiting for an ACK
+     */
+    public boolean isInRetransmissionQueue(RetransmissionSegment retransmissionSegment){
+        return retransmissionSegment.isQueued();
+    }
+
+    /**
+     * Wake up threads waiting for ACKs or for the retransmission queue to become empty
+     */
+    private void signalRetransmissionQueueChanged(){
         retransmissionLock.lock();
         try {
-            return retransmissionMap.size() > 0;
+            retransmissionQueueChanged.signalAll();
         } finally {
             retransmissionLock.unlock();
         }
+
+        allAckedLock.lock();
+        try {
+            allSegmentsAcked.signalAll();
+        } finally {
+            allAckedLock.unlock();
+        }
+    }
+
+    public boolean hasDataToRetransmit(){
+        return !retransmissionQueue.isEmpty();
     }
 
     public ArrayList<Segment> getUnacknowledgedSegments(){
         ArrayList<Segment> segments = new ArrayList<Segment>();
-        for(RetransmissionSegment segment : retransmissionMap.keySet()){
+        for(RetransmissionSegment segment : retransmissionQueue.toList()){
             segments.add(segment.getSegment());
         }
         return segments;
     }
 
-    public void startTimeWaitTimer(){
-        if(timeWaitScheduledFuture != null){
-            Log.v(TAG, "Restarting TIME WAIT timer ("+ TIME_WAIT_TIMEOUT_SEC+" sec)");
-            timeWaitScheduledFuture.cancel(true);
+    /**
+     * Called when a retransmission timer expires for the given segment.
+     * The RTO is doubled once per timeout of the oldest outstanding segment.
+     * @param retransmissionSegment
+     */
+    public void onRetransmissionTimeout(RetransmissionSegment retransmissionSegment){
+        if(retransmissionSegment.getSegment().getSeq() == getSendUnacknowledged()){
+            metrics.retransmissionTimeouts.increment();
+            rttEstimator.backoff();
+            if(Log.V && Log.isLoggable(TAG, Log.VERBOSE)){
+                Log.v(TAG, "Retransmission timeout, RTO backed off to " + rttEstimator.getRto() + " ms");
+            }
+
+            // only the first timeout of a segment reduces ssthresh, later ones would halve
+            // the already collapsed window (RFC 5681 section 3.1)
+            if(retransmissionSegment.getRetry() == 0){
+                congestionControl.onRetransmissionTimeout(getBytesInFlight());
+                Log.v(TAG, "Retransmission timeout, {}", congestionControl);
+            }
+
+            // the timeout takes over from fast recovery. Duplicate ACKs for data sent before
+            // now are caused by the timeout, so they must not start another recovery
+            inRecovery = false;
+            dupAcks = 0;
+            recover = snd_nxt;
+        }
+    }
+
+    /**
+     * Count a duplicate ACK for SND.UNA.
+     * @return the number of duplicate ACKs in a row
+     */
+    public int onDuplicateAck(){
+        return ++dupAcks;
+    }
+
+    /**
+     * Called when an ACK acknowledges new data, which ends a run of duplicate ACKs.
+     */
+    public void resetDuplicateAcks(){
+        dupAcks = 0;
+    }
+
+    /**
+     * Fast recovery may only start once everything that was outstanding when the
+     * previous recovery or timeout happened has been acknowledged (RFC 6582 section 4.1).
+     * @return true if SND.UNA is beyond the recovery point
+     */
+    public boolean canEnterRecovery(){
+        return !SegmentUtil.inWindow(snd_una, recover, snd_nxt + 1);
+    }
+
+    public void enterRecovery(){
+        congestionControl.onEnterRecovery(getBytesInFlight());
+        inRecovery = true;
+        recover = snd_nxt;
+        highRetransmitted = snd_una;
+        if(Log.V && Log.isLoggable(TAG, Log.VERBOSE)){
+            Log.v(TAG, "Fast recovery until " + recover + ", " + congestionControl);
+        }
+    }
+
+    public void exitRecovery(){
+        inRecovery = false;
+        congestionControl.onExitRecovery(getBytesInFlight());
+        Log.v(TAG, "Fast recovery done, {}", congestionControl);
+    }
+
+    public boolean isInRecovery(){
+        return inRecovery;
+    }
+
+    /**
+     * @param ack
+     * @return true if the ACK does not cover all data that was outstanding when fast recovery started
+     */
+    public boolean isPartialAck(long ack){
+        return SegmentUtil.inWindow(ack + 1, recover, snd_nxt + 1);
+    }
+
+    /**
+     * @return the oldest unacknowledged segment, or null if everything was acknowledged
+     */
+    public RetransmissionSegment getFirstUnacknowledged(){
+        return retransmissionQueue.peekFirst();
+    }
+
+    /**
+     * @return the next segment after the ones retransmitted during this recovery that the
+     * receiver reported missing, or null if there is none
+     */
+    public RetransmissionSegment getNextHole(){
+        return retransmissionQueue.nextHole(highRetransmitted);
+    }
+
+    /**
+     * @param retransmissionSegment
+     * @return true if the segment was resent as a hole during this recovery already
+     */
+    public boolean isRetransmittedInRecovery(RetransmissionSegment retransmissionSegment){
+        return retransmissionSegment != null
+                && !SegmentUtil.inWindow(highRetransmitted, retransmissionSegment.getSegment().getSeq(), snd_nxt);
+    }
+
+    /**
+     * Record a retransmission that was triggered by duplicate or partial ACKs.
+     * @param retransmissionSegment
+     */
+    public void onFastRetransmit(RetransmissionSegment retransmissionSegment){
+        long end = (retransmissionSegment.getSegment().getLastSeq() + 1) % Integer.MAX_VALUE;
+        if(SegmentUtil.inWindow(highRetransmitted + 1, end, snd_nxt + 1)){
+            highRetransmitted = end;
+        }
+        metrics.fastRetransmits.increment();
+    }
+
+    /**
+     * @return the number of segments retransmitted without waiting for their timer
+     */
+    public long getFastRetransmits(){
+        return metrics.fastRetransmits.get();
+    }
+
+    /**
+     * Replace the congestion control algorithm. The new algorithm starts from the
+     * initial window, so this is best done before the connection is set up.
+     * @param congestionControl
+     */
+    public void setCongestionControl(CongestionControl congestionControl){
+        congestionControl.init(SegmentSender.MAX_DATA_SIZE);
+        this.congestionControl = congestionControl;
+    }
+
+    public CongestionControl getCongestionControl(){
+        return congestionControl;
+    }
+
+    /**
+     * Tell the congestion control about an ACK for new data. Outside of fast recovery
+     * this opens the congestion window.
+     * @param acked the number of newly acknowledged sequence numbers
+     * @param partial true if the ACK is a partial ACK during fast recovery
+     */
+    public void onNewDataAcked(int acked, boolean partial){
+        if(partial){
+            congestionControl.onPartialAck(acked);
+        } else if(!inRecovery){
+            double srtt = rttEstimator.getSmoothedRtt();
+            congestionControl.onAck(acked, (srtt < 0) ? 0 : (long) (srtt * 1000 * 1000));
+        }
+    }
+
+    /**
+     * @return the congestion window in bytes
+     */
+    public int getCongestionWindow(){
+        return congestionControl.getCongestionWindow();
+    }
+
+    /**
+     * @return the slow start threshold in bytes
+     */
+    public int getSlowStartThreshold(){
+        return congestionControl.getSlowStartThreshold();
+    }
+
+    /**
+     * @return the current retransmission timeout in milliseconds
+     */
+    public long getRetransmissionTimeout(){
+        return rttEstimator.getRto();
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, or -1 if no RTT was measured yet
+     */
+    public double getSmoothedRtt(){
+        return rttEstimator.getSmoothedRtt();
+    }
+
+    /**
+     * @return the counters of this connection, to add to
+     */
+    public ConnectionMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * @return the counters of this connection, together with its current windows
+     */
+    public synchronized ConnectionMetrics.Snapshot getMetricsSnapshot(){
+        ConnectionMetrics.Snapshot snapshot = metrics.snapshot();
+        snapshot.sendWindow = snd_wnd;
+        snapshot.receiveWindow = getReceiveWindow();
+        snapshot.congestionWindow = getCongestionWindow();
+        snapshot.slowStartThreshold = getSlowStartThreshold();
+        snapshot.bytesInFlight = getBytesInFlight();
+        snapshot.retransmissionTimeout = getRetransmissionTimeout();
+        return snapshot;
+    }
+
+    public synchronized void startTimeWaitTimer(){
+        if(timeWaitTimer != null){
+            Log.v(TAG, "Restarting TIME WAIT timer ({} sec)", TIME_WAIT_TIMEOUT_SEC);
+            timeWaitTimer.cancel();
         } else {
-            Log.v(TAG, "Starting TIME WAIT timer ("+ TIME_WAIT_TIMEOUT_SEC+" sec)");
+            Log.v(TAG, "Starting TIME WAIT timer ({} sec)", TIME_WAIT_TIMEOUT_SEC);
         }
 
-        timeWaitScheduledFuture = executor.schedule(new Runnable() {
+        timeWaitTimer = timerWheel.schedule(new Runnable() {
             @Override
             public void run() {
                 timeoutHandler.onTimeWaitTimeout();
             }
-        }, TIME_WAIT_TIMEOUT_SEC, TimeUnit.SECONDS);
+        }, TIME_WAIT_TIMEOUT_SEC * 1000L);
+    }
+
+    /**
+     * (Re)start the user timeout. If it expires before the timer is stopped or restarted,
+     * the connection is aborted.
+     */
+    private synchronized void startUserTimer(){
+        stopUserTimer();
+
+        userTimer = timerWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "User timeout: data was not acknowledged within {} sec", USER_TIMEOUT_SEC);
+                timeoutHandler.onUserTimeout();
+            }
+        }, USER_TIMEOUT_SEC * 1000L);
+    }
+
+    private synchronized void stopUserTimer(){
+        if(userTimer != null){
+            userTimer.cancel();
+            userTimer = null;
+        }
     }
-}
\ No newline at end of file
+}
@@ -31,6 +31,7 @@ public class TCPManager {
 
     private TCP tcp;
     private TCP.Socket socket;
+    private TCP.Socket serverSocket;    // listening socket, only used by the server
     private final TCPListener listener;
     private final boolean isServer;
 
@@ -45,7 +46,7 @@ public class TCPManager {
         try {
             tcp = new TCP(isServer ? SERVER_ADDR_LAST_OCTET : CLIENT_ADDR_LAST_OCTET);
             if(isServer){
-                socket = tcp.socket(SERVER_PORT);
+                serverSocket = tcp.socket(SERVER_PORT);
             } else {
                 socket = tcp.socket();
             }
@@ -92,11 +93,11 @@ public class TCPManager {
         @Override
         protected Boolean doInBackground(Void... voids) {
             if(isServer){
-                socket.accept();
+                socket = serverSocket.accept();
+                return socket != null;
             } else {
                 return socket.connect(SERVER_IP_ADDR, SERVER_PORT);
             }
-            return true;
         }
 
         @Override
@@ -222,7 +223,11 @@ public class TCPManager {
 
         @Override
         protected Boolean doInBackground(Void... voids) {
-            return socket.close();
+            boolean closed = socket.close();
+            if(serverSocket != null){
+                serverSocket.close();
+            }
+            return closed;
         }
 
         @Override
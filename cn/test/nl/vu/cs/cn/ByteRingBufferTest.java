@@ -0,0 +1,93 @@
+package nl.vu.cs.cn.tcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ByteRingBufferTest {
+
+    @Test
+    public void writeAndReadAcrossTheEnd() {
+        ByteRingBuffer buffer = new ByteRingBuffer(8);
+        byte[] out = new byte[8];
+
+        // move the head to the middle, so the next write wraps around
+        assertEquals(6, buffer.write(bytes(0, 6), 0, 6));
+        assertEquals(5, buffer.read(out, 0, 5));
+
+        assertEquals(7, buffer.write(bytes(6, 7), 0, 7));
+        assertEquals(8, buffer.available());
+        assertEquals(0, buffer.free());
+
+        assertEquals(8, buffer.read(out, 0, 8));
+        assertArrayEquals(bytes(5, 8), out);
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void writeStopsWhenFull() {
+        ByteRingBuffer buffer = new ByteRingBuffer(8);
+        buffer.write(bytes(0, 3), 0, 3);
+        buffer.skip(3);
+
+        assertEquals(8, buffer.write(bytes(0, 10), 0, 10));
+        assertEquals(0, buffer.write(bytes(0, 1), 0, 1));
+
+        byte[] out = new byte[8];
+        assertEquals(8, buffer.read(out, 0, 10));
+        assertArrayEquals(bytes(0, 8), out);
+    }
+
+    @Test
+    public void peekAndSkipAcrossTheEnd() {
+        ByteRingBuffer buffer = new ByteRingBuffer(8);
+        buffer.write(bytes(0, 7), 0, 7);
+        buffer.skip(6);
+        buffer.write(bytes(7, 5), 0, 5);
+
+        byte[] out = new byte[6];
+        assertEquals(6, buffer.peek(out, 0, 6));
+        assertArrayEquals(bytes(6, 6), out);
+        assertEquals(6, buffer.available());
+
+        assertEquals(3, buffer.skip(3));
+        assertEquals(3, buffer.peek(out, 2, 6));
+        assertArrayEquals(bytes(9, 3), Arrays.copyOfRange(out, 2, 5));
+        assertEquals(3, buffer.skip(10));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void randomWritesAndReads() {
+        Random random = new Random(7);
+        ByteRingBuffer buffer = new ByteRingBuffer(1000);
+        byte[] data = new byte[1 << 20];
+        random.nextBytes(data);
+        byte[] out = new byte[data.length];
+
+        int written = 0;
+        int read = 0;
+        while (read < data.length) {
+            written += buffer.write(data, written, Math.min(random.nextInt(1500), data.length - written));
+            read += buffer.read(out, read, random.nextInt(1500));
+            assertEquals(written - read, buffer.available());
+        }
+        assertArrayEquals(data, out);
+    }
+
+    /**
+     * @return len bytes counting up from first
+     */
+    private static byte[] bytes(int first, int len) {
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+}
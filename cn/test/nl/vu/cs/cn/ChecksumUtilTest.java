@@ -0,0 +1,207 @@
+package nl.vu.cs.cn.tcp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import nl.vu.cs.cn.IP;
+
+import org.junit.Test;
+
+/**
+ * Compares ChecksumUtil with a straightforward one's complement sum, computed one
+ * 16 bit word at a time with the carry added back after every word.
+ */
+public class ChecksumUtilTest {
+
+    private static final int SOURCE = IP.IpAddress.getAddress("192.168.0.1").getAddress();
+    private static final int DESTINATION = IP.IpAddress.getAddress("10.0.255.254").getAddress();
+
+    private static final int SEQ_OFFSET = 4;
+    private static final int ACK_OFFSET = 8;
+    private static final int WINDOW_OFFSET = 14;
+    private static final int CHECKSUM_OFFSET = 16;
+
+    private final Random random = new Random(1071);
+
+    @Test
+    public void randomSegments() {
+        for (int len = 0; len < 200; len++) {
+            byte[] buf = segment(len);
+            assertChecksum(buf, 0, len);
+        }
+        for (int i = 0; i < 200; i++) {
+            byte[] buf = segment(random.nextInt(9000));
+            assertChecksum(buf, 0, buf.length);
+        }
+    }
+
+    @Test
+    public void oddLengthsAndOffsets() {
+        byte[] buf = segment(1500);
+        for (int offset = 0; offset < 8; offset++) {
+            for (int len = 1; len < 64; len += 2) {
+                assertChecksum(buf, offset, len);
+            }
+        }
+        // the odd byte is padded with a zero, not taken as the low byte of a word
+        byte[] one = {(byte) 0xab};
+        assertEquals(reference(one, 0, 1, SOURCE, DESTINATION),
+                ChecksumUtil.calculateChecksum(one, 0, 1, SOURCE, DESTINATION));
+    }
+
+    @Test
+    public void allOnesData() {
+        for (int len = 20; len < 40; len++) {
+            byte[] buf = new byte[len];
+            Arrays.fill(buf, (byte) 0xff);
+            buf[CHECKSUM_OFFSET] = 0;
+            buf[CHECKSUM_OFFSET + 1] = 0;
+            assertChecksum(buf, 0, len);
+        }
+    }
+
+    @Test
+    public void sumOfAllOnesGivesZeroChecksum() {
+        for (int i = 0; i < 100; i++) {
+            byte[] buf = segment(20 + random.nextInt(100));
+
+            // choose the window so that the one's complement sum becomes 0xFFFF
+            put16(buf, WINDOW_OFFSET, 0);
+            int sum = ~reference(buf, 0, buf.length, SOURCE, DESTINATION) & 0xffff;
+            put16(buf, WINDOW_OFFSET, 0xffff - sum);
+
+            assertEquals(0, reference(buf, 0, buf.length, SOURCE, DESTINATION));
+            assertEquals(0, ChecksumUtil.calculateChecksum(buf, 0, buf.length, SOURCE, DESTINATION));
+        }
+    }
+
+    @Test
+    public void segmentWithChecksumInPlaceSumsToZero() {
+        for (int i = 0; i < 100; i++) {
+            byte[] buf = segment(20 + random.nextInt(1500));
+            put16(buf, CHECKSUM_OFFSET, ChecksumUtil.calculateChecksum(buf, 0, buf.length, SOURCE, DESTINATION));
+            assertEquals(0, ChecksumUtil.calculateChecksum(buf, 0, buf.length, SOURCE, DESTINATION));
+        }
+    }
+
+    @Test
+    public void incrementalUpdateOf32BitFields() {
+        int[][] changes = {
+                {0xffffffff, 0x00000000},
+                {0x00000000, 0xffffffff},
+                {0x0000ffff, 0x00010000},
+                {0x7ffffffe, 0x00000001},      // sequence numbers wrap at Integer.MAX_VALUE
+                {0x12345678, 0x12345678},
+        };
+        for (int[] change : changes) {
+            assertUpdate32(segment(20 + random.nextInt(100)), ACK_OFFSET, change[0], change[1]);
+            assertUpdate32(segment(21 + random.nextInt(100)), SEQ_OFFSET, change[0], change[1]);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertUpdate32(segment(20 + random.nextInt(100)), ACK_OFFSET, random.nextInt(), random.nextInt());
+        }
+    }
+
+    @Test
+    public void incrementalUpdateOf16BitFields() {
+        int[][] changes = {{0xffff, 0x0000}, {0x0000, 0xffff}, {0x8000, 0x7fff}, {0xabcd, 0xabcd}};
+        for (int[] change : changes) {
+            assertUpdate16(segment(20 + random.nextInt(100)), change[0], change[1]);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertUpdate16(segment(20 + random.nextInt(100)), random.nextInt(0x10000), random.nextInt(0x10000));
+        }
+    }
+
+    @Test
+    public void incrementalUpdateToZeroChecksum() {
+        // RFC 1624: the update must give 0x0000, not 0xFFFF, when the new sum is all ones
+        for (int i = 0; i < 100; i++) {
+            byte[] buf = segment(20 + random.nextInt(100));
+            int oldWindow = get16(buf, WINDOW_OFFSET);
+            short checksum = ChecksumUtil.calculateChecksum(buf, 0, buf.length, SOURCE, DESTINATION);
+
+            put16(buf, WINDOW_OFFSET, 0);
+            int sum = ~reference(buf, 0, buf.length, SOURCE, DESTINATION) & 0xffff;
+            int newWindow = 0xffff - sum;
+            put16(buf, WINDOW_OFFSET, newWindow);
+
+            assertEquals(0, ChecksumUtil.updateChecksum(checksum, (short) oldWindow, (short) newWindow));
+        }
+    }
+
+    private void assertUpdate32(byte[] buf, int fieldOffset, int oldValue, int newValue) {
+        put32(buf, fieldOffset, oldValue);
+        short checksum = ChecksumUtil.calculateChecksum(buf, 0, buf.length, SOURCE, DESTINATION);
+        put32(buf, fieldOffset, newValue);
+
+        assertEquals(reference(buf, 0, buf.length, SOURCE, DESTINATION),
+                ChecksumUtil.updateChecksum(checksum, oldValue, newValue));
+    }
+
+    private void assertUpdate16(byte[] buf, int oldValue, int newValue) {
+        put16(buf, WINDOW_OFFSET, oldValue);
+        short checksum = ChecksumUtil.calculateChecksum(buf, 0, buf.length, SOURCE, DESTINATION);
+        put16(buf, WINDOW_OFFSET, newValue);
+
+        assertEquals(reference(buf, 0, buf.length, SOURCE, DESTINATION),
+                ChecksumUtil.updateChecksum(checksum, (short) oldValue, (short) newValue));
+    }
+
+    private static void assertChecksum(byte[] buf, int offset, int len) {
+        assertEquals("length " + len + " at " + offset, reference(buf, offset, len, SOURCE, DESTINATION),
+                ChecksumUtil.calculateChecksum(buf, offset, len, SOURCE, DESTINATION));
+    }
+
+    /**
+     * @return random bytes with a zero checksum field, if the segment is long enough to have one
+     */
+    private byte[] segment(int len) {
+        byte[] buf = new byte[len];
+        random.nextBytes(buf);
+        if (len >= CHECKSUM_OFFSET + 2) {
+            put16(buf, CHECKSUM_OFFSET, 0);
+        }
+        return buf;
+    }
+
+    private static short reference(byte[] buf, int offset, int len, int sourceAddr, int destinationAddr) {
+        int sum = 0;
+
+        // pseudo header, the first octet of an address is in its lowest byte
+        sum = add(sum, ((sourceAddr & 0xff) << 8) | ((sourceAddr >>> 8) & 0xff));
+        sum = add(sum, (((sourceAddr >>> 16) & 0xff) << 8) | ((sourceAddr >>> 24) & 0xff));
+        sum = add(sum, ((destinationAddr & 0xff) << 8) | ((destinationAddr >>> 8) & 0xff));
+        sum = add(sum, (((destinationAddr >>> 16) & 0xff) << 8) | ((destinationAddr >>> 24) & 0xff));
+        sum = add(sum, IP.TCP_PROTOCOL);
+        sum = add(sum, len);
+
+        for (int i = 0; i < len; i += 2) {
+            int high = buf[offset + i] & 0xff;
+            int low = (i + 1 < len) ? buf[offset + i + 1] & 0xff : 0;
+            sum = add(sum, (high << 8) | low);
+        }
+        return (short) ~sum;
+    }
+
+    private static int add(int sum, int word) {
+        sum += word;
+        return (sum & 0xffff) + (sum >>> 16);
+    }
+
+    private static int get16(byte[] buf, int offset) {
+        return ((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff);
+    }
+
+    private static void put16(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 8);
+        buf[offset + 1] = (byte) value;
+    }
+
+    private static void put32(byte[] buf, int offset, int value) {
+        put16(buf, offset, value >>> 16);
+        put16(buf, offset + 2, value);
+    }
+}
@@ -0,0 +1,190 @@
+package nl.vu.cs.cn.tcp.congestion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CubicTest {
+
+    private static final int MSS = 1000;
+    private static final long SECOND = 1000L * 1000L * 1000L;
+
+    /**
+     * CUBIC on a clock that only moves when the test says so.
+     */
+    private static class TestCubic extends Cubic {
+        private long now = SECOND;
+
+        @Override
+        protected long nanoTime() {
+            return now;
+        }
+
+        void advance(double seconds) {
+            now += (long) (seconds * SECOND);
+        }
+    }
+
+    private final TestCubic cubic = new TestCubic();
+
+    @Before
+    public void setUp() {
+        cubic.init(MSS);
+    }
+
+    @Test
+    public void lossReducesByBeta() {
+        // W_max = 10 segments, ssthresh = 0.7 * cwnd, independent of the flight size
+        loss(7000);
+        assertEquals(7000, cubic.getSlowStartThreshold());
+        assertEquals(7000, cubic.getCongestionWindow());
+
+        cubic.onRetransmissionTimeout(7000);
+        assertEquals(4900, cubic.getSlowStartThreshold());
+        assertEquals(MSS, cubic.getCongestionWindow());
+    }
+
+    @Test
+    public void slowStartIsTheSameAsReno() {
+        cubic.onRetransmissionTimeout(20000);
+        cubic.onAck(500, 0);
+        cubic.onAck(3000, 0);
+        assertEquals(2500, cubic.getCongestionWindow());
+    }
+
+    @Test
+    public void windowIsBackAtWMaxAfterK() {
+        loss(7000);
+        // K = cbrt((W_max - cwnd) / C) = cbrt((10 - 7) / 0.4)
+        double k = Math.cbrt(7.5);
+
+        startEpoch();
+        cubic.advance(k);
+        ackWindow(0);
+        assertWindow(10000);
+    }
+
+    @Test
+    public void windowFollowsTheCubicFunction() {
+        loss(7000);
+        double k = Math.cbrt(7.5);
+
+        // W(K / 2) = C * (-K / 2)^3 + W_max = 10 - 0.4 * 7.5 / 8 segments
+        startEpoch();
+        cubic.advance(k / 2);
+        ackWindow(0);
+        assertWindow(9625);
+    }
+
+    @Test
+    public void windowAimsOneRttAhead() {
+        loss(7000);
+        double k = Math.cbrt(7.5);
+
+        startEpoch();
+        cubic.advance(k / 2 - 0.1);
+        ackWindow(100 * 1000 * 1000);
+        assertWindow(9625);
+    }
+
+    @Test
+    public void growthPerRttIsLimitedToHalfTheWindow() {
+        loss(7000);
+        double k = Math.cbrt(7.5);
+
+        // W(2K) = 13 segments, but at most 1.5 * 7 is allowed in one RTT
+        startEpoch();
+        cubic.advance(2 * k);
+        ackWindow(0);
+        assertWindow(10500);
+    }
+
+    @Test
+    public void fastConvergence() {
+        loss(7000);
+
+        // lost again at 7 segments, below the previous W_max of 10: W_max = 7 * (1 + 0.7) / 2
+        loss(4900);
+        double k = Math.cbrt((5.95 - 4.9) / 0.4);
+
+        startEpoch();
+        cubic.advance(k);
+        ackWindow(0);
+        assertWindow(5950);
+    }
+
+    @Test
+    public void noFastConvergenceWhenTheWindowGrew() {
+        loss(7000);
+        double k = Math.cbrt(7.5);
+        startEpoch();
+        cubic.advance(2 * k);
+        ackWindow(0);
+        assertWindow(10500);
+
+        // lost at about 10.5 segments, above the previous W_max: W_max is that window
+        int wMax = cubic.getCongestionWindow();
+        int ssthresh = (int) (wMax * 0.7);
+        loss(ssthresh);
+        k = Math.cbrt((double) (wMax - ssthresh) / MSS / 0.4);
+        startEpoch();
+        cubic.advance(k);
+        ackWindow(0);
+        assertWindow(wMax);
+    }
+
+    @Test
+    public void tcpFriendlyRegion() {
+        loss(7000);
+
+        // the clock stands still, so the cubic function stays at 7 segments and only the
+        // Reno estimate grows: by 3 * (1 - 0.7) / (1 + 0.7) segments per window
+        double alpha = 3 * (1 - 0.7) / (1 + 0.7);
+        double wEst = 7;
+        for (int window = 0; window < 20; window++) {
+            int cwnd = cubic.getCongestionWindow();
+            for (int acked = 0; acked < cwnd; acked += MSS) {
+                wEst += alpha * MSS / cubic.getCongestionWindow();
+                cubic.onAck(MSS, 0);
+            }
+        }
+        int expected = (int) (wEst * MSS);
+        assertTrue(cubic.getCongestionWindow() + " instead of about " + expected,
+                Math.abs(cubic.getCongestionWindow() - expected) <= MSS / 2);
+        assertTrue(cubic.getCongestionWindow() > 7000 + 20 * MSS / 3);
+    }
+
+    /**
+     * A loss found by duplicate ACKs, after which fast recovery ends with the flight size at
+     * the new ssthresh, so cwnd ends at ssthresh as well.
+     */
+    private void loss(int ssthresh) {
+        cubic.onEnterRecovery(cubic.getCongestionWindow());
+        assertEquals(ssthresh, cubic.getSlowStartThreshold());
+        cubic.onExitRecovery(ssthresh);
+        assertEquals(ssthresh, cubic.getCongestionWindow());
+    }
+
+    /**
+     * Start the congestion avoidance epoch with an ACK too small to grow the window.
+     */
+    private void startEpoch() {
+        int cwnd = cubic.getCongestionWindow();
+        cubic.onAck(1, 0);
+        assertEquals(cwnd, cubic.getCongestionWindow());
+    }
+
+    /**
+     * A single ACK for a whole window, which moves cwnd to the target of the cubic function.
+     */
+    private void ackWindow(long srttNanos) {
+        cubic.onAck(cubic.getCongestionWindow(), srttNanos);
+    }
+
+    private void assertWindow(int expected) {
+        int cwnd = cubic.getCongestionWindow();
+        assertTrue(cwnd + " instead of " + expected, Math.abs(cwnd - expected) <= 1);
+    }
+}
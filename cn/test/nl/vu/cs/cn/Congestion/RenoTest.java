@@ -0,0 +1,131 @@
+package nl.vu.cs.cn.tcp.congestion;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RenoTest {
+
+    private static final int MSS = 1000;
+
+    private final Reno reno = new Reno();
+
+    @Before
+    public void setUp() {
+        reno.init(MSS);
+    }
+
+    @Test
+    public void initialWindow() {
+        // min(10 * MSS, max(2 * MSS, 14600)) from RFC 6928
+        assertEquals(10 * MSS, reno.getCongestionWindow());
+        assertEquals(Integer.MAX_VALUE, reno.getSlowStartThreshold());
+
+        reno.init(1460);
+        assertEquals(14600, reno.getCongestionWindow());
+        reno.init(8000);
+        assertEquals(16000, reno.getCongestionWindow());
+    }
+
+    @Test
+    public void slowStartGrowsByAtMostOneSegmentPerAck() {
+        reno.onAck(500, 0);
+        assertEquals(10500, reno.getCongestionWindow());
+        reno.onAck(3000, 0);
+        assertEquals(11500, reno.getCongestionWindow());
+    }
+
+    @Test
+    public void slowStartUpToSsthreshThenOneSegmentPerWindow() {
+        reno.onRetransmissionTimeout(20000);
+        assertEquals(MSS, reno.getCongestionWindow());
+        assertEquals(10000, reno.getSlowStartThreshold());
+
+        ack(9, MSS);
+        assertEquals(10000, reno.getCongestionWindow());
+
+        // congestion avoidance: a whole window of 10000 bytes has to be acknowledged
+        ack(9, MSS);
+        assertEquals(10000, reno.getCongestionWindow());
+        ack(1, MSS);
+        assertEquals(11000, reno.getCongestionWindow());
+
+        // the next increase takes a window of 11000 bytes
+        ack(10, MSS);
+        assertEquals(11000, reno.getCongestionWindow());
+        ack(1, MSS);
+        assertEquals(12000, reno.getCongestionWindow());
+    }
+
+    @Test
+    public void fastRecovery() {
+        reno.onEnterRecovery(20000);
+        assertEquals(10000, reno.getSlowStartThreshold());
+        // inflated by the three segments that left the network
+        assertEquals(13000, reno.getCongestionWindow());
+
+        reno.onDuplicateAck();
+        reno.onDuplicateAck();
+        assertEquals(15000, reno.getCongestionWindow());
+
+        // NewReno partial ACK: deflate by the acknowledged data, add back the resent segment
+        reno.onPartialAck(6000);
+        assertEquals(10000, reno.getCongestionWindow());
+        reno.onPartialAck(20000);
+        assertEquals(MSS, reno.getCongestionWindow());
+    }
+
+    @Test
+    public void exitRecoveryIsClampedToSsthresh() {
+        reno.onEnterRecovery(20000);
+        reno.onExitRecovery(3000);
+        assertEquals(4000, reno.getCongestionWindow());
+
+        reno.onEnterRecovery(20000);
+        reno.onExitRecovery(30000);
+        assertEquals(10000, reno.getCongestionWindow());
+
+        reno.onEnterRecovery(20000);
+        reno.onExitRecovery(0);
+        assertEquals(2000, reno.getCongestionWindow());
+    }
+
+    @Test
+    public void congestionAvoidanceStartsOverAfterRecovery() {
+        reno.onEnterRecovery(20000);
+        reno.onExitRecovery(20000);
+        assertEquals(10000, reno.getCongestionWindow());
+
+        ack(9, MSS);
+        assertEquals(10000, reno.getCongestionWindow());
+        ack(1, MSS);
+        assertEquals(11000, reno.getCongestionWindow());
+    }
+
+    @Test
+    public void ssthreshIsAtLeastTwoSegments() {
+        reno.onEnterRecovery(MSS);
+        assertEquals(2 * MSS, reno.getSlowStartThreshold());
+        assertEquals(5 * MSS, reno.getCongestionWindow());
+
+        reno.onRetransmissionTimeout(0);
+        assertEquals(2 * MSS, reno.getSlowStartThreshold());
+        assertEquals(MSS, reno.getCongestionWindow());
+    }
+
+    @Test
+    public void windowDoesNotOverflow() {
+        reno.cwnd = Integer.MAX_VALUE - 10;
+        reno.onDuplicateAck();
+        assertEquals(Integer.MAX_VALUE, reno.getCongestionWindow());
+        reno.onAck(MSS, 0);
+        assertEquals(Integer.MAX_VALUE, reno.getCongestionWindow());
+    }
+
+    private void ack(int count, int acked) {
+        for (int i = 0; i < count; i++) {
+            reno.onAck(acked, 0);
+        }
+    }
+}
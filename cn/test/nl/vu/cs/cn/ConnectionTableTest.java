@@ -0,0 +1,250 @@
+package nl.vu.cs.cn.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import nl.vu.cs.cn.ConsoleLogAppender;
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.InMemoryNetwork;
+import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.tcp.segment.OnSegmentArriveListener;
+import nl.vu.cs.cn.tcp.segment.Segment;
+import nl.vu.cs.cn.tcp.segment.SegmentUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ConnectionTableTest {
+
+    private static final short LOCAL_PORT = 1000;
+    private static final short FOREIGN_PORT = 2000;
+    private static final int FIRST_FOREIGN_ADDR = 0x0a000001;      // 10.0.0.1
+
+    private IP ip;
+    private ConnectionTable table;
+
+    /**
+     * A connection in the table, and a peer that addresses the segments that arrive for it.
+     */
+    private class Connection implements OnSegmentArriveListener {
+        private final TransmissionControlBlock tcb;
+        private final TransmissionControlBlock peer;
+        private Segment arrived;
+
+        Connection(int foreignAddr, short localPort) {
+            IP.IpAddress foreign = IP.IpAddress.getAddress(foreignAddr);
+            tcb = new TransmissionControlBlock(ip, false);
+            tcb.setLocalSocketInfo(ip.getLocalAddress(), localPort);
+            tcb.setForeignSocketInfo(foreign, FOREIGN_PORT);
+            peer = new TransmissionControlBlock(ip, true);
+            peer.setLocalSocketInfo(foreign, FOREIGN_PORT);
+            peer.setForeignSocketInfo(ip.getLocalAddress(), localPort);
+        }
+
+        public void onSegmentArrive(Segment segment) {
+            arrived = segment;
+        }
+
+        /**
+         * Hand the table a segment from the peer.
+         * @return the connection that got it, or null
+         */
+        Connection send(List<Connection> connections) {
+            Segment segment = SegmentUtil.getPacket(peer, 1, 1);
+            table.onSegmentArrive(segment);
+
+            Connection receiver = null;
+            for (Connection connection : connections) {
+                if (connection.arrived != null) {
+                    assertSame(segment, connection.arrived);
+                    assertNull("delivered twice", receiver);
+                    receiver = connection;
+                    connection.arrived = null;
+                }
+            }
+            return receiver;
+        }
+    }
+
+    @BeforeClass
+    public static void setUpLog() {
+        Log.setAppender(new ConsoleLogAppender());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        ip = new InMemoryNetwork().createStack(1);
+        table = new ConnectionTable(ip);
+    }
+
+    @After
+    public void tearDown() {
+        ip.close();
+    }
+
+    @Test
+    public void removeFromTheMiddleOfAProbeChain() {
+        // three keys that hash to the last slot, and one for each of the two slots after the
+        // wrap, so inserted in this order they form a single chain across the end of the table
+        int mask = ConnectionTable.ConnectionMap.INITIAL_CAPACITY - 1;
+        int[] homes = {mask, mask, mask, 0, 1};
+        int[] addrs = new int[homes.length];
+        int addr = FIRST_FOREIGN_ADDR;
+        for (int i = 0; i < homes.length; i++) {
+            while (home(addr) != homes[i]) {
+                addr++;
+            }
+            addrs[i] = addr++;
+        }
+
+        // remove the connections in every order, checking the others after each removal
+        int[] order = new int[addrs.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        do {
+            List<Connection> connections = new ArrayList<Connection>();
+            for (int a : addrs) {
+                Connection connection = new Connection(a, LOCAL_PORT);
+                table.register(connection.tcb, connection);
+                connections.add(connection);
+            }
+            assertFound(connections, connections);
+
+            List<Connection> remaining = new ArrayList<Connection>(connections);
+            for (int i : order) {
+                table.unregister(connections.get(i).tcb);
+                remaining.remove(connections.get(i));
+                assertFound(connections, remaining);
+            }
+            assertEquals(0, table.size());
+        } while (nextPermutation(order));
+    }
+
+    @Test
+    public void randomRegisterAndUnregister() {
+        Random random = new Random(17);
+        List<Connection> connections = new ArrayList<Connection>();
+        for (int i = 0; i < 200; i++) {
+            // several local ports per foreign address, so keys share their upper half
+            connections.add(new Connection(FIRST_FOREIGN_ADDR + i / 4, (short) (LOCAL_PORT + i % 4)));
+        }
+
+        List<Connection> registered = new ArrayList<Connection>();
+        for (int step = 0; step < 2000; step++) {
+            Connection connection = connections.get(random.nextInt(connections.size()));
+            // mostly register at first, so the table grows, and mostly unregister later on
+            boolean register = random.nextInt(2000) >= step;
+            if (register && !registered.contains(connection)) {
+                table.register(connection.tcb, connection);
+                registered.add(connection);
+            } else if (!register && registered.contains(connection)) {
+                table.unregister(connection.tcb);
+                registered.remove(connection);
+            }
+            assertEquals(registered.size(), table.size());
+
+            if (step % 50 == 0) {
+                assertFound(connections, registered);
+            }
+        }
+        assertFound(connections, registered);
+    }
+
+    @Test
+    public void listenerGetsSegmentsWithoutConnection() {
+        Connection listening = new Connection(FIRST_FOREIGN_ADDR, LOCAL_PORT);
+        Connection connected = new Connection(FIRST_FOREIGN_ADDR + 1, LOCAL_PORT);
+        Connection other = new Connection(FIRST_FOREIGN_ADDR + 2, LOCAL_PORT);
+        Connection otherPort = new Connection(FIRST_FOREIGN_ADDR + 2, (short) (LOCAL_PORT + 1));
+        List<Connection> all = new ArrayList<Connection>();
+        all.add(listening);
+        all.add(connected);
+
+        assertTrue(table.listen(listening.tcb, listening));
+        assertFalse(table.listen(other.tcb, other));
+        table.register(connected.tcb, connected);
+        assertEquals(2, table.size());
+
+        assertSame(connected, connected.send(all));
+        assertSame(listening, other.send(all));
+        assertSame(listening, listening.send(all));
+        assertNull(otherPort.send(all));
+
+        table.unregister(listening.tcb);
+        assertNull(other.send(all));
+        assertSame(connected, connected.send(all));
+
+        table.unregister(connected.tcb);
+        assertEquals(0, table.size());
+        assertNull(connected.send(all));
+    }
+
+    @Test
+    public void allocatePortSkipsListeningPorts() {
+        // the first ephemeral port
+        Connection listening = new Connection(FIRST_FOREIGN_ADDR, (short) 3110);
+        assertTrue(table.listen(listening.tcb, listening));
+
+        assertEquals(3111, table.allocatePort());
+        table.unregister(listening.tcb);
+    }
+
+    /**
+     * Check that every registered connection gets its segments, and the others get none.
+     */
+    private void assertFound(List<Connection> connections, List<Connection> registered) {
+        for (Connection connection : connections) {
+            Connection receiver = connection.send(connections);
+            if (registered.contains(connection)) {
+                assertSame(connection, receiver);
+            } else {
+                assertNull(receiver);
+            }
+        }
+    }
+
+    private static int home(int foreignAddr) {
+        long key = ConnectionTable.getKey(LOCAL_PORT, foreignAddr, FOREIGN_PORT);
+        return ConnectionTable.ConnectionMap.hash(key) & (ConnectionTable.ConnectionMap.INITIAL_CAPACITY - 1);
+    }
+
+    /**
+     * Rearrange a into the next permutation in lexicographic order.
+     * @return false if a was the last permutation
+     */
+    private static boolean nextPermutation(int[] a) {
+        int i = a.length - 2;
+        while (i >= 0 && a[i] >= a[i + 1]) {
+            i--;
+        }
+        if (i < 0) {
+            return false;
+        }
+        int j = a.length - 1;
+        while (a[j] <= a[i]) {
+            j--;
+        }
+        swap(a, i, j);
+        for (int k = i + 1, l = a.length - 1; k < l; k++, l--) {
+            swap(a, k, l);
+        }
+        return true;
+    }
+
+    private static void swap(int[] a, int i, int j) {
+        int t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+}
@@ -0,0 +1,115 @@
+package nl.vu.cs.cn.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    private static final long LARGE = 1000 * 1000 * 1000;
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 64; i++) {
+            histogram.record(i);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(64, snapshot.getCount());
+        assertEquals(0, snapshot.getValueAtPercentile(0));
+        assertEquals(31, snapshot.getValueAtPercentile(50));
+        assertEquals(62, snapshot.getValueAtPercentile(98));
+        assertEquals(63, snapshot.getValueAtPercentile(100));
+        assertEquals(31.5, snapshot.getMean(), 1e-9);
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        // each value is reported as the highest value of its bucket
+        assertEquals(63, median(63));
+        assertEquals(65, median(64));
+        assertEquals(65, median(65));
+        assertEquals(67, median(66));
+        assertEquals(127, median(126));
+        assertEquals(127, median(127));
+        assertEquals(131, median(128));
+        assertEquals(131, median(131));
+        assertEquals(135, median(132));
+        assertEquals((1L << 20) + (1L << 15) - 1, median(1L << 20));
+        assertEquals((1L << 21) - 1, median((1L << 21) - 1));
+    }
+
+    @Test
+    public void relativeErrorIsSmall() {
+        Random random = new Random(3);
+        for (int i = 0; i < 10000; i++) {
+            long value = (long) Math.exp(random.nextDouble() * Math.log(LatencyHistogram.MAX_VALUE / 2));
+            long reported = median(value);
+            assertTrue(value + " reported as " + reported, reported >= value);
+            assertTrue(value + " reported as " + reported, reported <= value + value / 32);
+        }
+    }
+
+    @Test
+    public void percentilesOfUniformValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertNear(50000 * 1000L, snapshot.getValueAtPercentile(50));
+        assertNear(90000 * 1000L, snapshot.getValueAtPercentile(90));
+        assertNear(99000 * 1000L, snapshot.getValueAtPercentile(99));
+        assertNear(99900 * 1000L, snapshot.getValueAtPercentile(99.9));
+        assertEquals(100000 * 1000L, snapshot.getValueAtPercentile(100));
+        assertEquals(100000 * 1000L, snapshot.getMax());
+        assertEquals(50000.5 * 1000, snapshot.getMean(), 1e-6);
+    }
+
+    @Test
+    public void outOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1);
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getValueAtPercentile(50));
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.snapshot().getMax());
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.snapshot().getValueAtPercentile(100));
+    }
+
+    @Test
+    public void valuesAreRecordedInTheParent() {
+        LatencyHistogram parent = new LatencyHistogram();
+        LatencyHistogram first = new LatencyHistogram(parent);
+        LatencyHistogram second = new LatencyHistogram(parent);
+        first.record(10);
+        second.record(20);
+        second.record(30);
+
+        assertEquals(1, first.snapshot().getCount());
+        assertEquals(2, second.snapshot().getCount());
+        assertEquals(3, parent.snapshot().getCount());
+        assertEquals(30, parent.snapshot().getMax());
+    }
+
+    /**
+     * @return the median reported for value, recorded together with a much larger value
+     * so that the result is not capped at the maximum
+     */
+    private static long median(long value) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(value);
+        histogram.record(LatencyHistogram.MAX_VALUE);
+        return histogram.snapshot().getValueAtPercentile(50);
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue(expected + " reported as " + actual, actual >= expected && actual <= expected + expected / 32);
+    }
+}
@@ -0,0 +1,115 @@
+package nl.vu.cs.cn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PacketPoolTest {
+
+    private final PacketPool pool = PacketPool.getInstance();
+
+    @Before
+    public void setUp() {
+        // other tests in this process may have left packets in the shared pool
+        drain();
+    }
+
+    @Test
+    public void releasedPacketIsReused() {
+        IP.Packet packet = pool.acquire();
+        assertEquals(PacketPool.BUFFER_SIZE, packet.data.length);
+        pool.release(packet);
+
+        long allocated = pool.getAllocated();
+        assertSame(packet, pool.acquire());
+        assertEquals(allocated, pool.getAllocated());
+    }
+
+    @Test
+    public void replacedBufferIsNotPooled() {
+        IP.Packet packet = pool.acquire();
+        packet.data = new byte[PacketPool.BUFFER_SIZE + 1];
+        pool.release(packet);
+        assertNotSame(packet, pool.acquire());
+    }
+
+    @Test
+    public void atMostMaxPooledPacketsAreKept() {
+        List<IP.Packet> packets = new ArrayList<IP.Packet>();
+        for (int i = 0; i < PacketPool.MAX_POOLED + 50; i++) {
+            packets.add(pool.acquire());
+        }
+        for (IP.Packet packet : packets) {
+            pool.release(packet);
+        }
+        assertEquals(PacketPool.MAX_POOLED, drain());
+    }
+
+    @Test
+    public void concurrentAcquireAndRelease() throws InterruptedException {
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    IP.Packet[] held = new IP.Packet[64];
+                    for (int i = 0; i < 20000; i++) {
+                        int n = 1 + i % held.length;
+                        for (int j = 0; j < n; j++) {
+                            held[j] = pool.acquire();
+                            held[j].length = j;
+                        }
+                        for (int j = 0; j < n; j++) {
+                            // a packet handed out twice would have been overwritten by another thread
+                            if (held[j].length != j) {
+                                throw new AssertionError("packet in use by two threads");
+                            }
+                            pool.release(held[j]);
+                        }
+                    }
+                }
+            };
+        }
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                public void uncaughtException(Thread thread, Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+
+        int pooled = drain();
+        assertTrue(pooled + " pooled packets", pooled > 0 && pooled <= PacketPool.MAX_POOLED);
+    }
+
+    /**
+     * Take every packet out of the pool.
+     * @return the number of distinct packets that were in it
+     */
+    private int drain() {
+        IdentityHashMap<IP.Packet, Boolean> taken = new IdentityHashMap<IP.Packet, Boolean>();
+        long allocated = pool.getAllocated();
+        while (true) {
+            IP.Packet packet = pool.acquire();
+            if (pool.getAllocated() != allocated) {
+                return taken.size();
+            }
+            assertTrue("packet pooled twice", taken.put(packet, Boolean.TRUE) == null);
+        }
+    }
+}
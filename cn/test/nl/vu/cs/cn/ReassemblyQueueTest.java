@@ -0,0 +1,200 @@
+package nl.vu.cs.cn.tcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReassemblyQueueTest {
+
+    private static final long RCV_NXT = 5000;
+
+    private final ReassemblyQueue queue = new ReassemblyQueue();
+    private final ByteRingBuffer processingQueue = new ByteRingBuffer(1 << 16);
+    private final byte[] data = data(4000);
+
+    @Test
+    public void deliversOnceTheGapIsFilled() {
+        add(RCV_NXT, 100, 200);
+        add(RCV_NXT, 300, 100);
+        assertEquals(300, queue.size());
+        assertEquals(0, queue.deliver(RCV_NXT, processingQueue));
+
+        // the gap in front arrives in order
+        processingQueue.write(data, 0, 100);
+        assertEquals(300, queue.deliver(RCV_NXT + 100, processingQueue));
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.size());
+        assertReceived(400);
+    }
+
+    @Test
+    public void duplicateSegmentsAreKeptOnce() {
+        add(RCV_NXT, 100, 100);
+        add(RCV_NXT, 100, 100);
+        add(RCV_NXT, 300, 100);
+        add(RCV_NXT, 300, 100);
+        assertEquals(200, queue.size());
+        assertSackBlocks(300, 400, 100, 200);
+    }
+
+    @Test
+    public void overlappingSegmentsAreTrimmed() {
+        add(RCV_NXT, 200, 100);         // [200, 300)
+        add(RCV_NXT, 250, 100);         // overlaps the end: adds [300, 350)
+        add(RCV_NXT, 150, 100);         // overlaps the start: adds [150, 200)
+        add(RCV_NXT, 100, 300);         // covers everything: adds [100, 150) and [350, 400)
+        add(RCV_NXT, 180, 50);          // inside: adds nothing
+        assertEquals(300, queue.size());
+        assertSackBlocks(100, 400);
+
+        processingQueue.write(data, 0, 100);
+        assertEquals(300, queue.deliver(RCV_NXT + 100, processingQueue));
+        assertReceived(400);
+    }
+
+    @Test
+    public void segmentBridgingTwoBlocks() {
+        add(RCV_NXT, 100, 50);
+        add(RCV_NXT, 200, 50);
+        add(RCV_NXT, 400, 50);
+        assertSackBlocks(400, 450, 100, 150, 200, 250);
+
+        add(RCV_NXT, 120, 110);         // fills [150, 200) between the first two
+        assertEquals(200, queue.size());
+        assertSackBlocks(100, 250, 400, 450);
+    }
+
+    @Test
+    public void sackBlocksStartWithTheMostRecentRun() {
+        add(RCV_NXT, 100, 100);
+        add(RCV_NXT, 400, 100);
+        add(RCV_NXT, 700, 100);
+        assertSackBlocks(700, 800, 100, 200, 400, 500);
+
+        // extends the first run, which then holds the most recent data
+        add(RCV_NXT, 200, 50);
+        assertSackBlocks(100, 250, 400, 500, 700, 800);
+
+        add(RCV_NXT, 1000, 100);
+        add(RCV_NXT, 1300, 100);
+        add(RCV_NXT, 600, 50);
+        assertSackBlocks(600, 650, 100, 250, 400, 500, 700, 800);
+
+        // a block that fills the gap between two runs makes them one
+        add(RCV_NXT, 500, 100);
+        assertSackBlocks(400, 650, 100, 250, 700, 800, 1000, 1100);
+
+        long[] blocks = new long[2];
+        assertEquals(1, queue.getSackBlocks(blocks, 1));
+        assertArrayEquals(new long[] {RCV_NXT + 400, RCV_NXT + 650}, blocks);
+    }
+
+    @Test
+    public void dataBeforeRcvNxtIsSkipped() {
+        add(RCV_NXT, 100, 200);
+
+        // a retransmission delivered [0, 150) in order in the meantime
+        processingQueue.write(data, 0, 150);
+        assertEquals(150, queue.deliver(RCV_NXT + 150, processingQueue));
+        assertTrue(queue.isEmpty());
+        assertReceived(300);
+    }
+
+    @Test
+    public void fullProcessingQueueKeepsTheRest() {
+        ByteRingBuffer small = new ByteRingBuffer(250);
+        add(RCV_NXT, 0, 100);
+        add(RCV_NXT, 100, 100);
+        add(RCV_NXT, 200, 100);
+
+        assertEquals(250, queue.deliver(RCV_NXT, small));
+        assertEquals(50, queue.size());
+        assertSackBlocks(250, 300);
+
+        byte[] out = new byte[300];
+        small.read(out, 0, 250);
+        assertEquals(50, queue.deliver(RCV_NXT + 250, small));
+        small.read(out, 250, 50);
+        assertArrayEquals(Arrays.copyOf(data, 300), out);
+    }
+
+    @Test
+    public void sequenceNumbersWrapAround() {
+        long rcvNxt = Integer.MAX_VALUE - 150;
+        add(rcvNxt, 300, 100);
+        add(rcvNxt, 100, 100);          // crosses the wrap
+        add(rcvNxt, 180, 150);          // overlaps both
+
+        processingQueue.write(data, 0, 100);
+        assertEquals(300, queue.deliver((rcvNxt + 100) % Integer.MAX_VALUE, processingQueue));
+        assertReceived(400);
+    }
+
+    @Test
+    public void randomOverlappingAndDuplicateSegments() {
+        Random random = new Random(11);
+        for (int run = 0; run < 200; run++) {
+            ReassemblyQueue queue = new ReassemblyQueue();
+            ByteRingBuffer processingQueue = new ByteRingBuffer(data.length);
+            long rcvNxt = (run % 2 == 0) ? RCV_NXT : Integer.MAX_VALUE - 1000;
+            long start = rcvNxt;
+
+            int delivered = 0;
+            while (delivered < data.length) {
+                int offset = delivered + random.nextInt(Math.min(1000, data.length - delivered));
+                int len = 1 + random.nextInt(Math.min(500, data.length - offset));
+                if (offset == delivered) {
+                    delivered += processingQueue.write(data, offset, len);
+                    rcvNxt = (start + delivered) % Integer.MAX_VALUE;
+                    delivered += queue.deliver(rcvNxt, processingQueue);
+                    rcvNxt = (start + delivered) % Integer.MAX_VALUE;
+                } else {
+                    queue.add(rcvNxt, (start + offset) % Integer.MAX_VALUE, data, offset, len);
+                }
+            }
+
+            byte[] out = new byte[data.length];
+            assertEquals(data.length, processingQueue.read(out, 0, out.length));
+            assertArrayEquals("run " + run, data, out);
+        }
+    }
+
+    /**
+     * Add data[offset, offset + len) as a segment at offset bytes after rcvNxt.
+     */
+    private void add(long rcvNxt, int offset, int len) {
+        queue.add(rcvNxt, (rcvNxt + offset) % Integer.MAX_VALUE, data, offset, len);
+    }
+
+    /**
+     * @param edges left and right edge of each expected block, as offsets from RCV_NXT
+     */
+    private void assertSackBlocks(long... edges) {
+        long[] blocks = new long[8];
+        int count = queue.getSackBlocks(blocks, 4);
+
+        long[] expected = new long[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            expected[i] = RCV_NXT + edges[i];
+        }
+        assertArrayEquals(expected, Arrays.copyOf(blocks, 2 * count));
+    }
+
+    private void assertReceived(int len) {
+        byte[] out = new byte[len];
+        assertEquals(len, processingQueue.read(out, 0, len));
+        assertArrayEquals(Arrays.copyOf(data, len), out);
+        assertTrue(processingQueue.isEmpty());
+    }
+
+    private static byte[] data(int len) {
+        byte[] data = new byte[len];
+        new Random(5).nextBytes(data);
+        return data;
+    }
+}
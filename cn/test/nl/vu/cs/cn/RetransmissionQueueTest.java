@@ -0,0 +1,166 @@
+package nl.vu.cs.cn.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import nl.vu.cs.cn.ConsoleLogAppender;
+import nl.vu.cs.cn.InMemoryNetwork;
+import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.tcp.segment.RetransmissionSegment;
+import nl.vu.cs.cn.tcp.segment.Segment;
+import nl.vu.cs.cn.tcp.segment.SegmentUtil;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RetransmissionQueueTest {
+
+    private static final int LENGTH = 100;      // data bytes per segment
+
+    private static TransmissionControlBlock tcb;
+
+    private final RetransmissionQueue queue = new RetransmissionQueue();
+    private final ArrayList<RetransmissionSegment> removed = new ArrayList<RetransmissionSegment>();
+    private final ArrayList<RetransmissionSegment> sent = new ArrayList<RetransmissionSegment>();
+    private long nextSeq;
+
+    @BeforeClass
+    public static void createTcb() throws IOException {
+        Log.setAppender(new ConsoleLogAppender());
+        tcb = new TransmissionControlBlock(new InMemoryNetwork().createStack(1), false);
+    }
+
+    @Before
+    public void setUp() {
+        nextSeq = 1000;
+    }
+
+    @Test
+    public void removeAckedAcrossTheRingEnd() {
+        // move the head close to the end of the ring, which holds 16 segments at first
+        add(12);
+        assertEquals(10, queue.removeAcked(ackOf(9), removed));
+        removed.clear();
+
+        // these wrap around to the start of the ring
+        add(10);
+        assertEquals(12, queue.size());
+
+        assertEquals(9, queue.removeAcked(ackOf(18), removed));
+        assertEquals(9, removed.size());
+        for (int i = 0; i < 9; i++) {
+            assertSame(sent.get(10 + i), removed.get(i));
+            assertFalse(removed.get(i).isQueued());
+        }
+        assertEquals(3, queue.size());
+        assertSame(sent.get(19), queue.peekFirst());
+        assertTrue(queue.peekFirst().isQueued());
+    }
+
+    @Test
+    public void growWhileWrapped() {
+        add(10);
+        queue.removeAcked(ackOf(7), removed);
+
+        // fills the ring across its end and then grows it
+        add(30);
+        assertEquals(32, queue.size());
+        assertEquals(sent.subList(8, 40), queue.toList());
+
+        removed.clear();
+        assertEquals(32, queue.removeAcked(ackOf(39), removed));
+        assertEquals(sent.subList(8, 40), removed);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void partlyAcknowledgedSegmentStays() {
+        add(3);
+        long ack = (sent.get(1).getSegment().getSeq() + LENGTH / 2) % Integer.MAX_VALUE;
+
+        assertEquals(1, queue.removeAcked(ack, removed));
+        assertSame(sent.get(1), queue.peekFirst());
+        assertEquals(0, queue.removeAcked(ack, removed));
+        assertEquals(1, removed.size());
+    }
+
+    @Test
+    public void sequenceNumbersWrapAround() {
+        nextSeq = Integer.MAX_VALUE - 5 * LENGTH / 2;
+        add(20);
+        assertTrue(sent.get(4).getSegment().getSeq() < sent.get(0).getSegment().getSeq());
+
+        assertEquals(3, queue.removeAcked(ackOf(2), removed));
+        assertEquals(12, queue.removeAcked(ackOf(14), removed));
+        assertSame(sent.get(15), queue.peekFirst());
+    }
+
+    @Test
+    public void sackedSegmentsAndHolesAcrossTheRingEnd() {
+        add(12);
+        queue.removeAcked(ackOf(9), removed);
+        add(10);
+
+        // the receiver has 12 to 14 and 17, so 10, 11, 15 and 16 are missing
+        assertEquals(3, queue.markSacked(seqOf(12), ackOf(14)));
+        assertEquals(1, queue.markSacked(seqOf(17), ackOf(17)));
+        assertEquals(0, queue.markSacked(seqOf(12), ackOf(14)));
+
+        assertSame(sent.get(10), queue.nextHole(seqOf(10)));
+        assertSame(sent.get(11), queue.nextHole(seqOf(11)));
+        assertSame(sent.get(15), queue.nextHole(seqOf(12)));
+        assertSame(sent.get(16), queue.nextHole(seqOf(16)));
+        assertNull(queue.nextHole(seqOf(17)));
+
+        // a block that does not cover a whole segment does not mark it
+        assertEquals(0, queue.markSacked(seqOf(15), (seqOf(15) + LENGTH / 2) % Integer.MAX_VALUE));
+
+        // once the segments up to the last SACKed one are acknowledged there are no holes
+        queue.removeAcked(ackOf(17), removed);
+        assertNull(queue.nextHole(seqOf(18)));
+        assertEquals(1, queue.markSacked(seqOf(19), ackOf(19)));
+        assertSame(sent.get(18), queue.nextHole(seqOf(18)));
+    }
+
+    @Test
+    public void clearReturnsAllSegments() {
+        add(12);
+        queue.removeAcked(ackOf(9), removed);
+        add(10);
+
+        assertEquals(sent.subList(10, 22), queue.clear());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peekFirst());
+        assertNull(queue.nextHole(seqOf(10)));
+    }
+
+    private void add(int count) {
+        byte[] data = new byte[LENGTH];
+        for (int i = 0; i < count; i++) {
+            Segment segment = SegmentUtil.getPacket(tcb, nextSeq, 0);
+            segment.setData(data);
+            RetransmissionSegment retransmissionSegment = new RetransmissionSegment(segment, null);
+            sent.add(retransmissionSegment);
+            queue.add(retransmissionSegment);
+            nextSeq = (nextSeq + LENGTH) % Integer.MAX_VALUE;
+        }
+    }
+
+    private long seqOf(int index) {
+        return sent.get(index).getSegment().getSeq();
+    }
+
+    /**
+     * @return the ACK that acknowledges segment index and everything before it
+     */
+    private long ackOf(int index) {
+        return (seqOf(index) + LENGTH) % Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,180 @@
+package nl.vu.cs.cn.tcp.segment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import nl.vu.cs.cn.IP;
+
+import org.junit.Test;
+
+public class OptionUtilTest {
+
+    private static final IP.IpAddress SOURCE = IP.IpAddress.getAddress("192.168.0.1");
+    private static final IP.IpAddress DESTINATION = IP.IpAddress.getAddress("192.168.0.2");
+
+    private final long[] blocks = new long[2 * OptionUtil.MAX_SACK_BLOCKS];
+
+    @Test
+    public void sackRoundTrip() {
+        long[] sent = {
+                1000, 2000,
+                Integer.MAX_VALUE - 100, 50,        // wraps around
+                0, 1,
+                Integer.MAX_VALUE - 2, Integer.MAX_VALUE - 1
+        };
+        for (int count = 1; count <= OptionUtil.MAX_SACK_BLOCKS; count++) {
+            byte[] options = new byte[Segment.MAX_OPTIONS_SIZE];
+            int length = OptionUtil.putSack(options, 0, sent, count);
+            assertEquals(4 + 8 * count, length);
+
+            Segment segment = roundTrip(options, length);
+            assertEquals(count, OptionUtil.getSackBlocks(segment, blocks));
+            assertArrayEquals(Arrays.copyOf(sent, 2 * count), Arrays.copyOf(blocks, 2 * count));
+        }
+    }
+
+    @Test
+    public void maxSackBlocksFillTheOptionsWithoutTimestamps() {
+        // without the 10 byte timestamp option 4 blocks fit in the 40 bytes of options, a 5th does not
+        assertEquals(4, OptionUtil.MAX_SACK_BLOCKS);
+        assertTrue(4 + 8 * (OptionUtil.MAX_SACK_BLOCKS + 1) > Segment.MAX_OPTIONS_SIZE);
+
+        long[] sent = {100, 200, 300, 400, 500, 600, 700, 800};
+        byte[] options = new byte[Segment.MAX_OPTIONS_SIZE];
+        int length = OptionUtil.putSack(options, 0, sent, OptionUtil.MAX_SACK_BLOCKS);
+
+        Segment segment = roundTrip(options, length);
+        assertEquals(Segment.HEADER_SIZE + 36, segment.getHeaderLength());
+        assertEquals(4, OptionUtil.getSackBlocks(segment, blocks));
+        assertArrayEquals(sent, blocks);
+    }
+
+    @Test
+    public void sackPermittedRoundTrip() {
+        byte[] options = new byte[OptionUtil.SACK_PERMITTED_LENGTH];
+        assertEquals(OptionUtil.SACK_PERMITTED_LENGTH, OptionUtil.putSackPermitted(options, 0));
+
+        Segment segment = roundTrip(options, options.length);
+        assertTrue(OptionUtil.hasSackPermitted(segment));
+        assertEquals(0, OptionUtil.getSackBlocks(segment, blocks));
+
+        assertFalse(OptionUtil.hasSackPermitted(roundTrip(new byte[0], 0)));
+    }
+
+    @Test
+    public void sackAfterOtherOptions() {
+        // MSS, SACK permitted without NOPs in front, then the SACK option
+        byte[] options = {
+                2, 4, 0x05, (byte) 0xb4,
+                4, 2,
+                5, 10, 0, 0, 0x03, (byte) 0xe8, 0, 0, 0x07, (byte) 0xd0
+        };
+        Segment segment = roundTrip(options, options.length);
+        assertTrue(OptionUtil.hasSackPermitted(segment));
+        assertEquals(1, OptionUtil.getSackBlocks(segment, blocks));
+        assertEquals(1000, blocks[0]);
+        assertEquals(2000, blocks[1]);
+    }
+
+    @Test
+    public void malformedSackOptions() {
+        // the length runs past the end of the options
+        assertNoSack(1, 1, 5, 34, 0, 0, 0, 1, 0, 0, 0, 2);
+        // a length below 2 ends the options
+        assertNoSack(5, 1, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0);
+        assertNoSack(5, 0, 0, 0);
+        // only the kind byte is left
+        assertNoSack(1, 1, 1, 5);
+        // a SACK option without blocks
+        assertNoSack(1, 1, 5, 2);
+        // the options end at EOL
+        assertNoSack(0, 1, 5, 10, 0, 0, 0, 1, 0, 0, 0, 2);
+        // an option in front of it with a bad length
+        assertNoSack(99, 1, 5, 10, 0, 0, 0, 1, 0, 0, 0, 2);
+        assertNoSack(99, 40, 5, 10, 0, 0, 0, 1, 0, 0, 0, 2);
+    }
+
+    @Test
+    public void partialSackBlockIsIgnored() {
+        // a length of 2 + 12: one whole block and half of another
+        Segment segment = roundTrip(options(1, 1, 5, 14, 0, 0, 0, 1, 0, 0, 0, 2, 0, 0, 0, 3), 16);
+        assertEquals(1, OptionUtil.getSackBlocks(segment, blocks));
+        assertEquals(1, blocks[0]);
+        assertEquals(2, blocks[1]);
+    }
+
+    @Test
+    public void windowScaleRoundTrip() {
+        for (int shift = 0; shift <= 14; shift++) {
+            byte[] options = new byte[OptionUtil.WINDOW_SCALE_LENGTH];
+            assertEquals(OptionUtil.WINDOW_SCALE_LENGTH, OptionUtil.putWindowScale(options, 0, shift));
+            assertEquals(shift, OptionUtil.getWindowScale(roundTrip(options, options.length)));
+        }
+
+        // the shift is passed on as sent, the connection clamps it to 14
+        assertEquals(15, OptionUtil.getWindowScale(roundTrip(options(1, 3, 3, 15), 4)));
+        assertEquals(255, OptionUtil.getWindowScale(roundTrip(options(1, 3, 3, 255), 4)));
+    }
+
+    @Test
+    public void windowScaleWithSackPermitted() {
+        // the options of a SYN
+        byte[] options = new byte[OptionUtil.SACK_PERMITTED_LENGTH + OptionUtil.WINDOW_SCALE_LENGTH];
+        int length = OptionUtil.putSackPermitted(options, 0);
+        length += OptionUtil.putWindowScale(options, length, 7);
+
+        Segment segment = roundTrip(options, length);
+        assertTrue(OptionUtil.hasSackPermitted(segment));
+        assertEquals(7, OptionUtil.getWindowScale(segment));
+    }
+
+    @Test
+    public void malformedWindowScaleOptions() {
+        assertEquals(-1, OptionUtil.getWindowScale(roundTrip(new byte[0], 0)));
+        // a length other than 3
+        assertEquals(-1, OptionUtil.getWindowScale(roundTrip(options(3, 2, 1, 1), 4)));
+        assertEquals(-1, OptionUtil.getWindowScale(roundTrip(options(3, 4, 7, 0), 4)));
+        // the length runs past the end of the options
+        assertEquals(-1, OptionUtil.getWindowScale(roundTrip(options(1, 1, 3, 3), 4)));
+        // only the kind byte is left
+        assertEquals(-1, OptionUtil.getWindowScale(roundTrip(options(1, 1, 1, 3), 4)));
+        // the options end at EOL
+        assertEquals(-1, OptionUtil.getWindowScale(roundTrip(options(0, 3, 3, 7), 4)));
+    }
+
+    private void assertNoSack(int... bytes) {
+        byte[] options = options(bytes);
+        Segment segment = roundTrip(options, options.length);
+        assertEquals(Arrays.toString(bytes), 0, OptionUtil.getSackBlocks(segment, blocks));
+        assertFalse(Arrays.toString(bytes), OptionUtil.hasSackPermitted(segment));
+    }
+
+    /**
+     * @return the bytes, padded with EOL to a multiple of 4
+     */
+    private static byte[] options(int... bytes) {
+        byte[] options = new byte[(bytes.length + 3) / 4 * 4];
+        for (int i = 0; i < bytes.length; i++) {
+            options[i] = (byte) bytes[i];
+        }
+        return options;
+    }
+
+    /**
+     * @return a segment with the given options as it arrives: encoded, and decoded again
+     */
+    private static Segment roundTrip(byte[] options, int length) {
+        Segment segment = new Segment(SOURCE, DESTINATION, (short) 1000, (short) 2000, 1, 0xffff, 1);
+        if (length > 0) {
+            segment.setOptions(options, length);
+        }
+        Segment decoded = new Segment(segment.encode(), SOURCE.getAddress(), DESTINATION.getAddress());
+        assertTrue(decoded.hasValidChecksum());
+        assertEquals(length, decoded.getOptionsLength());
+        return decoded;
+    }
+}
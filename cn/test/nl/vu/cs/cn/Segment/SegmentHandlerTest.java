@@ -0,0 +1,135 @@
+package nl.vu.cs.cn.tcp.segment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import nl.vu.cs.cn.ConsoleLogAppender;
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.InMemoryNetwork;
+import nl.vu.cs.cn.Log;
+import nl.vu.cs.cn.tcp.TransmissionControlBlock;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SegmentHandlerTest {
+
+    private static final long SND_UNA = 5000;
+    private static final long SND_NXT = 6000;
+    private static final long RCV_NXT = 9000;
+
+    private IP remote;
+    private TransmissionControlBlock tcb;
+    private TransmissionControlBlock peer;      // only used to address the segments that arrive
+    private SegmentHandler handler;
+
+    private final byte[] data = new byte[100];
+
+    @BeforeClass
+    public static void setUpLog() {
+        Log.setAppender(new ConsoleLogAppender());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        InMemoryNetwork network = new InMemoryNetwork();
+        IP local = network.createStack(1);
+        remote = network.createStack(2);
+
+        tcb = new TransmissionControlBlock(local, false);
+        tcb.setLocalSocketInfo(local.getLocalAddress(), (short) 1000);
+        tcb.setForeignSocketInfo(remote.getLocalAddress(), (short) 2000);
+        peer = new TransmissionControlBlock(remote, true);
+        peer.setLocalSocketInfo(remote.getLocalAddress(), (short) 2000);
+        peer.setForeignSocketInfo(local.getLocalAddress(), (short) 1000);
+
+        tcb.enterState(TransmissionControlBlock.State.ESTABLISHED);
+        tcb.setSendUnacknowledged(SND_UNA);
+        tcb.setSendNext(SND_NXT);
+        tcb.setReceiveNext(RCV_NXT);
+        tcb.setSendWindow(peer.getAdvertisedWindow());
+
+        // an in-order segment is only acknowledged after this delay, so nothing is sent during a test
+        tcb.getSegmentSender().setAckDelay(60 * 1000);
+        handler = new SegmentHandler(tcb, tcb.getSegmentSender());
+
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+    }
+
+    @Test
+    public void oldAckWithDataIsAccepted() {
+        // an ACK for 4000 that was overtaken by the one that moved SND.UNA to 5000
+        handler.onSegmentArrive(arrive(RCV_NXT, 4000, data));
+
+        assertEquals(RCV_NXT + data.length, tcb.getReceiveNext());
+        assertEquals(SND_UNA, tcb.getSendUnacknowledged());
+        assertReceived(data);
+
+        // not dropped as an ACK for data not yet sent, which is answered by an ACK right away
+        assertNull(remote.getInboundQueue().poll());
+    }
+
+    @Test
+    public void oldAckAcrossTheWrapIsAccepted() {
+        tcb.setSendUnacknowledged(100);
+        tcb.setSendNext(1100);
+
+        handler.onSegmentArrive(arrive(RCV_NXT, Integer.MAX_VALUE - 100, data));
+
+        assertEquals(RCV_NXT + data.length, tcb.getReceiveNext());
+        assertEquals(100, tcb.getSendUnacknowledged());
+        assertNull(remote.getInboundQueue().poll());
+    }
+
+    @Test
+    public void ackForDataNotYetSentIsDropped() {
+        handler.onSegmentArrive(arrive(RCV_NXT, SND_NXT + 1, data));
+
+        assertEquals(RCV_NXT, tcb.getReceiveNext());
+        assertEquals(SND_UNA, tcb.getSendUnacknowledged());
+        assertFalse(tcb.hasDataToProcess());
+
+        // answered by <SEQ=SND.NXT><ACK=RCV.NXT><CTL=ACK>
+        IP.Packet packet = remote.getInboundQueue().poll();
+        assertNotNull(packet);
+        Segment ack = new Segment(Arrays.copyOf(packet.data, packet.length), packet.source, packet.destination);
+        assertEquals(SND_NXT, ack.getSeq());
+        assertEquals(RCV_NXT, ack.getAck());
+        assertEquals(0, ack.getDataLength());
+    }
+
+    @Test
+    public void newAckMovesSndUna() {
+        handler.onSegmentArrive(arrive(RCV_NXT, SND_UNA + 500, data));
+
+        assertEquals(SND_UNA + 500, tcb.getSendUnacknowledged());
+        assertReceived(data);
+    }
+
+    /**
+     * @return a segment from the peer as it arrives: encoded, and decoded again with its checksum checked
+     */
+    private Segment arrive(long seq, long ack, byte[] data) {
+        Segment segment = SegmentUtil.getPacket(peer, seq, ack);
+        segment.setData(data);
+        Segment decoded = new Segment(segment.encode(), remote.getLocalAddress().getAddress(), tcb.getLocalAddr().getAddress());
+        assertTrue(decoded.hasValidChecksum());
+        return decoded;
+    }
+
+    private void assertReceived(byte[] expected) {
+        byte[] out = new byte[expected.length];
+        assertEquals(expected.length, tcb.getDataToProcess(out, 0, out.length));
+        assertArrayEquals(expected, out);
+    }
+}
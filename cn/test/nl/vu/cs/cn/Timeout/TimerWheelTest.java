@@ -0,0 +1,129 @@
+package nl.vu.cs.cn.tcp.timeout;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+    private final TimerWheel wheel = TimerWheel.getInstance();
+
+    /**
+     * Records when it ran, in milliseconds after it was created.
+     */
+    private static class Task implements Runnable {
+        private final String name;
+        private final List<String> order;
+        private final CountDownLatch done;
+        private final long created = System.nanoTime();
+        private volatile long ranAfterMs = -1;
+
+        Task(String name, List<String> order, CountDownLatch done) {
+            this.name = name;
+            this.order = order;
+            this.done = done;
+        }
+
+        public void run() {
+            ranAfterMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - created);
+            synchronized (order) {
+                order.add(name);
+            }
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void timersFireInOrderOfExpiry() throws InterruptedException {
+        List<String> order = new ArrayList<String>();
+        CountDownLatch done = new CountDownLatch(3);
+        Task late = new Task("late", order, done);
+        Task early = new Task("early", order, done);
+        Task middle = new Task("middle", order, done);
+
+        wheel.schedule(late, 150);
+        wheel.schedule(early, 20);
+        wheel.schedule(middle, 80);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[early, middle, late]", order.toString());
+        assertNotEarly(early, 20);
+        assertNotEarly(middle, 80);
+        assertNotEarly(late, 150);
+    }
+
+    @Test
+    public void timerMoreThanOneRevolutionAheadWaitsForItsRound() throws InterruptedException {
+        long revolutionMs = TimerWheel.WHEEL_SIZE * TimerWheel.TICK_MS;
+        List<String> order = new ArrayList<String>();
+        CountDownLatch done = new CountDownLatch(2);
+        Task nextRound = new Task("next round", order, done);
+        Task thisRound = new Task("this round", order, done);
+
+        // both are hashed into the same bucket, a revolution apart
+        wheel.schedule(nextRound, revolutionMs + 5 * TimerWheel.TICK_MS);
+        wheel.schedule(thisRound, 5 * TimerWheel.TICK_MS);
+
+        assertTrue(done.await(revolutionMs + 5000, TimeUnit.MILLISECONDS));
+        assertEquals("[this round, next round]", order.toString());
+        assertTrue("fired after " + thisRound.ranAfterMs + " ms", thisRound.ranAfterMs < revolutionMs / 2);
+        assertNotEarly(nextRound, revolutionMs + 5 * TimerWheel.TICK_MS);
+    }
+
+    @Test
+    public void cancelledTimerDoesNotFire() throws InterruptedException {
+        List<String> order = new ArrayList<String>();
+        CountDownLatch done = new CountDownLatch(2);
+        TimerWheel.Timer cancelled = wheel.schedule(new Task("cancelled", order, done), 30);
+        wheel.schedule(new Task("kept", order, done), 60);
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertTrue(cancelled.isCancelled());
+
+        assertFalse(done.await(300, TimeUnit.MILLISECONDS));
+        assertEquals("[kept]", order.toString());
+        assertFalse(cancelled.isExpired());
+    }
+
+    @Test
+    public void expiredTimerCannotBeCancelled() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        TimerWheel.Timer timer = wheel.schedule(new Task("timer", new ArrayList<String>(), done), 10);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(timer.isExpired());
+        assertFalse(timer.cancel());
+    }
+
+    @Test
+    public void taskCanScheduleTheNextTimer() throws InterruptedException {
+        final List<String> order = new ArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(2);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                synchronized (order) {
+                    order.add("first");
+                }
+                done.countDown();
+                wheel.schedule(new Task("second", order, done), 20);
+            }
+        }, 20);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[first, second]", order.toString());
+    }
+
+    private static void assertNotEarly(Task task, long delayMs) {
+        // the current tick may be partly over when the timer is scheduled
+        assertTrue(task.name + " fired after " + task.ranAfterMs + " ms",
+                task.ranAfterMs >= delayMs - TimerWheel.TICK_MS);
+    }
+}
@@ -0,0 +1,161 @@
+package nl.vu.cs.cn.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import nl.vu.cs.cn.ConsoleLogAppender;
+import nl.vu.cs.cn.IP;
+import nl.vu.cs.cn.InMemoryNetwork;
+import nl.vu.cs.cn.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TransmissionControlBlockTest {
+
+    private static final long ISS = 1000;
+    private static final int WINDOW = 1000;
+
+    private TransmissionControlBlock tcb;
+
+    @BeforeClass
+    public static void setUpLog() {
+        Log.setAppender(new ConsoleLogAppender());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        InMemoryNetwork network = new InMemoryNetwork();
+        IP local = network.createStack(1);
+        IP remote = network.createStack(2);
+
+        tcb = new TransmissionControlBlock(local, false);
+        tcb.setLocalSocketInfo(local.getLocalAddress(), (short) 1000);
+        tcb.setForeignSocketInfo(remote.getLocalAddress(), (short) 2000);
+        tcb.enterState(TransmissionControlBlock.State.ESTABLISHED);
+        tcb.setSendUnacknowledged(ISS);
+        tcb.setSendNext(ISS);
+        tcb.setSendWindow(WINDOW);
+    }
+
+    @After
+    public void tearDown() {
+        tcb.enterState(TransmissionControlBlock.State.CLOSED);
+    }
+
+    @Test
+    public void waitForAckBlocksWhileDataIsQueuedPastSndNxt() throws InterruptedException {
+        long end = queue(3 * WINDOW);
+        synchronized (tcb) {
+            tcb.getSegmentSender().sendQueuedData();
+        }
+        assertEquals(ISS + WINDOW, tcb.getSendNext());
+        assertEquals(2 * WINDOW, tcb.getTransmissionQueueSize());
+
+        AckWaiter waiter = new AckWaiter(end);
+        waiter.start();
+        assertBlocked(waiter);
+
+        // every ACK opens the window for the next part of the queued data
+        for (int i = 0; i < 2; i++) {
+            ackAll();
+            assertBlocked(waiter);
+        }
+        assertEquals(end, tcb.getSendNext());
+        assertEquals(0, tcb.getTransmissionQueueSize());
+
+        ackAll();
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertTrue(waiter.acked);
+    }
+
+    @Test
+    public void waitForAckBlocksBehindAZeroWindow() throws InterruptedException {
+        tcb.setSendWindow(0);
+        long end = queue(WINDOW);
+
+        // nothing is in flight, SND.UNA equals SND.NXT
+        AckWaiter waiter = new AckWaiter(end);
+        waiter.start();
+        assertBlocked(waiter);
+
+        tcb.enterState(TransmissionControlBlock.State.CLOSED);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertFalse(waiter.acked);
+    }
+
+    @Test
+    public void windowScaleAbove14IsClamped() {
+        tcb.onWindowScaleOption(15);
+        assertTrue(tcb.isWindowScaleEnabled());
+        assertEquals(TransmissionControlBlock.MAX_WINDOW_SHIFT, tcb.getSendWindowShift());
+
+        tcb.onWindowScaleOption(255);
+        assertEquals(TransmissionControlBlock.MAX_WINDOW_SHIFT, tcb.getSendWindowShift());
+    }
+
+    @Test
+    public void windowScaleNeedsBothSides() {
+        tcb.onWindowScaleOption(7);
+        assertTrue(tcb.isWindowScaleEnabled());
+        assertEquals(7, tcb.getSendWindowShift());
+
+        // the SYN of the other side had no window scale option
+        tcb.onWindowScaleOption(-1);
+        assertFalse(tcb.isWindowScaleEnabled());
+        assertEquals(0, tcb.getSendWindowShift());
+        assertEquals(0, tcb.getReceiveWindowShift());
+
+        tcb.setWindowScalePermitted(false);
+        tcb.onWindowScaleOption(7);
+        assertFalse(tcb.isWindowScaleEnabled());
+        assertEquals(0, tcb.getSendWindowShift());
+    }
+
+    /**
+     * Queue len bytes for transmission.
+     * @return the sequence number right after them
+     */
+    private long queue(int len) {
+        assertEquals(len, tcb.queueDataForTransmission(new byte[len], 0, len));
+        return (tcb.getSendNext() + len) % Integer.MAX_VALUE;
+    }
+
+    /**
+     * Handle an ACK for everything sent so far, like the segment handler does.
+     */
+    private void ackAll() {
+        synchronized (tcb) {
+            long ack = tcb.getSendNext();
+            tcb.setSendUnacknowledged(ack);
+            tcb.removeFromRetransmissionQueue(ack);
+            tcb.getSegmentSender().sendQueuedData();
+        }
+    }
+
+    private static void assertBlocked(Thread thread) throws InterruptedException {
+        thread.join(200);
+        assertTrue("waitForAck() returned too early", thread.isAlive());
+    }
+
+    private class AckWaiter extends Thread {
+        private final long seq;
+        private volatile boolean acked;
+
+        AckWaiter(long seq) {
+            this.seq = seq;
+            setDaemon(true);
+        }
+
+        public void run() {
+            acked = tcb.waitForAck(seq);
+        }
+    }
+}